@@ -0,0 +1,27 @@
+import ServerCrossAndCircleGame.ServerGomokuGame;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Prints every finished game of a game journal, in the order the games ended, followed
+ * by the amount of games per outcome.
+ *
+ * Usage: ReplayJournal [journal directory]
+ */
+public class ReplayJournal {
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "journal");
+        Map<ServerGomokuGame.GameOutcome, Integer> outcomes = new EnumMap<>(ServerGomokuGame.GameOutcome.class);
+
+        ServerGomokuGame.replayJournal(directory, game -> {
+            System.out.println(game);
+            outcomes.merge(game.getOutcome(), 1, Integer::sum);
+        });
+        System.out.println("Finished games: " + outcomes);
+    }
+}
@@ -7,49 +7,228 @@ package ServerCrossAndCircleGame;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import com.google.common.collect.HashBasedTable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpServer;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.SynchronousQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class ServerGomokuGame implements Runnable {
+    public static enum ExecutionMode{ THREAD_PER_PLAYER, VIRTUAL_THREADS, NIO_REACTOR };
+    /*
+     * Each level also records everything the levels before it do.
+     */
+    public static enum EventLogLevel{ ERRORS, GAMES, COMMANDS };
+    private static final MethodHandle START_VIRTUAL_THREAD = findStartVirtualThread();
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+    private static final String DEFAULT_LOBBY_BUCKET = "DEFAULT";
+    private static final AtomicInteger GAME_IDS = new AtomicInteger();
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    
     private ServerSocket serverConnection;
-    private boolean keepProcessing = true;
+    private ServerSocketChannel serverChannel;
+    private final Configuration configuration;
+    private final ExecutionMode executionMode;
+    private final Lobby lobby;
+    private final AdmissionControl admission;
+    private final EventLog eventLog;
+    private final GameMetrics metrics = new GameMetrics();
+    private final BufferPool readBuffers = new BufferPool(CodecCommunication.MAX_FRAME_LENGTH, metrics);
+    private final BufferPool writeBuffers = new BufferPool(2 * CodecCommunication.MAX_FRAME_LENGTH, metrics);
+    private final HashedWheelTimer timer = new HashedWheelTimer(TIMER_TICK_NANOS);
+    private final GomokuEngine engine;
+    private GameJournal journal;
+    private List<JournaledGame> recoveredGames = Collections.emptyList();
+    private volatile ObjectName metricsName;
+    private volatile HttpServer metricsEndpoint;
+    private volatile Reactor[] reactors = new Reactor[0];
+    private volatile ExecutorService gameWorkers;
+    private boolean acceptsPerShard = false;
+    private volatile Reactor spectatorReactor;
+    private volatile SessionShard[] sessionShards = new SessionShard[0];
+    private volatile InetSocketAddress sessionAddress;
+    private final Map<Integer, GomokuGame> watchableGames = new ConcurrentHashMap<>();
+    private final AtomicReference<GomokuGame> latestGame = new AtomicReference<>();
+    private volatile boolean keepProcessing = true;
 
     public ServerGomokuGame(final int port) {
+        this(port, ExecutionMode.THREAD_PER_PLAYER, 1);
+    }
+
+    public ServerGomokuGame(final int port, final ExecutionMode executionMode) {
+        this(port, executionMode, Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * NIO_REACTOR mode serves every session from reactorThreadsAmount selector threads
+     * instead of dedicating a thread to each connected player.
+     */
+    public ServerGomokuGame(final int port, final ExecutionMode executionMode, final int reactorThreadsAmount) {
+        this(Configuration.builder()
+                          .port(port)
+                          .executionMode(executionMode)
+                          .reactorThreadsAmount(reactorThreadsAmount)
+                          .build());
+    }
+
+    public ServerGomokuGame(final Configuration configuration) {
+        this(configuration, true);
+    }
+    
+    /*
+     * A server that doesn't listen only plays simulated games.
+     */
+    private ServerGomokuGame(final Configuration configuration, final boolean listens) {
+        this.configuration = checkNotNull(configuration, "Configuration can't be null");
+        this.executionMode = configuration.executionMode;
+        checkArgument(executionMode != ExecutionMode.VIRTUAL_THREADS || START_VIRTUAL_THREAD != null, 
+                      "Virtual threads require Java 21 or newer");
+        this.admission = new AdmissionControl();
+        this.lobby = new Lobby(executionMode == ExecutionMode.NIO_REACTOR ? configuration.reactorThreadsAmount 
+                                                                          : configuration.matchmakerThreadsAmount);
+        this.eventLog = new EventLog(configuration.eventLogLevel, configuration.eventLogFile, 
+                                     configuration.eventLogMaxFileBytes, configuration.eventLogFilesKept);
+        this.engine = configuration.botOpponentDelayNanos > 0 
+                      ? new GomokuEngine(configuration.gameRules, configuration.botSearchThreadsAmount, 
+                                         configuration.botMoveTimeNanos, configuration.botTranspositionTableEntries) 
+                      : null;
+        if(configuration.journalDirectory != null)
+            openJournal();
+        if(!listens)
+            return;
         try {
-            this.serverConnection = new ServerSocket(checkNotNull(port, "Port can't be null"));
+            this.serverChannel = ServerSocketChannel.open();
+            if(executionMode == ExecutionMode.NIO_REACTOR && configuration.reusePort && configuration.reactorThreadsAmount > 1 
+               && SO_REUSEPORT != null && serverChannel.supportedOptions().contains(SO_REUSEPORT)){
+                this.serverChannel.setOption(SO_REUSEPORT, true);
+                this.acceptsPerShard = true;
+            }
+            this.serverChannel.bind(new InetSocketAddress(configuration.port));
+            this.serverConnection = serverChannel.socket();
         } catch (IOException ex) {
             Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
         } 
     }
 
+        /*
+         * Games the journal still holds open lost their players with the previous
+         * process, so they are closed as INTERRUPTED once rebuilt.
+         */
+        private void openJournal(){
+            try {
+                journal = new GameJournal(configuration.journalDirectory, configuration.journalSegmentBytes, 
+                                          configuration.journalSegmentsKept, configuration.journalCommitIntervalNanos);
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, "Game journal disabled", ex);
+                return;
+            }
+            GAME_IDS.accumulateAndGet(journal.getMaxGameId(), Math::max);
+            recoveredGames = Collections.unmodifiableList(journal.getOpenGames());
+            for(JournaledGame game : recoveredGames){
+                journal.gameFinished(game.getGameId(), GameOutcome.INTERRUPTED, JournaledGame.NO_WINNER);
+                eventLog.record(EventType.GAME_RECOVERED, game.getGameId(), EventLog.NO_PLAYER, null, game);
+            }
+        }
+
     @Override
     public void run(){ 
+        eventLog.start();
+        if(journal != null)
+            journal.start();
+        Thread timerThread = new Thread(timer, "gomoku-timer");
+        timerThread.setDaemon(true);
+        timerThread.start();
+        publishMetrics();
+        admission.start();
+        if(configuration.spectatorPort >= 0)
+            startSpectatorReactor();
+        if(configuration.sessionPort >= 0)
+            startSessionReactors();
+        lobby.start();
+        if(executionMode == ExecutionMode.NIO_REACTOR)
+            runReactors();
+        else
+            runBlockingAcceptLoop();
+    }
+
+    private void runBlockingAcceptLoop(){
+        gameWorkers = Executors.newFixedThreadPool(configuration.gameWorkerThreadsAmount, 
+                new ThreadFactoryBuilder().setNameFormat("gomoku-game-worker-%d").build());
         try {
-            while(keepProcessing){ 
-                System.out.println("Waiting for new connections.");
-                startNewGame(receiveConnectionsFromTwoPlayers());
-            }
+            eventLog.record(EventType.SERVER_STARTED, executionMode);
+            while(keepProcessing)
+                lobby.join(serverChannel.accept(), DEFAULT_LOBBY_BUCKET);
         } catch (IOException ex) {
             Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
         } finally {
@@ -59,100 +238,5159 @@ public class ServerGomokuGame implements Runnable {
                 Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-    }
-
-        private void startNewGame(Socket[] twoPlayersConnections) throws IOException{
-            new GomokuGame(twoPlayersConnections).runTheGame();
+    }
+
+    /*
+     * Every reactor is a shard with a matchmaker of its own, and a game is played on
+     * the shard whose matchmaker paired it. With SO_REUSEPORT each shard also listens
+     * on the server port itself and the kernel spreads new connections over them;
+     * otherwise shard 0 accepts them all and hands them out round robin.
+     */
+    private void runReactors(){
+        try {
+            Reactor[] newReactors = new Reactor[configuration.reactorThreadsAmount];
+            for(int i = 0; i < newReactors.length; i++)
+                newReactors[i] = new Reactor();
+            metrics.createShards(newReactors.length);
+            this.reactors = newReactors;
+            newReactors[0].register(serverChannel, SelectionKey.OP_ACCEPT, 
+                                    new ReactorAcceptor(serverChannel, acceptsPerShard ? 0 : ReactorAcceptor.ALL_SHARDS));
+            for(int i = 1; i < newReactors.length; i++){
+                if(acceptsPerShard){
+                    ServerSocketChannel shardChannel = ServerSocketChannel.open();
+                    shardChannel.setOption(SO_REUSEPORT, true);
+                    shardChannel.bind(serverChannel.getLocalAddress());
+                    newReactors[i].register(shardChannel, SelectionKey.OP_ACCEPT, new ReactorAcceptor(shardChannel, i));
+                }
+                new Thread(newReactors[i], "gomoku-reactor-" + i).start();
+            }
+            eventLog.record(EventType.SERVER_STARTED, executionMode);
+            newReactors[0].run();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /*
+     * Spectators get a reactor of their own, so writing to them never delays a turn.
+     */
+    private void startSpectatorReactor(){
+        try {
+            ServerSocketChannel spectatorChannel = ServerSocketChannel.open();
+            spectatorChannel.bind(new InetSocketAddress(configuration.spectatorPort));
+            Reactor reactor = new Reactor();
+            reactor.register(spectatorChannel, SelectionKey.OP_ACCEPT, new SpectatorAcceptor(spectatorChannel, reactor));
+            Thread spectatorThread = new Thread(reactor, "gomoku-spectators");
+            spectatorThread.setDaemon(true);
+            spectatorThread.start();
+            spectatorReactor = reactor;
+        } catch (IOException ex) {
+            Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, "Spectators disabled", ex);
+        }
+    }
+
+    /*
+     * Sessions have reactors of their own, whatever the execution mode: the games of
+     * a session are driven by its frames, never by player threads. The first reactor
+     * also accepts the sessions and deals them out to all reactors in turn.
+     */
+    private void startSessionReactors(){
+        try {
+            ServerSocketChannel sessionChannel = ServerSocketChannel.open();
+            sessionChannel.bind(new InetSocketAddress(configuration.sessionPort));
+            SessionShard[] newShards = new SessionShard[configuration.sessionReactorThreadsAmount];
+            for(int i = 0; i < newShards.length; i++)
+                newShards[i] = new SessionShard(new Reactor());
+            newShards[0].reactor.register(sessionChannel, SelectionKey.OP_ACCEPT, new SessionAcceptor(sessionChannel, newShards));
+            for(int i = 0; i < newShards.length; i++){
+                Thread sessionThread = new Thread(newShards[i].reactor, "gomoku-sessions-" + i);
+                sessionThread.setDaemon(true);
+                sessionThread.start();
+            }
+            sessionShards = newShards;
+            sessionAddress = (InetSocketAddress) sessionChannel.getLocalAddress();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, "Sessions disabled", ex);
+        }
+    }
+
+    /*
+     * Called by the Lobby once two waiting connections are matched. The channels are
+     * already detached from the lobby selector.
+     */
+    private void startNewGame(SocketChannel[] twoPlayersConnections, int shard) throws IOException{
+        eventLog.record(EventType.PLAYERS_PAIRED, null);
+        if(configuration.coalesceWrites)
+            for(SocketChannel connection : twoPlayersConnections)
+                connection.socket().setTcpNoDelay(true);
+        if(executionMode == ExecutionMode.NIO_REACTOR)
+            startShardGame(twoPlayersConnections, shard);
+        else {
+            Socket[] sockets = new Socket[2];
+            for(int i = 0; i < 2; i++){
+                twoPlayersConnections[i].configureBlocking(true);
+                sockets[i] = twoPlayersConnections[i].socket();
+            }
+            new GomokuGame(sockets).runTheGame();
+        }
+    }
+
+    /*
+     * Called by the Lobby for a player that waited botOpponentDelay without a partner.
+     * The channel is already detached from the lobby selector.
+     */
+    private void startBotGame(SocketChannel humanConnection, int shard) throws IOException{
+        eventLog.record(EventType.PLAYER_PAIRED_WITH_BOT, null);
+        metrics.botGameStarted();
+        if(configuration.coalesceWrites)
+            humanConnection.socket().setTcpNoDelay(true);
+        if(executionMode == ExecutionMode.NIO_REACTOR)
+            startShardBotGame(humanConnection, shard);
+        else {
+            humanConnection.configureBlocking(true);
+            new GomokuGame(humanConnection.socket(), engine).runTheGame();
+        }
+    }
+
+    /*
+     * Player threads of blocking sessions only block on socket reads and writes, which
+     * don't pin a virtual thread, so VIRTUAL_THREADS mode parks idle players off the
+     * carrier threads.
+     */
+    private Thread startPlayerThread(Runnable player){
+        if(executionMode == ExecutionMode.VIRTUAL_THREADS)
+            try {
+                return (Thread) START_VIRTUAL_THREAD.invoke(player);
+            } catch (Throwable ex) {
+                throw new IllegalStateException("Can't start virtual thread", ex);
+            }
+        Thread thread = new Thread(player);
+        thread.start();
+        return thread;
+    }
+    
+        private static MethodHandle findStartVirtualThread(){
+            try {
+                return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread", 
+                                                               MethodType.methodType(Thread.class, Runnable.class));
+            } catch (NoSuchMethodException | IllegalAccessException ex) {
+                return null;
+            }
+        }
+        
+        /*
+         * StandardSocketOptions.SO_REUSEPORT exists since Java 9.
+         */
+        @SuppressWarnings("unchecked")
+        private static SocketOption<Boolean> findReusePortOption(){
+            try {
+                return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            } catch (NoSuchFieldException | IllegalAccessException ex) {
+                return null;
+            }
+        }
+
+    public void stopRunning(){
+        keepProcessing = false;
+        lobby.wakeup();
+        for(Reactor reactor : reactors)
+            reactor.wakeup();
+        if(spectatorReactor != null)
+            spectatorReactor.wakeup();
+        for(SessionShard sessionShard : sessionShards)
+            sessionShard.reactor.wakeup();
+        if(gameWorkers != null)
+            gameWorkers.shutdown();
+        if(engine != null)
+            engine.shutdown();
+        timer.stop();
+        if(journal != null)
+            journal.stop();
+        unpublishMetrics();
+        eventLog.stop();
+    }
+    
+    public GameMetricsMXBean getMetrics(){
+        return metrics;
+    }
+    
+    /*
+     * Where multiplexed sessions connect, or null until the session reactors run.
+     */
+    public InetSocketAddress getSessionAddress(){
+        return sessionAddress;
+    }
+    
+    /*
+     * Games the journal held open when this server started, rebuilt move by move.
+     */
+    public List<JournaledGame> getRecoveredGames(){
+        return recoveredGames;
+    }
+    
+    /*
+     * Streams the finished games of a journal directory, oldest outcome first; works
+     * on the journal of a running server too.
+     */
+    public static void replayJournal(Path directory, Consumer<JournaledGame> finishedGames) throws IOException{
+        GameJournal.replay(checkNotNull(directory, "Journal directory can't be null"), 
+                           checkNotNull(finishedGames, "Listener can't be null"));
+    }
+    
+    /*
+     * Plays games between two move strategies in this process, with no sockets and no
+     * server running. The configuration's rules, timeouts, event log and journal apply
+     * as they would on a server; its ports and threads are ignored. Returns at once,
+     * and the simulation's results can be read while it runs.
+     */
+    static GameSimulation simulate(Configuration configuration, MoveStrategy crosses, MoveStrategy circles, 
+                                   long games, int parallelism){
+        checkNotNull(crosses, "Strategy of crosses can't be null");
+        checkNotNull(circles, "Strategy of circles can't be null");
+        checkArgument(games > 0, "At least one game must be simulated");
+        checkArgument(parallelism > 0, "At least one simulation thread is required");
+        ServerGomokuGame server = new ServerGomokuGame(configuration, false);
+        GameSimulation simulation = server.new GameSimulation(crosses, circles, games, parallelism);
+        simulation.start();
+        return simulation;
+    }
+    
+    /*
+     * Metrics are always registered over JMX; the Prometheus text endpoint only listens
+     * on loopback and only when a metrics port is configured.
+     */
+    private void publishMetrics(){
+        try {
+            metricsName = new ObjectName("ServerCrossAndCircleGame:type=ServerGomokuGame,port=" + configuration.port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(metrics, GameMetricsMXBean.class, true), metricsName);
+        } catch (JMException ex) {
+            Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if(configuration.metricsPort < 0)
+            return;
+        try {
+            HttpServer endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), configuration.metricsPort), 0);
+            endpoint.createContext("/metrics", exchange -> {
+                byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            endpoint.start();
+            metricsEndpoint = endpoint;
+        } catch (IOException ex) {
+            Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+        private void unpublishMetrics(){
+            if(metricsEndpoint != null)
+                metricsEndpoint.stop(0);
+            try {
+                if(metricsName != null && ManagementFactory.getPlatformMBeanServer().isRegistered(metricsName))
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }    
+        
+    public static final class Configuration{
+        private final int port;
+        private final ExecutionMode executionMode;
+        private final int reactorThreadsAmount;
+        private final int matchmakerThreadsAmount;
+        private final int gameWorkerThreadsAmount;
+        private final GameRules gameRules;
+        private final Set<WireFormat> wireFormats;
+        private final boolean coalesceWrites;
+        private final EventLogLevel eventLogLevel;
+        private final Path eventLogFile;
+        private final long eventLogMaxFileBytes;
+        private final int eventLogFilesKept;
+        private final int metricsPort;
+        private final long moveTimeoutNanos;
+        private final long handshakeTimeoutNanos;
+        private final long idleTimeoutNanos;
+        private final Path journalDirectory;
+        private final long journalCommitIntervalNanos;
+        private final long journalSegmentBytes;
+        private final int journalSegmentsKept;
+        private final int spectatorPort;
+        private final int spectatorBacklogBytes;
+        private final boolean reusePort;
+        private final long lobbyHandoffDelayNanos;
+        private final long botOpponentDelayNanos;
+        private final int botSearchThreadsAmount;
+        private final long botMoveTimeNanos;
+        private final int botTranspositionTableEntries;
+        private final int maxActiveGames;
+        private final int maxWaitingPlayers;
+        private final long turnLatencyTargetNanos;
+        private final long busyRetryAfterNanos;
+        private final int sessionPort;
+        private final int sessionReactorThreadsAmount;
+        private final int maxGamesPerSession;
+        
+        private Configuration(Builder builder){
+            this.port = builder.port;
+            this.executionMode = builder.executionMode;
+            this.reactorThreadsAmount = builder.reactorThreadsAmount;
+            this.matchmakerThreadsAmount = builder.matchmakerThreadsAmount;
+            this.gameWorkerThreadsAmount = builder.gameWorkerThreadsAmount;
+            this.gameRules = builder.gameRules;
+            this.wireFormats = builder.binaryWireFormat ? EnumSet.allOf(WireFormat.class) : EnumSet.of(WireFormat.JSON);
+            this.coalesceWrites = builder.coalesceWrites;
+            this.eventLogLevel = builder.eventLogLevel;
+            this.eventLogFile = builder.eventLogFile;
+            this.eventLogMaxFileBytes = builder.eventLogMaxFileBytes;
+            this.eventLogFilesKept = builder.eventLogFilesKept;
+            this.metricsPort = builder.metricsPort;
+            this.moveTimeoutNanos = builder.moveTimeoutNanos;
+            this.handshakeTimeoutNanos = builder.handshakeTimeoutNanos;
+            this.idleTimeoutNanos = builder.idleTimeoutNanos;
+            this.journalDirectory = builder.journalDirectory;
+            this.journalCommitIntervalNanos = builder.journalCommitIntervalNanos;
+            this.journalSegmentBytes = builder.journalSegmentBytes;
+            this.journalSegmentsKept = builder.journalSegmentsKept;
+            this.spectatorPort = builder.spectatorPort;
+            this.spectatorBacklogBytes = builder.spectatorBacklogBytes;
+            this.reusePort = builder.reusePort;
+            this.lobbyHandoffDelayNanos = builder.lobbyHandoffDelayNanos;
+            this.botOpponentDelayNanos = builder.botOpponentDelayNanos;
+            this.botSearchThreadsAmount = builder.botSearchThreadsAmount;
+            this.botMoveTimeNanos = builder.botMoveTimeNanos;
+            this.botTranspositionTableEntries = builder.botTranspositionTableEntries;
+            this.maxActiveGames = builder.maxActiveGames;
+            this.maxWaitingPlayers = builder.maxWaitingPlayers;
+            this.turnLatencyTargetNanos = builder.turnLatencyTargetNanos;
+            this.busyRetryAfterNanos = builder.busyRetryAfterNanos;
+            this.sessionPort = builder.sessionPort;
+            this.sessionReactorThreadsAmount = builder.sessionReactorThreadsAmount;
+            this.maxGamesPerSession = builder.maxGamesPerSession;
+        }
+        
+        public static Builder builder(){
+            return new Builder();
+        }
+        
+        public static final class Builder{
+            private int port = 2000;
+            private ExecutionMode executionMode = ExecutionMode.THREAD_PER_PLAYER;
+            private int reactorThreadsAmount = Runtime.getRuntime().availableProcessors();
+            private int matchmakerThreadsAmount = 1;
+            private int gameWorkerThreadsAmount = Runtime.getRuntime().availableProcessors();
+            private GameRules gameRules = GameRules.CLASSIC;
+            private boolean binaryWireFormat = true;
+            private boolean coalesceWrites = true;
+            private EventLogLevel eventLogLevel = EventLogLevel.ERRORS;
+            private Path eventLogFile = null;
+            private long eventLogMaxFileBytes = 10 * 1024 * 1024;
+            private int eventLogFilesKept = 5;
+            private int metricsPort = -1;
+            private long moveTimeoutNanos = TimeUnit.MINUTES.toNanos(2);
+            private long handshakeTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+            private long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+            private Path journalDirectory = null;
+            private long journalCommitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+            private long journalSegmentBytes = 64 * 1024 * 1024;
+            private int journalSegmentsKept = 8;
+            private int spectatorPort = -1;
+            private int spectatorBacklogBytes = 64 * 1024;
+            private boolean reusePort = true;
+            private long lobbyHandoffDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+            private long botOpponentDelayNanos = 0;
+            private int botSearchThreadsAmount = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+            private long botMoveTimeNanos = TimeUnit.MILLISECONDS.toNanos(500);
+            private int botTranspositionTableEntries = 1 << 20;
+            private int maxActiveGames = Integer.MAX_VALUE;
+            private int maxWaitingPlayers = 10000;
+            private long turnLatencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(100);
+            private long busyRetryAfterNanos = TimeUnit.SECONDS.toNanos(1);
+            private int sessionPort = -1;
+            private int sessionReactorThreadsAmount = 1;
+            private int maxGamesPerSession = 1000;
+            
+            private Builder(){}
+            
+            public Builder port(int port){
+                checkArgument(port >= 0 && port <= 65535, "Port out of range: %s", port);
+                this.port = port;
+                return this;
+            }
+            
+            public Builder executionMode(ExecutionMode executionMode){
+                this.executionMode = checkNotNull(executionMode, "Execution mode can't be null");
+                return this;
+            }
+            
+            public Builder reactorThreadsAmount(int reactorThreadsAmount){
+                checkArgument(reactorThreadsAmount > 0, "At least one reactor thread is required");
+                this.reactorThreadsAmount = reactorThreadsAmount;
+                return this;
+            }
+            
+            /*
+             * Blocking modes deal accepted connections to this many matchmaker threads
+             * in turn, so pairing proceeds on all of them in parallel; a player left
+             * alone at one of them moves on after lobbyHandoffDelay. NIO_REACTOR mode
+             * runs one matchmaker per reactor shard instead.
+             */
+            public Builder matchmakerThreadsAmount(int matchmakerThreadsAmount){
+                checkArgument(matchmakerThreadsAmount > 0, "At least one matchmaker thread is required");
+                this.matchmakerThreadsAmount = matchmakerThreadsAmount;
+                return this;
+            }
+            
+            /*
+             * Games of the blocking execution modes run their turns on this many shared
+             * threads. A worker never waits on a client: it hands the encoded commands to
+             * the connection's own writer thread, and a client that lets a megabyte of
+             * them pile up unread is dropped.
+             */
+            public Builder gameWorkerThreadsAmount(int gameWorkerThreadsAmount){
+                checkArgument(gameWorkerThreadsAmount > 0, "At least one game worker thread is required");
+                this.gameWorkerThreadsAmount = gameWorkerThreadsAmount;
+                return this;
+            }
+            
+            /*
+             * Lets every NIO_REACTOR shard accept on a listening socket of its own where
+             * SO_REUSEPORT is supported (Java 9+ on Linux and the BSDs). When disabled or
+             * unsupported, shard 0 accepts for all of them.
+             */
+            public Builder reusePort(boolean enabled){
+                this.reusePort = enabled;
+                return this;
+            }
+            
+            /*
+             * How long a player may wait alone at its matchmaker, a NIO_REACTOR shard's
+             * or one of several in the blocking modes, before it moves to the first one
+             * to meet players of the others. 0 keeps players where they joined, which
+             * only suits clients that connect in pairs per matchmaker.
+             */
+            public Builder lobbyHandoffDelay(long delay, TimeUnit unit){
+                this.lobbyHandoffDelayNanos = toTimeoutNanos(delay, unit);
+                return this;
+            }
+            
+            /*
+             * A player left alone in the lobby this long plays the server's engine
+             * instead, as O. 0 (the default) disables the engine.
+             */
+            public Builder botOpponent(long delay, TimeUnit unit){
+                this.botOpponentDelayNanos = toTimeoutNanos(delay, unit);
+                return this;
+            }
+            
+            /*
+             * The engine never searches on more threads than this, whatever the amount
+             * of bot games, so the rest of the cores stay with the human sessions.
+             */
+            public Builder botSearchThreadsAmount(int botSearchThreadsAmount){
+                checkArgument(botSearchThreadsAmount > 0, "At least one bot search thread is required");
+                this.botSearchThreadsAmount = botSearchThreadsAmount;
+                return this;
+            }
+            
+            /*
+             * Time from the bot's NEW_MOVE to its answer, waiting for a search thread
+             * included. Only the first ply of the search may overrun it.
+             */
+            public Builder botMoveTime(long moveTime, TimeUnit unit){
+                checkArgument(moveTime > 0, "Bot move time must be positive");
+                this.botMoveTimeNanos = checkNotNull(unit, "Time unit can't be null").toNanos(moveTime);
+                return this;
+            }
+            
+            /*
+             * Rounded down to a power of two; each entry takes 16 bytes.
+             */
+            public Builder botTranspositionTableEntries(int entries){
+                checkArgument(entries >= 2, "Transposition table needs at least two entries");
+                this.botTranspositionTableEntries = entries;
+                return this;
+            }
+            
+            /*
+             * Connections that would take the server past either limit are answered
+             * SERVER_BUSY and closed instead of joining the lobby. A waiting player
+             * counts as half a game, since it starts one with its partner.
+             */
+            public Builder admissionLimits(int maxActiveGames, int maxWaitingPlayers){
+                checkArgument(maxActiveGames > 0, "At least one game must be admitted");
+                checkArgument(maxWaitingPlayers > 0, "At least one waiting player must be admitted");
+                this.maxActiveGames = maxActiveGames;
+                this.maxWaitingPlayers = maxWaitingPlayers;
+                return this;
+            }
+            
+            /*
+             * p99 of the server's own part of a turn, from the move's frame arriving to
+             * the answers being flushed, that running games are kept under by admitting
+             * fewer games. 0 disables the adaptation and only admissionLimits apply.
+             */
+            public Builder turnLatencyTarget(long target, TimeUnit unit){
+                this.turnLatencyTargetNanos = toTimeoutNanos(target, unit);
+                return this;
+            }
+            
+            /*
+             * Sent with SERVER_BUSY as the milliseconds to wait before reconnecting,
+             * with up to half of it again added at random so that rejected clients
+             * don't all come back at once.
+             */
+            public Builder busyRetryAfter(long retryAfter, TimeUnit unit){
+                checkArgument(retryAfter > 0, "Retry delay must be positive");
+                this.busyRetryAfterNanos = checkNotNull(unit, "Time unit can't be null").toNanos(retryAfter);
+                return this;
+            }
+            
+            public Builder gameRules(GameRules gameRules){
+                this.gameRules = checkNotNull(gameRules, "Game rules can't be null");
+                return this;
+            }
+            
+            /*
+             * JSON is always offered so old clients keep working; this only controls
+             * whether BINARY is advertised in YOU_ARE_CONNECTED and accepted in USE_CODEC.
+             */
+            public Builder binaryWireFormat(boolean enabled){
+                this.binaryWireFormat = enabled;
+                return this;
+            }
+            
+            /*
+             * When enabled, commands produced while handling one game event are buffered
+             * and written together at the turn boundary, with Nagle's algorithm off since
+             * every write is already a complete batch. When disabled every command is
+             * written on its own, as the original server did.
+             */
+            public Builder coalesceWrites(boolean enabled){
+                this.coalesceWrites = enabled;
+                return this;
+            }
+            
+            /*
+             * Off by default, when the server keeps no event log at all. COMMANDS traces
+             * every message in and out; production servers usually want GAMES, which
+             * keeps game start, end and error events only.
+             */
+            public Builder eventLog(Path file, EventLogLevel level){
+                this.eventLogFile = checkNotNull(file, "Event log file can't be null");
+                this.eventLogLevel = checkNotNull(level, "Event log level can't be null");
+                return this;
+            }
+            
+            public Builder eventLogRotation(long maxFileBytes, int filesKept){
+                checkArgument(maxFileBytes > 0, "Event log file size must be positive");
+                checkArgument(filesKept >= 0, "Amount of kept event log files can't be negative");
+                this.eventLogMaxFileBytes = maxFileBytes;
+                this.eventLogFilesKept = filesKept;
+                return this;
+            }
+            
+            /*
+             * Serves GET /metrics in Prometheus text format on the loopback interface;
+             * 0 picks a free port, -1 (the default) disables the endpoint.
+             */
+            public Builder metricsPort(int metricsPort){
+                checkArgument(metricsPort >= -1 && metricsPort <= 65535, "Metrics port out of range: %s", metricsPort);
+                this.metricsPort = metricsPort;
+                return this;
+            }
+            
+            /*
+             * A player that doesn't answer NEW_MOVE in time forfeits the game; incorrect
+             * moves don't extend the deadline. 0 disables it.
+             */
+            public Builder moveTimeout(long timeout, TimeUnit unit){
+                this.moveTimeoutNanos = toTimeoutNanos(timeout, unit);
+                return this;
+            }
+            
+            /*
+             * Deadline of each player's first move, which also covers wire format
+             * negotiation. 0 disables it.
+             */
+            public Builder handshakeTimeout(long timeout, TimeUnit unit){
+                this.handshakeTimeoutNanos = toTimeoutNanos(timeout, unit);
+                return this;
+            }
+            
+            /*
+             * Connections waiting in the lobby longer than this are closed. 0 disables it.
+             */
+            public Builder idleTimeout(long timeout, TimeUnit unit){
+                this.idleTimeoutNanos = toTimeoutNanos(timeout, unit);
+                return this;
+            }
+            
+            /*
+             * Journals every game start, accepted move and outcome into directory, so open
+             * games can be rebuilt after a crash and finished ones replayed. Off by default.
+             */
+            public Builder journal(Path directory){
+                this.journalDirectory = checkNotNull(directory, "Journal directory can't be null");
+                return this;
+            }
+            
+            /*
+             * Appended records survive a crash of the process right away; this is how
+             * long they may wait to be forced to disk against an OS crash or power loss.
+             */
+            public Builder journalGroupCommit(long interval, TimeUnit unit){
+                checkArgument(interval > 0, "Journal commit interval must be positive");
+                this.journalCommitIntervalNanos = checkNotNull(unit, "Time unit can't be null").toNanos(interval);
+                return this;
+            }
+            
+            public Builder journalSegments(long segmentBytes, int segmentsKept){
+                checkArgument(segmentBytes >= GameJournal.RECORD_BYTES && segmentBytes <= Integer.MAX_VALUE, 
+                              "Journal segment size out of range: %s", segmentBytes);
+                checkArgument(segmentsKept > 0, "At least one journal segment must be kept");
+                this.journalSegmentBytes = segmentBytes;
+                this.journalSegmentsKept = segmentsKept;
+                return this;
+            }
+            
+            /*
+             * Spectators connect here and send WATCH with a game id, or LATEST for the
+             * game started last; 0 picks a free port, -1 (the default) disables them.
+             */
+            public Builder spectatorPort(int spectatorPort){
+                checkArgument(spectatorPort >= -1 && spectatorPort <= 65535, "Spectator port out of range: %s", spectatorPort);
+                this.spectatorPort = spectatorPort;
+                return this;
+            }
+            
+            /*
+             * Clients playing many games at once connect here and multiplex all of them
+             * over a single session; 0 picks a free port, -1 (the default) disables
+             * sessions.
+             */
+            public Builder sessionPort(int sessionPort){
+                checkArgument(sessionPort >= -1 && sessionPort <= 65535, "Session port out of range: %s", sessionPort);
+                this.sessionPort = sessionPort;
+                return this;
+            }
+            
+            /*
+             * Seats are only paired with seats of sessions on the same reactor, so more
+             * than one pays off only with many sessions.
+             */
+            public Builder sessionReactorThreadsAmount(int sessionReactorThreadsAmount){
+                checkArgument(sessionReactorThreadsAmount > 0, "At least one session reactor thread is needed");
+                this.sessionReactorThreadsAmount = sessionReactorThreadsAmount;
+                return this;
+            }
+            
+            /*
+             * Games a session may be playing or waiting for at once; PLAY beyond it is
+             * answered SERVER_BUSY.
+             */
+            public Builder maxGamesPerSession(int maxGamesPerSession){
+                checkArgument(maxGamesPerSession > 0, "Sessions must be allowed at least one game");
+                this.maxGamesPerSession = maxGamesPerSession;
+                return this;
+            }
+            
+            /*
+             * A spectator whose socket is full while it's more than this many bytes
+             * behind its game is disconnected.
+             */
+            public Builder spectatorBacklog(int backlogBytes){
+                checkArgument(backlogBytes > 0, "Spectator backlog must be positive");
+                this.spectatorBacklogBytes = backlogBytes;
+                return this;
+            }
+            
+                private static long toTimeoutNanos(long timeout, TimeUnit unit){
+                    checkArgument(timeout >= 0, "Timeout can't be negative");
+                    return checkNotNull(unit, "Time unit can't be null").toNanos(timeout);
+                }
+            
+            public Configuration build(){
+                return new Configuration(this);
+            }
+        }
+    }
+    
+    /*
+     * Board rows are letters starting from A and columns are numbers starting from 0,
+     * so a 15 board spans A0-O14 and a 19 board A0-S18. With overlineWins a run longer
+     * than symbolsForVictory still wins; without it only an exact run does (exact five).
+     */
+    public static final class GameRules{
+        public static final GameRules CLASSIC = new GameRules(10, 3, true);
+        public static final GameRules FREESTYLE_GOMOKU = new GameRules(15, 5, true);
+        public static final GameRules STANDARD_GOMOKU = new GameRules(15, 5, false);
+        private final int boardSize;
+        private final int symbolsForVictory;
+        private final boolean overlineWins;
+        
+        private GameRules(int boardSize, int symbolsForVictory, boolean overlineWins){
+            this.boardSize = boardSize;
+            this.symbolsForVictory = symbolsForVictory;
+            this.overlineWins = overlineWins;
+        }
+        
+        public static GameRules of(int boardSize, int symbolsForVictory, boolean overlineWins){
+            checkArgument(boardSize > 0 && boardSize <= GameBoard.MAX_SIZE, 
+                          "Board size must be between 1 and %s", GameBoard.MAX_SIZE);
+            checkArgument(symbolsForVictory > 0 && symbolsForVictory <= boardSize, 
+                          "Symbols for victory must be between 1 and board size");
+            return new GameRules(boardSize, symbolsForVictory, overlineWins);
+        }
+        
+        public int getBoardSize(){
+            return boardSize;
+        }
+        
+        public int getSymbolsForVictory(){
+            return symbolsForVictory;
+        }
+        
+        public boolean isOverlineWinning(){
+            return overlineWins;
+        }
+        
+        public boolean isWinningRun(int sameSymbolsAmount){
+            return overlineWins ? sameSymbolsAmount >= symbolsForVictory : sameSymbolsAmount == symbolsForVictory;
+        }
+        
+        @Override
+        public boolean equals(Object other){
+            if(!(other instanceof GameRules))
+                return false;
+            GameRules rules = (GameRules) other;
+            return boardSize == rules.boardSize && symbolsForVictory == rules.symbolsForVictory 
+                   && overlineWins == rules.overlineWins;
+        }
+        
+        @Override
+        public int hashCode(){
+            return (boardSize * 31 + symbolsForVictory) * 2 + (overlineWins ? 1 : 0);
+        }
+        
+        @Override
+        public String toString(){
+            return boardSize + "x" + boardSize + (overlineWins ? "/" : "/exactly ") + symbolsForVictory;
+        }
+    }
+        
+
+    /*
+     * Kinds of game events, each with the least verbose level that still records it.
+     */
+    private static enum EventType{
+        SERVER_STARTED(EventLogLevel.GAMES),
+        PLAYER_LEFT_LOBBY(EventLogLevel.GAMES),
+        PLAYERS_PAIRED(EventLogLevel.GAMES),
+        PLAYER_PAIRED_WITH_BOT(EventLogLevel.GAMES),
+        ADMISSION_LIMIT_CHANGED(EventLogLevel.GAMES),
+        GAME_STARTED(EventLogLevel.GAMES),
+        GAME_WON(EventLogLevel.GAMES),
+        GAME_FORFEITED(EventLogLevel.GAMES),
+        GAME_RECOVERED(EventLogLevel.GAMES),
+        GAME_CLOSED(EventLogLevel.GAMES),
+        SPECTATOR_JOINED(EventLogLevel.GAMES),
+        SPECTATOR_LEFT(EventLogLevel.GAMES),
+        SESSION_OPENED(EventLogLevel.GAMES),
+        SESSION_CLOSED(EventLogLevel.GAMES),
+        COMMAND_SENT(EventLogLevel.COMMANDS),
+        COMMAND_RECEIVED(EventLogLevel.COMMANDS),
+        ERROR(EventLogLevel.ERRORS);
+        
+        private final EventLogLevel level;
+        
+        private EventType(EventLogLevel level){
+            this.level = level;
+        }
+    }
+    
+    /*
+     * Game threads append fixed-size records to a bounded lock-free ring (Vyukov's
+     * bounded queue drained by a single consumer) and never block on it: when the ring
+     * is full the event is only counted as dropped. A daemon thread drains the ring in
+     * batches and appends the formatted records to a file that is rotated after
+     * maxFileBytes, keeping filesKept older files as file.1 ... file.N. Without a file
+     * nothing is recorded and no thread is started.
+     */
+    private static final class EventLog implements Runnable{
+        public static final char NO_PLAYER = '-';
+        private static final int CAPACITY = 1 << 16;
+        private static final int MAX_BATCH = 1024;
+        private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private final EventLogLevel level;
+        private final Path file;
+        private final long maxFileBytes;
+        private final int filesKept;
+        private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+        private final long[] nanoTimes = new long[CAPACITY];
+        private final EventType[] types = new EventType[CAPACITY];
+        private final int[] gameIds = new int[CAPACITY];
+        private final char[] players = new char[CAPACITY];
+        private final Enum<?>[] verbs = new Enum<?>[CAPACITY];
+        private final Object[] details = new Object[CAPACITY];
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong droppedEvents = new AtomicLong();
+        private final long startEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        private final long startNanos = System.nanoTime();
+        private final StringBuilder text = new StringBuilder();
+        private long head = 0;
+        private FileChannel channel;
+        private long fileBytes;
+        private volatile boolean running = true;
+        
+        public EventLog(EventLogLevel level, Path file, long maxFileBytes, int filesKept){
+            this.level = level;
+            this.file = file;
+            this.maxFileBytes = maxFileBytes;
+            this.filesKept = filesKept;
+            for(int slot = 0; slot < CAPACITY; slot++)
+                sequences.set(slot, slot);
+        }
+        
+        public void start(){
+            if(file == null)
+                return;
+            Thread writer = new Thread(this, "gomoku-event-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        
+        /*
+         * The writer drains what is already recorded before it closes the file.
+         */
+        public void stop(){
+            running = false;
+        }
+        
+        public void record(EventType type, Object detail){
+            record(type, 0, NO_PLAYER, null, detail);
+        }
+        
+        /*
+         * Details are formatted later on the writer thread, so they must not change
+         * once recorded.
+         */
+        public void record(EventType type, int gameId, char player, Enum<?> verb, Object detail){
+            if(!isRecorded(type))
+                return;
+            long position;
+            int slot;
+            while(true){
+                position = tail.get();
+                slot = (int) position & (CAPACITY - 1);
+                long sequence = sequences.get(slot);
+                if(sequence < position){
+                    droppedEvents.incrementAndGet();
+                    return;
+                }
+                if(sequence == position && tail.compareAndSet(position, position + 1))
+                    break;
+            }
+            nanoTimes[slot] = System.nanoTime();
+            types[slot] = type;
+            gameIds[slot] = gameId;
+            players[slot] = player;
+            verbs[slot] = verb;
+            details[slot] = detail;
+            sequences.lazySet(slot, position + 1);
+        }
+        
+        /*
+         * Copies the values, which their command may still reuse, only when the event
+         * is recorded at all.
+         */
+        public void recordValues(EventType type, int gameId, char player, Enum<?> verb, List<String> values){
+            if(isRecorded(type))
+                record(type, gameId, player, verb, values.isEmpty() ? null : new ArrayList<>(values));
+        }
+        
+        public boolean isRecorded(EventType type){
+            return file != null && type.level.compareTo(level) <= 0;
+        }
+        
+        @Override
+        public void run(){
+            try {
+                openFile();
+                while(running)
+                    if(drainBatch() == 0)
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                while(drainBatch() > 0);
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                try {
+                    if(channel != null)
+                        channel.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        
+            private int drainBatch() throws IOException{
+                long dropped = droppedEvents.getAndSet(0);
+                if(dropped > 0)
+                    text.append(Instant.now()).append(" EVENTS_DROPPED ").append(dropped).append('\n');
+                int drained = 0;
+                while(drained < MAX_BATCH){
+                    int slot = (int) head & (CAPACITY - 1);
+                    if(sequences.get(slot) != head + 1)
+                        break;
+                    format(slot);
+                    verbs[slot] = null;
+                    details[slot] = null;
+                    sequences.lazySet(slot, head + CAPACITY);
+                    head++;
+                    drained++;
+                }
+                if(text.length() > 0)
+                    write();
+                return drained;
+            }
+            
+            private void format(int slot){
+                long epochNanos = startEpochNanos + nanoTimes[slot] - startNanos;
+                text.append(Instant.ofEpochSecond(0, epochNanos)).append(' ').append(types[slot]);
+                if(gameIds[slot] != 0)
+                    text.append(" game=").append(gameIds[slot]);
+                if(players[slot] != NO_PLAYER)
+                    text.append(" player=").append(players[slot]);
+                if(verbs[slot] != null)
+                    text.append(' ').append(verbs[slot]);
+                if(details[slot] != null)
+                    text.append(' ').append(details[slot]);
+                text.append('\n');
+            }
+            
+            private void write() throws IOException{
+                ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                text.setLength(0);
+                if(fileBytes > 0 && fileBytes + bytes.remaining() > maxFileBytes)
+                    rotate();
+                while(bytes.hasRemaining())
+                    fileBytes += channel.write(bytes);
+            }
+            
+            private void rotate() throws IOException{
+                channel.close();
+                for(int i = filesKept - 1; i >= 1; i--){
+                    Path olderFile = getRotatedFile(i);
+                    if(Files.exists(olderFile))
+                        Files.move(olderFile, getRotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+                if(filesKept > 0)
+                    Files.move(file, getRotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+                else
+                    Files.delete(file);
+                openFile();
+            }
+            
+            private Path getRotatedFile(int index){
+                return file.resolveSibling(file.getFileName() + "." + index);
+            }
+            
+            private void openFile() throws IOException{
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                fileBytes = channel.size();
+            }
+    }
+    
+    /*
+     * Management view of GameMetrics. Latency attributes map "count", "p50", "p90",
+     * "p99", "p999" and "max" to microseconds.
+     */
+    public interface GameMetricsMXBean{
+        public long getActiveConnections();
+        public long getActiveGames();
+        public long getConnectionsAccepted();
+        public long getGamesStarted();
+        public long getGamesFinished();
+        public long getGamesForfeited();
+        public long getIdleConnectionsClosed();
+        public long getActiveSpectators();
+        public long getSpectatorsDropped();
+        public long getActiveSessions();
+        public long getSessionGamesStarted();
+        public Map<String, Long> getShardConnectionsAccepted();
+        public Map<String, Long> getShardGamesStarted();
+        public Map<String, Long> getShardActiveGames();
+        public Map<String, Long> getShardPlayersHandedOff();
+        public double getGamesStartedPerSecond();
+        public double getGamesFinishedPerSecond();
+        public long getMovesReceived();
+        public long getIncorrectMoves();
+        public double getIncorrectMovesPerSecond();
+        public long getProtocolViolations();
+        public Map<String, Long> getLobbyWaitMicros();
+        public Map<String, Long> getHandshakeMicros();
+        public Map<String, Long> getTurnRoundTripMicros();
+        public Map<String, Long> getMoveProcessingMicros();
+        public long getConnectionsRejected();
+        public long getActiveGamesLimit();
+        public Map<String, Long> getServerTurnMicros();
+        public long getBotGamesStarted();
+        public long getBotNodesSearched();
+        public Map<String, Long> getBotSearchMicros();
+        public long getFrameBuffersLent();
+        public long getFrameBuffersAllocated();
+        public long getFrameBufferBytesPooled();
+        public long getGameWriteCalls();
+        public long getGameReadCalls();
+        public long getGamePackets();
+        public long getGameBytesWritten();
+    }
+    
+    /*
+     * Counters and latency histograms of the whole session lifecycle. Recording is a
+     * LongAdder or AtomicLongArray increment and never allocates, so it stays on in
+     * production; rates and percentiles are only computed when read.
+     */
+    private static final class GameMetrics implements GameMetricsMXBean{
+        private final LongAdder activeConnections = new LongAdder();
+        private final LongAdder activeGames = new LongAdder();
+        private final LongAdder connectionsAccepted = new LongAdder();
+        private final LongAdder movesReceived = new LongAdder();
+        private final LongAdder incorrectMoves = new LongAdder();
+        private final LongAdder protocolViolations = new LongAdder();
+        private final LongAdder gamesForfeited = new LongAdder();
+        private final LongAdder idleConnectionsClosed = new LongAdder();
+        private final LongAdder activeSpectators = new LongAdder();
+        private final LongAdder spectatorsDropped = new LongAdder();
+        private final LongAdder activeSessions = new LongAdder();
+        private final LongAdder sessionGamesStarted = new LongAdder();
+        private final RateMeter gamesStarted = new RateMeter();
+        private final RateMeter gamesFinished = new RateMeter();
+        private final RateMeter incorrectMovesRate = new RateMeter();
+        private final LatencyHistogram lobbyWait = new LatencyHistogram();
+        private final LatencyHistogram handshake = new LatencyHistogram();
+        private final LatencyHistogram turnRoundTrip = new LatencyHistogram();
+        private final LatencyHistogram moveProcessing = new LatencyHistogram();
+        private final LongAdder connectionsRejected = new LongAdder();
+        private final LatencyHistogram serverTurn = new LatencyHistogram();
+        private final IntervalRecorder intervalServerTurn = new IntervalRecorder();
+        private volatile long activeGamesLimit = Integer.MAX_VALUE;
+        private final LongAdder botGamesStarted = new LongAdder();
+        private final LongAdder botNodesSearched = new LongAdder();
+        private final LatencyHistogram botSearch = new LatencyHistogram();
+        private final LongAdder frameBuffersLent = new LongAdder();
+        private final LongAdder frameBuffersAllocated = new LongAdder();
+        private final LongAdder frameBufferBytesPooled = new LongAdder();
+        private final LongAdder gameWriteCalls = new LongAdder();
+        private final LongAdder gameReadCalls = new LongAdder();
+        private final LongAdder gamePackets = new LongAdder();
+        private final LongAdder gameBytesWritten = new LongAdder();
+        private volatile ShardLoad[] shards = new ShardLoad[0];
+        
+        public void createShards(int shardsAmount){
+            ShardLoad[] newShards = new ShardLoad[shardsAmount];
+            for(int i = 0; i < shardsAmount; i++)
+                newShards[i] = new ShardLoad();
+            shards = newShards;
+        }
+        
+        public ShardLoad getShard(int shard){
+            return shards[shard];
+        }
+        
+        public void connectionAccepted(){
+            connectionsAccepted.increment();
+            activeConnections.increment();
+        }
+        
+        public void connectionClosed(){
+            activeConnections.decrement();
+        }
+        
+        public void playerPaired(long waitNanos){
+            lobbyWait.record(waitNanos);
+        }
+        
+        public void gameStarted(){
+            gamesStarted.mark();
+            activeGames.increment();
+        }
+        
+        public void handshakeFinished(long handshakeNanos){
+            handshake.record(handshakeNanos);
+        }
+        
+        public void moveReceived(long roundTripNanos){
+            movesReceived.increment();
+            turnRoundTrip.record(roundTripNanos);
+        }
+        
+        public void incorrectMove(){
+            incorrectMoves.increment();
+            incorrectMovesRate.mark();
+        }
+        
+        public void moveProcessed(long processingNanos){
+            moveProcessing.record(processingNanos);
+        }
+        
+        public void protocolViolation(){
+            protocolViolations.increment();
+        }
+        
+        public void gameForfeited(){
+            gamesForfeited.increment();
+        }
+        
+        public void idleConnectionClosed(){
+            idleConnectionsClosed.increment();
+        }
+        
+        public void gameFinished(){
+            gamesFinished.mark();
+            activeGames.decrement();
+        }
+        
+        public void connectionRejected(){
+            connectionsRejected.increment();
+        }
+        
+        public void activeGamesLimitChanged(long limit){
+            activeGamesLimit = limit;
+        }
+        
+        /*
+         * The server's own part of a turn, from the move's frame arriving to the
+         * answers being flushed, queueing behind other sessions included.
+         */
+        public void turnServed(long nanos){
+            serverTurn.record(nanos);
+            intervalServerTurn.record(nanos);
+        }
+        
+        /*
+         * Returns the server turn latencies recorded since the previous call.
+         */
+        public LatencyHistogram swapIntervalServerTurn(){
+            return intervalServerTurn.swapInterval();
+        }
+        
+        public void botGameStarted(){
+            botGamesStarted.increment();
+        }
+        
+        public void botMoveChosen(long searchNanos, long nodes){
+            botSearch.record(searchNanos);
+            botNodesSearched.add(nodes);
+        }
+        
+        public void spectatorJoined(){
+            activeSpectators.increment();
+        }
+        
+        public void spectatorLeft(boolean dropped){
+            activeSpectators.decrement();
+            if(dropped)
+                spectatorsDropped.increment();
+        }
+        
+        public void sessionOpened(){
+            activeSessions.increment();
+        }
+        
+        public void sessionClosed(){
+            activeSessions.decrement();
+        }
+        
+        public void sessionGameStarted(){
+            sessionGamesStarted.increment();
+        }
+        
+        public void frameBufferLent(int bytes, boolean allocated){
+            frameBuffersLent.increment();
+            if(allocated)
+                frameBuffersAllocated.increment();
+            else
+                frameBufferBytesPooled.add(-bytes);
+        }
+        
+        public void frameBufferPooled(int bytes){
+            frameBufferBytesPooled.add(bytes);
+        }
+        
+        /*
+         * Adds the traffic of one player's connection once its game closed; divided by
+         * the games finished, the totals give the syscalls and packets a game costs.
+         */
+        public void gameTransportClosed(TransportStatistics statistics){
+            gameWriteCalls.add(statistics.writeCalls.sum());
+            gameReadCalls.add(statistics.readCalls.sum());
+            gamePackets.add(statistics.packets.sum());
+            gameBytesWritten.add(statistics.bytes.sum());
+        }
+        
+        @Override
+        public long getActiveConnections(){
+            return activeConnections.sum();
+        }
+        
+        @Override
+        public long getActiveGames(){
+            return activeGames.sum();
+        }
+        
+        @Override
+        public long getConnectionsAccepted(){
+            return connectionsAccepted.sum();
+        }
+        
+        @Override
+        public long getGamesStarted(){
+            return gamesStarted.getCount();
+        }
+        
+        @Override
+        public long getGamesFinished(){
+            return gamesFinished.getCount();
+        }
+        
+        @Override
+        public long getGamesForfeited(){
+            return gamesForfeited.sum();
+        }
+        
+        @Override
+        public long getIdleConnectionsClosed(){
+            return idleConnectionsClosed.sum();
+        }
+        
+        @Override
+        public long getActiveSpectators(){
+            return activeSpectators.sum();
+        }
+        
+        @Override
+        public long getSpectatorsDropped(){
+            return spectatorsDropped.sum();
+        }
+        
+        @Override
+        public long getActiveSessions(){
+            return activeSessions.sum();
+        }
+        
+        @Override
+        public long getSessionGamesStarted(){
+            return sessionGamesStarted.sum();
+        }
+        
+        @Override
+        public Map<String, Long> getShardConnectionsAccepted(){
+            return getShardValues(shard -> shard.connectionsAccepted);
+        }
+        
+        @Override
+        public Map<String, Long> getShardGamesStarted(){
+            return getShardValues(shard -> shard.gamesStarted);
+        }
+        
+        @Override
+        public Map<String, Long> getShardActiveGames(){
+            return getShardValues(shard -> shard.activeGames);
+        }
+        
+        @Override
+        public Map<String, Long> getShardPlayersHandedOff(){
+            return getShardValues(shard -> shard.playersHandedOff);
+        }
+        
+            private Map<String, Long> getShardValues(Function<ShardLoad, LongAdder> counter){
+                Map<String, Long> values = new LinkedHashMap<>();
+                ShardLoad[] currentShards = shards;
+                for(int i = 0; i < currentShards.length; i++)
+                    values.put("shard-" + i, counter.apply(currentShards[i]).sum());
+                return values;
+            }
+        
+        @Override
+        public double getGamesStartedPerSecond(){
+            return gamesStarted.getRate();
+        }
+        
+        @Override
+        public double getGamesFinishedPerSecond(){
+            return gamesFinished.getRate();
+        }
+        
+        @Override
+        public long getMovesReceived(){
+            return movesReceived.sum();
+        }
+        
+        @Override
+        public long getIncorrectMoves(){
+            return incorrectMoves.sum();
+        }
+        
+        @Override
+        public double getIncorrectMovesPerSecond(){
+            return incorrectMovesRate.getRate();
+        }
+        
+        @Override
+        public long getProtocolViolations(){
+            return protocolViolations.sum();
+        }
+        
+        @Override
+        public Map<String, Long> getLobbyWaitMicros(){
+            return lobbyWait.getSummaryMicros();
+        }
+        
+        @Override
+        public Map<String, Long> getHandshakeMicros(){
+            return handshake.getSummaryMicros();
+        }
+        
+        @Override
+        public Map<String, Long> getTurnRoundTripMicros(){
+            return turnRoundTrip.getSummaryMicros();
+        }
+        
+        @Override
+        public Map<String, Long> getMoveProcessingMicros(){
+            return moveProcessing.getSummaryMicros();
+        }
+        
+        @Override
+        public long getConnectionsRejected(){
+            return connectionsRejected.sum();
+        }
+        
+        @Override
+        public long getActiveGamesLimit(){
+            return activeGamesLimit;
+        }
+        
+        @Override
+        public Map<String, Long> getServerTurnMicros(){
+            return serverTurn.getSummaryMicros();
+        }
+        
+        @Override
+        public long getBotGamesStarted(){
+            return botGamesStarted.sum();
+        }
+        
+        @Override
+        public long getBotNodesSearched(){
+            return botNodesSearched.sum();
+        }
+        
+        @Override
+        public Map<String, Long> getBotSearchMicros(){
+            return botSearch.getSummaryMicros();
+        }
+        
+        @Override
+        public long getFrameBuffersLent(){
+            return frameBuffersLent.sum();
+        }
+        
+        @Override
+        public long getFrameBuffersAllocated(){
+            return frameBuffersAllocated.sum();
+        }
+        
+        @Override
+        public long getFrameBufferBytesPooled(){
+            return frameBufferBytesPooled.sum();
+        }
+        
+        @Override
+        public long getGameWriteCalls(){
+            return gameWriteCalls.sum();
+        }
+        
+        @Override
+        public long getGameReadCalls(){
+            return gameReadCalls.sum();
+        }
+        
+        @Override
+        public long getGamePackets(){
+            return gamePackets.sum();
+        }
+        
+        @Override
+        public long getGameBytesWritten(){
+            return gameBytesWritten.sum();
+        }
+        
+        /*
+         * Prometheus text exposition format, version 0.0.4.
+         */
+        public String toPrometheusText(){
+            StringBuilder text = new StringBuilder();
+            appendMetric(text, "gomoku_active_connections", "gauge", getActiveConnections());
+            appendMetric(text, "gomoku_active_games", "gauge", getActiveGames());
+            appendMetric(text, "gomoku_connections_accepted_total", "counter", getConnectionsAccepted());
+            appendMetric(text, "gomoku_games_started_total", "counter", getGamesStarted());
+            appendMetric(text, "gomoku_games_finished_total", "counter", getGamesFinished());
+            appendMetric(text, "gomoku_games_forfeited_total", "counter", getGamesForfeited());
+            appendMetric(text, "gomoku_idle_connections_closed_total", "counter", getIdleConnectionsClosed());
+            appendMetric(text, "gomoku_active_spectators", "gauge", getActiveSpectators());
+            appendMetric(text, "gomoku_spectators_dropped_total", "counter", getSpectatorsDropped());
+            appendMetric(text, "gomoku_active_sessions", "gauge", getActiveSessions());
+            appendMetric(text, "gomoku_session_games_started_total", "counter", getSessionGamesStarted());
+            appendMetric(text, "gomoku_moves_received_total", "counter", getMovesReceived());
+            appendMetric(text, "gomoku_incorrect_moves_total", "counter", getIncorrectMoves());
+            appendMetric(text, "gomoku_protocol_violations_total", "counter", getProtocolViolations());
+            lobbyWait.appendPrometheusSummary(text, "gomoku_lobby_wait_seconds");
+            handshake.appendPrometheusSummary(text, "gomoku_handshake_seconds");
+            turnRoundTrip.appendPrometheusSummary(text, "gomoku_turn_round_trip_seconds");
+            moveProcessing.appendPrometheusSummary(text, "gomoku_move_processing_seconds");
+            appendMetric(text, "gomoku_connections_rejected_total", "counter", getConnectionsRejected());
+            appendMetric(text, "gomoku_active_games_limit", "gauge", getActiveGamesLimit());
+            serverTurn.appendPrometheusSummary(text, "gomoku_server_turn_seconds");
+            appendMetric(text, "gomoku_bot_games_started_total", "counter", getBotGamesStarted());
+            appendMetric(text, "gomoku_bot_nodes_searched_total", "counter", getBotNodesSearched());
+            botSearch.appendPrometheusSummary(text, "gomoku_bot_search_seconds");
+            appendMetric(text, "gomoku_frame_buffers_lent_total", "counter", getFrameBuffersLent());
+            appendMetric(text, "gomoku_frame_buffers_allocated_total", "counter", getFrameBuffersAllocated());
+            appendMetric(text, "gomoku_frame_buffer_pooled_bytes", "gauge", getFrameBufferBytesPooled());
+            appendMetric(text, "gomoku_game_write_syscalls_total", "counter", getGameWriteCalls());
+            appendMetric(text, "gomoku_game_read_syscalls_total", "counter", getGameReadCalls());
+            appendMetric(text, "gomoku_game_packets_total", "counter", getGamePackets());
+            appendMetric(text, "gomoku_game_written_bytes_total", "counter", getGameBytesWritten());
+            appendShardMetric(text, "gomoku_shard_connections_accepted_total", "counter", getShardConnectionsAccepted());
+            appendShardMetric(text, "gomoku_shard_games_started_total", "counter", getShardGamesStarted());
+            appendShardMetric(text, "gomoku_shard_active_games", "gauge", getShardActiveGames());
+            appendShardMetric(text, "gomoku_shard_players_handed_off_total", "counter", getShardPlayersHandedOff());
+            return text.toString();
+        }
+        
+            private void appendMetric(StringBuilder text, String name, String type, long value){
+                text.append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                    .append(name).append(' ').append(value).append('\n');
+            }
+            
+            private void appendShardMetric(StringBuilder text, String name, String type, Map<String, Long> values){
+                if(values.isEmpty())
+                    return;
+                text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                for(Map.Entry<String, Long> value : values.entrySet())
+                    text.append(name).append("{shard=\"").append(value.getKey().substring("shard-".length())).append("\"} ")
+                        .append(value.getValue()).append('\n');
+            }
+    }
+    
+    /*
+     * Load of one NIO_REACTOR shard. Each counter is only updated by the shard's own
+     * reactor and matchmaker threads.
+     */
+    private static final class ShardLoad{
+        private final LongAdder connectionsAccepted = new LongAdder();
+        private final LongAdder gamesStarted = new LongAdder();
+        private final LongAdder activeGames = new LongAdder();
+        private final LongAdder playersHandedOff = new LongAdder();
+        
+        public void connectionAccepted(){
+            connectionsAccepted.increment();
+        }
+        
+        public void gameStarted(){
+            gamesStarted.increment();
+            activeGames.increment();
+        }
+        
+        public void gameFinished(){
+            activeGames.decrement();
+        }
+        
+        public void playerHandedOff(){
+            playersHandedOff.increment();
+        }
+    }
+    
+    /*
+     * Event count with its average rate over the last RATE_WINDOW_SECONDS complete
+     * seconds, kept in per-second slots that are reused round robin.
+     */
+    private static final class RateMeter{
+        private static final int SLOTS = 16;
+        private static final int RATE_WINDOW_SECONDS = 10;
+        private final LongAdder count = new LongAdder();
+        private final AtomicLongArray slotCounts = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+        
+        public void mark(){
+            count.increment();
+            long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            int slot = (int) (second & (SLOTS - 1));
+            long slotSecond = slotSeconds.get(slot);
+            if(slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second))
+                slotCounts.set(slot, 0);
+            slotCounts.incrementAndGet(slot);
+        }
+        
+        public long getCount(){
+            return count.sum();
+        }
+        
+        public double getRate(){
+            long currentSecond = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            long events = 0;
+            for(int slot = 0; slot < SLOTS; slot++){
+                long age = currentSecond - slotSeconds.get(slot);
+                if(age >= 1 && age <= RATE_WINDOW_SECONDS)
+                    events += slotCounts.get(slot);
+            }
+            return (double) events / RATE_WINDOW_SECONDS;
+        }
+    }
+    
+    /*
+     * HDR-style log-linear histogram of nanosecond latencies: every power of two is
+     * split into 2^SUB_BUCKET_BITS linear buckets, so a recorded value is off by at
+     * most 1/32 of itself. Values above 2^MAX_EXPONENT ns (about 18 minutes) land in
+     * the last bucket.
+     */
+    static final class LatencyHistogram{
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        
+        public void record(long nanos){
+            if(nanos < 0)
+                nanos = 0;
+            counts.incrementAndGet(getIndex(nanos));
+            totalNanos.add(nanos);
+            long max;
+            while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+        }
+        
+            private int getIndex(long nanos){
+                if(nanos < SUB_BUCKETS)
+                    return (int) nanos;
+                int exponent = Math.min(63 - Long.numberOfLeadingZeros(nanos), MAX_EXPONENT);
+                int subBucket = (int) (Math.min(nanos >>> (exponent - SUB_BUCKET_BITS), 2 * SUB_BUCKETS - 1) & (SUB_BUCKETS - 1));
+                return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+            }
+            
+            /*
+             * Highest value that falls into the bucket.
+             */
+            private long getValue(int index){
+                if(index < SUB_BUCKETS)
+                    return index;
+                int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+                long bucketWidth = 1L << (exponent - SUB_BUCKET_BITS);
+                return (1L << exponent) + (index % SUB_BUCKETS + 1) * bucketWidth - 1;
+            }
+        
+        /*
+         * Reads the buckets once, so the quantiles are consistent with each other
+         * even while other threads keep recording.
+         */
+        public long[] getQuantileNanos(double[] quantiles){
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for(int i = 0; i < snapshot.length; i++){
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long[] values = new long[quantiles.length + 1];
+            values[quantiles.length] = total;
+            if(total == 0)
+                return values;
+            long seen = 0;
+            int quantile = 0;
+            for(int i = 0; i < snapshot.length && quantile < quantiles.length; i++){
+                seen += snapshot[i];
+                while(quantile < quantiles.length && seen >= Math.ceil(quantiles[quantile] * total))
+                    values[quantile++] = Math.min(getValue(i), maxNanos.get());
+            }
+            return values;
+        }
+        
+        public Map<String, Long> getSummaryMicros(){
+            long[] values = getQuantileNanos(QUANTILES);
+            Map<String, Long> summary = new LinkedHashMap<>();
+            summary.put("count", values[QUANTILES.length]);
+            for(int i = 0; i < QUANTILES.length; i++)
+                summary.put(QUANTILE_NAMES[i], TimeUnit.NANOSECONDS.toMicros(values[i]));
+            summary.put("max", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+            return summary;
+        }
+        
+        public void appendPrometheusSummary(StringBuilder text, String name){
+            long[] values = getQuantileNanos(QUANTILES);
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for(int i = 0; i < QUANTILES.length; i++)
+                text.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(values[i] / 1e9).append('\n');
+            text.append(name).append("_sum ").append(totalNanos.sum() / 1e9).append('\n')
+                .append(name).append("_count ").append(values[QUANTILES.length]).append('\n');
+        }
+    }
+    
+    /*
+     * Latencies of the current interval, handed over whole when the interval ends, as
+     * HdrHistogram's Recorder does. Writers only count themselves in and out around
+     * a record, in the epoch of the phase they entered; swapInterval installs a fresh
+     * histogram, flips the phase and waits until every writer of the previous phase
+     * left, so no value recorded into the finished histogram is lost or lands after
+     * it was read. Writers never wait.
+     */
+    static final class IntervalRecorder{
+        private final AtomicLong startEpoch = new AtomicLong();
+        private final AtomicLong evenEndEpoch = new AtomicLong();
+        private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+        private volatile LatencyHistogram active = new LatencyHistogram();
+        
+        public void record(long nanos){
+            long epoch = startEpoch.getAndIncrement();
+            try {
+                active.record(nanos);
+            } finally {
+                (epoch < 0 ? oddEndEpoch : evenEndEpoch).getAndIncrement();
+            }
+        }
+        
+        /*
+         * Returns the latencies recorded since the previous call.
+         */
+        public synchronized LatencyHistogram swapInterval(){
+            LatencyHistogram finished = active;
+            active = new LatencyHistogram();
+            boolean nextPhaseIsEven = startEpoch.get() < 0;
+            long nextPhaseStart = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+            (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(nextPhaseStart);
+            long previousPhaseEnd = startEpoch.getAndSet(nextPhaseStart);
+            AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+            while(previousEndEpoch.get() != previousPhaseEnd)
+                Thread.yield();
+            return finished;
+        }
+    }
+    
+    /*
+     * How a journaled game ended. INTERRUPTED games were still open when the server
+     * stopped and were closed by the recovery at the next start.
+     */
+    public static enum GameOutcome{ WON, FORFEITED, ABANDONED, INTERRUPTED };
+    
+    /*
+     * A game rebuilt from the journal: its rules, the accepted moves in order and, once
+     * it ended, its outcome. The winner is NO_WINNER unless the game was won or forfeited.
+     */
+    public static final class JournaledGame{
+        public static final char NO_WINNER = '-';
+        private final int gameId;
+        private final GameRules rules;
+        private final GameBoard board;
+        private final List<String> moves = new ArrayList<>();
+        private final StringBuilder symbols = new StringBuilder();
+        private GameOutcome outcome;
+        private char winner = NO_WINNER;
+        
+        JournaledGame(int gameId, GameRules rules){
+            this.gameId = gameId;
+            this.rules = rules;
+            this.board = new GameBoard(rules);
+        }
+        
+            private void addMove(int cell, char playerSymbol) throws IOException{
+                String coordinates = GameBoard.getCoordinates(cell / rules.getBoardSize(), cell % rules.getBoardSize());
+                board.addNewMove(coordinates, playerSymbol);
+                moves.add(coordinates);
+                symbols.append(playerSymbol);
+            }
+            
+            private void finish(GameOutcome outcome, char winner){
+                this.outcome = outcome;
+                this.winner = winner;
+            }
+        
+        public int getGameId(){
+            return gameId;
+        }
+        
+        public GameRules getRules(){
+            return rules;
+        }
+        
+        public List<String> getMoves(){
+            return Collections.unmodifiableList(moves);
+        }
+        
+        public char getPlayerSymbol(int move){
+            return symbols.charAt(move);
+        }
+        
+        /*
+         * Null while the game is open.
+         */
+        public GameOutcome getOutcome(){
+            return outcome;
+        }
+        
+        public char getWinner(){
+            return winner;
+        }
+        
+        GameBoard getBoard(){
+            return board;
+        }
+        
+        @Override
+        public String toString(){
+            return "Game " + gameId + " " + rules + " " + (outcome == null ? "OPEN" : outcome) 
+                   + (winner == NO_WINNER ? "" : " by " + winner) + " after " + moves.size() + " moves: " + moves;
+        }
+    }
+    
+    /*
+     * Append-only journal of game starts, accepted moves and outcomes, for crash
+     * recovery and replay. Records are fixed RECORD_BYTES slots in memory-mapped
+     * segment files. A writer claims its slot by advancing the segment's write position
+     * atomically and copies the record in without any lock, so an append is one CAS and
+     * a memory copy and never a system call; the pages belong to the kernel and survive
+     * a crash of the process at once. The journal thread forces them to disk every
+     * commit interval, a single msync for every game that appended since (group commit),
+     * which bounds what an OS crash or power loss can take. It also maps the next
+     * segment ahead of time and forces and deletes retired ones, so rolling a segment
+     * only swaps the current one. A segment holding the start of a game that is still
+     * open is kept, with every segment after it, until the game finishes, since its
+     * moves can't be replayed without the start. Segments are preallocated, so an unwritten slot reads
+     * as zeros, and every record carries a CRC32 that exposes a torn one. Slots are
+     * written concurrently, so a crash can leave a hole before records that made it;
+     * recovery skips holes instead of stopping at them.
+     *
+     * Record layout: int magic|type, int gameId, int sequence, int value, char symbol,
+     * short reserved, long timestamp millis, int crc32 of the first 28 bytes. value is
+     * the cell for moves, the packed rules for starts and the outcome for finishes.
+     */
+    static final class GameJournal implements Runnable{
+        static final int RECORD_BYTES = 32;
+        private static final int MAGIC = 0x474A0000;
+        private static final int GAME_STARTED = 1;
+        private static final int MOVE_ACCEPTED = 2;
+        private static final int GAME_FINISHED = 3;
+        private static final String SEGMENT_PREFIX = "gomoku-journal-";
+        private static final String SEGMENT_SUFFIX = ".seg";
+        private final Path directory;
+        private final long segmentBytes;
+        private final int segmentsKept;
+        private final long commitIntervalNanos;
+        private static final ThreadLocal<ByteBuffer> RECORDS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(RECORD_BYTES));
+        private static final ThreadLocal<CRC32> CHECKSUMS = ThreadLocal.withInitial(CRC32::new);
+        private final List<JournaledGame> openGames;
+        private int maxGameId;
+        private final Deque<Path> recoveredSegments = new ArrayDeque<>();
+        private final Deque<Segment> retainedSegments = new ArrayDeque<>();
+        private final Map<Integer, Segment> gameStarts = new ConcurrentHashMap<>();
+        private final Queue<Segment> retiredSegments = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Segment> nextSegment = new AtomicReference<>();
+        private volatile Segment segment;
+        private volatile boolean keepRunning = true;
+        private volatile Thread committer;
+        
+        /*
+         * Scans the existing segments and continues after their last intact record.
+         */
+        GameJournal(Path directory, long segmentBytes, int segmentsKept, long commitIntervalNanos) throws IOException{
+            this.directory = directory;
+            this.segmentBytes = segmentBytes - segmentBytes % RECORD_BYTES;
+            this.segmentsKept = segmentsKept;
+            this.commitIntervalNanos = commitIntervalNanos;
+            Files.createDirectories(directory);
+            recoveredSegments.addAll(listSegments(directory));
+            Map<Integer, JournaledGame> games = new LinkedHashMap<>();
+            Map<Integer, Integer> orphanedMoves = new HashMap<>();
+            int lastSegmentEnd = 0;
+            for(Path segmentFile : recoveredSegments)
+                lastSegmentEnd = scan(segmentFile, games, orphanedMoves, game -> maxGameId = Math.max(maxGameId, game.getGameId()));
+            logOrphanedMoves(orphanedMoves);
+            this.openGames = new ArrayList<>(games.values());
+            for(JournaledGame game : openGames)
+                maxGameId = Math.max(maxGameId, game.getGameId());
+            if(recoveredSegments.isEmpty())
+                segment = openSegment(0, 0);
+            else
+                segment = openSegment(getSegmentIndex(recoveredSegments.removeLast()), lastSegmentEnd);
+        }
+        
+            private static List<Path> listSegments(Path directory) throws IOException{
+                List<Path> segmentFiles = new ArrayList<>();
+                if(!Files.isDirectory(directory))
+                    return segmentFiles;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                    for(Path file : files)
+                        segmentFiles.add(file);
+                }
+                Collections.sort(segmentFiles);
+                return segmentFiles;
+            }
+            
+            private static int getSegmentIndex(Path segmentFile){
+                String name = segmentFile.getFileName().toString();
+                return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            }
+            
+            /*
+             * Feeds every intact record of the segment to games, hands finished games to
+             * finishedGames and returns the offset after the last intact record. Torn or
+             * unwritten slots are skipped, and so are records of games whose start is
+             * no longer journaled; their moves are counted per game in orphanedMoves
+             * until the game's finish shows up.
+             */
+            private static int scan(Path segmentFile, Map<Integer, JournaledGame> games, Map<Integer, Integer> orphanedMoves,
+                                    Consumer<JournaledGame> finishedGames) throws IOException{
+                ByteBuffer records;
+                try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+                    records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                CRC32 checksum = new CRC32();
+                byte[] bytes = new byte[RECORD_BYTES];
+                int end = 0;
+                for(int offset = 0; offset + RECORD_BYTES <= records.limit(); offset += RECORD_BYTES){
+                    records.position(offset);
+                    records.get(bytes);
+                    ByteBuffer record = ByteBuffer.wrap(bytes);
+                    checksum.reset();
+                    checksum.update(bytes, 0, RECORD_BYTES - 4);
+                    if((record.getInt(0) & 0xFFFF0000) != MAGIC || (int) checksum.getValue() != record.getInt(RECORD_BYTES - 4))
+                        continue;
+                    apply(record, games, orphanedMoves, finishedGames);
+                    end = offset + RECORD_BYTES;
+                }
+                return end;
+            }
+            
+                private static void apply(ByteBuffer record, Map<Integer, JournaledGame> games, Map<Integer, Integer> orphanedMoves,
+                                          Consumer<JournaledGame> finishedGames) throws IOException{
+                    int gameId = record.getInt(4);
+                    int value = record.getInt(12);
+                    char playerSymbol = record.getChar(16);
+                    switch(record.getInt(0) & 0xFFFF){
+                        case GAME_STARTED:
+                            games.put(gameId, new JournaledGame(gameId, unpackRules(value)));
+                            break;
+                        case MOVE_ACCEPTED:
+                            JournaledGame game = games.get(gameId);
+                            if(game != null)
+                                game.addMove(value, playerSymbol);
+                            else
+                                orphanedMoves.merge(gameId, 1, Integer::sum);
+                            break;
+                        case GAME_FINISHED:
+                            JournaledGame finishedGame = games.remove(gameId);
+                            if(finishedGame != null){
+                                finishedGame.finish(GameOutcome.values()[value], playerSymbol);
+                                finishedGames.accept(finishedGame);
+                            }
+                            else
+                                orphanedMoves.remove(gameId);
+                            break;
+                        default:
+                            throw new IOException("Unknown journal record type " + (record.getInt(0) & 0xFFFF));
+                    }
+                }
+        
+        /*
+         * Streams every finished game of the journal in the order the games ended,
+         * holding only the games still open at each point in memory.
+         */
+        static void replay(Path directory, Consumer<JournaledGame> finishedGames) throws IOException{
+            Map<Integer, JournaledGame> games = new HashMap<>();
+            Map<Integer, Integer> orphanedMoves = new HashMap<>();
+            for(Path segmentFile : listSegments(directory))
+                scan(segmentFile, games, orphanedMoves, finishedGames);
+            logOrphanedMoves(orphanedMoves);
+        }
+        
+            /*
+             * Moves of games that never finished but lost their start can't be
+             * replayed. Games keep their start segment while they are open, so only a
+             * journal written without that, or damaged, has any.
+             */
+            private static void logOrphanedMoves(Map<Integer, Integer> orphanedMoves){
+                if(orphanedMoves.isEmpty())
+                    return;
+                int moves = 0;
+                for(int gameMoves : orphanedMoves.values())
+                    moves += gameMoves;
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.WARNING, 
+                        "Skipped {0} journaled moves of {1} open games whose start is missing: {2}", 
+                        new Object[]{moves, orphanedMoves.size(), orphanedMoves.keySet()});
+            }
+        
+        /*
+         * Games that were open when the journal was opened.
+         */
+        List<JournaledGame> getOpenGames(){
+            return openGames;
+        }
+        
+        int getMaxGameId(){
+            return maxGameId;
+        }
+        
+        public void gameStarted(int gameId, GameRules rules){
+            append(GAME_STARTED, gameId, 0, packRules(rules), JournaledGame.NO_WINNER);
+        }
+        
+        public void moveAccepted(int gameId, int sequence, int cell, char playerSymbol){
+            append(MOVE_ACCEPTED, gameId, sequence, cell, playerSymbol);
+        }
+        
+        /*
+         * Releases the segment holding the game's start, unless the game was open
+         * when the journal was opened.
+         */
+        public void gameFinished(int gameId, GameOutcome outcome, char winner){
+            append(GAME_FINISHED, gameId, 0, outcome.ordinal(), winner);
+            Segment startSegment = gameStarts.remove(gameId);
+            if(startSegment != null)
+                startSegment.openGames.decrementAndGet();
+        }
+        
+            private static int packRules(GameRules rules){
+                return rules.getBoardSize() << 16 | rules.getSymbolsForVictory() << 8 | (rules.isOverlineWinning() ? 1 : 0);
+            }
+            
+            private static GameRules unpackRules(int packedRules){
+                return GameRules.of(packedRules >>> 16, (packedRules >>> 8) & 0xFF, (packedRules & 1) != 0);
+            }
+        
+            /*
+             * The writer that claims the slot just past the end of a segment rolls it;
+             * writers claiming further slots wait for the roll and claim again. A start
+             * pins its segment before it is written, so the segment can't be complete,
+             * and deleted, without the pin.
+             */
+            private void append(int type, int gameId, int sequence, int value, char playerSymbol){
+                ByteBuffer record = RECORDS.get();
+                CRC32 checksum = CHECKSUMS.get();
+                record.clear();
+                record.putInt(MAGIC | type).putInt(gameId).putInt(sequence).putInt(value)
+                      .putChar(playerSymbol).putShort((short) 0).putLong(System.currentTimeMillis());
+                checksum.reset();
+                checksum.update(record.array(), 0, RECORD_BYTES - 4);
+                record.putInt((int) checksum.getValue());
+                while(true){
+                    Segment current = segment;
+                    if(current == null)
+                        return;
+                    int offset = current.claimedBytes.getAndAdd(RECORD_BYTES);
+                    if(offset + RECORD_BYTES <= current.capacity){
+                        if(type == GAME_STARTED){
+                            current.openGames.incrementAndGet();
+                            gameStarts.put(gameId, current);
+                        }
+                        current.write(offset, record);
+                        return;
+                    }
+                    if(offset == current.capacity)
+                        rollSegment(current);
+                    else
+                        while(segment == current)
+                            Thread.yield();
+                }
+            }
+            
+            /*
+             * Normally takes the segment the journal thread mapped ahead; only maps one
+             * itself when the journal thread is behind or not running.
+             */
+            private void rollSegment(Segment full){
+                Segment next = nextSegment.getAndSet(null);
+                try {
+                    if(next == null || next.index != full.index + 1)
+                        next = openSegment(full.index + 1, 0);
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, "Game journal disabled", ex);
+                    next = null;
+                }
+                retiredSegments.add(full);
+                segment = next;
+                if(committer != null)
+                    LockSupport.unpark(committer);
+            }
+            
+            private Segment openSegment(int index, int position) throws IOException{
+                Path segmentFile = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+                try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.CREATE, 
+                                                            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return new Segment(segmentFile, index, channel.map(FileChannel.MapMode.READ_WRITE, 0, 
+                                                                       Math.max(segmentBytes, channel.size())), position);
+                }
+            }
+        
+        public void start(){
+            committer = new Thread(this, "gomoku-journal");
+            committer.setDaemon(true);
+            committer.start();
+        }
+        
+        /*
+         * The committer forces what is already appended before it stops.
+         */
+        public void stop(){
+            keepRunning = false;
+            if(committer != null)
+                LockSupport.unpark(committer);
+        }
+        
+        @Override
+        public void run(){
+            while(keepRunning){
+                LockSupport.parkNanos(this, commitIntervalNanos);
+                commit();
+            }
+            commit();
+        }
+        
+            /*
+             * Journal thread only. A retired segment is forced once every slot claimed
+             * in it was written and then counts against segmentsKept, as the current
+             * segment does.
+             */
+            private void commit(){
+                try {
+                    for(Segment retired = retiredSegments.peek(); retired != null && retired.isComplete(); 
+                        retired = retiredSegments.peek()){
+                        retired.forceWritten();
+                        retiredSegments.poll();
+                        retainedSegments.addLast(retired);
+                    }
+                    deleteOldSegments();
+                    Segment current = segment;
+                    if(current == null)
+                        return;
+                    current.forceWritten();
+                    Segment next = nextSegment.get();
+                    if(keepRunning && (next == null || next.index <= current.index))
+                        nextSegment.compareAndSet(next, openSegment(current.index + 1, 0));
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, "Game journal housekeeping failed", ex);
+                }
+            }
+            
+                /*
+                 * Segments left by the previous process hold no open game any more, as
+                 * the server finished those at start. The oldest segment of this run
+                 * that still holds an open game's start stops the deletion.
+                 */
+                private void deleteOldSegments() throws IOException{
+                    while(recoveredSegments.size() + retainedSegments.size() >= segmentsKept){
+                        if(!recoveredSegments.isEmpty())
+                            Files.deleteIfExists(recoveredSegments.removeFirst());
+                        else if(retainedSegments.peekFirst().openGames.get() == 0)
+                            Files.deleteIfExists(retainedSegments.removeFirst().file);
+                        else
+                            return;
+                    }
+                }
+        
+        /*
+         * One mapped segment file. Slots below claimedBytes belong to the writers that
+         * claimed them; writtenRecords counts the ones they finished copying and
+         * openGames the games started in it that didn't finish yet.
+         */
+        private static final class Segment{
+            private final Path file;
+            private final int index;
+            private final MappedByteBuffer records;
+            private final int capacity;
+            private final int startRecords;
+            private final AtomicInteger claimedBytes;
+            private final LongAdder writtenRecords = new LongAdder();
+            private final AtomicInteger openGames = new AtomicInteger();
+            private long forcedRecords = 0;
+            
+            Segment(Path file, int index, MappedByteBuffer records, int position){
+                this.file = file;
+                this.index = index;
+                this.records = records;
+                this.capacity = records.capacity() - records.capacity() % RECORD_BYTES;
+                this.startRecords = position / RECORD_BYTES;
+                this.claimedBytes = new AtomicInteger(position);
+            }
+            
+            /*
+             * Absolute puts never move the shared buffer's position, so writers of
+             * different slots don't interfere.
+             */
+            public void write(int offset, ByteBuffer record){
+                for(int i = 0; i < RECORD_BYTES; i += Long.BYTES)
+                    records.putLong(offset + i, record.getLong(i));
+                writtenRecords.increment();
+            }
+            
+            public boolean isComplete(){
+                return startRecords + writtenRecords.sum() == capacity / RECORD_BYTES;
+            }
+            
+            /*
+             * Journal thread only.
+             */
+            public void forceWritten(){
+                long written = writtenRecords.sum();
+                if(written == forcedRecords)
+                    return;
+                records.force();
+                forcedRecords = written;
+            }
+        }
+    }
+    
+    private interface Communication{
+    	public String receiveResponse(ProtocolAutomaton protocol) throws IOException;
+    	public void sendCommand(Command command, ProtocolAutomaton protocol) throws IOException;
+    	public void sendCommand(Protocol.Output command, String value, ProtocolAutomaton protocol) throws IOException;
+    	public void flush() throws IOException;
+    	public TransportStatistics getStatistics();
+    	public void setPlayerSymbol(char playerSymbol);
+    	public long getFrameReceivedNanos();
+    	public void close() throws IOException;
+    	
+    	public default void sendCommand(Protocol.Output command, ProtocolAutomaton protocol) throws IOException{
+    	    sendCommand(command, null, protocol);
+    	}
+    }
+    
+    /*
+     * Outbound traffic of a connection or, summed up, of a game. Packets are estimated
+     * as the segments each write needs at ASSUMED_SEGMENT_SIZE; that is exact with
+     * Nagle's algorithm off and an upper bound with it on. Reads, commands and writes
+     * are counted on the reader, actor and writer threads while the actor sums them
+     * up, so every counter is a LongAdder.
+     */
+    private static final class TransportStatistics{
+        private static final int ASSUMED_SEGMENT_SIZE = 1460;
+        private final LongAdder commands = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder writeCalls = new LongAdder();
+        private final LongAdder readCalls = new LongAdder();
+        private final LongAdder packets = new LongAdder();
+        
+        public void recordCommand(){
+            commands.increment();
+        }
+        
+        public void recordWrite(int bytesWritten){
+            writeCalls.increment();
+            bytes.add(bytesWritten);
+            packets.add((bytesWritten + ASSUMED_SEGMENT_SIZE - 1) / ASSUMED_SEGMENT_SIZE);
+        }
+        
+        public void recordRead(){
+            readCalls.increment();
+        }
+        
+        public void add(TransportStatistics other){
+            commands.add(other.commands.sum());
+            bytes.add(other.bytes.sum());
+            writeCalls.add(other.writeCalls.sum());
+            readCalls.add(other.readCalls.sum());
+            packets.add(other.packets.sum());
+        }
+        
+        @Override
+        public String toString(){
+            return commands.sum() + " commands, " + bytes.sum() + " bytes in " + writeCalls.sum() + " write and " 
+                   + readCalls.sum() + " read syscalls, ~" + packets.sum() + " packets";
+        }
+    }
+    
+    /*
+     * Frame buffers of one size, lent to connections only while a frame is in flight.
+     * Returned buffers wait in up to POOLED_BUFFERS slots; each thread scans a few of
+     * them from its own starting slot, so lending is lock-free, rarely contended and,
+     * once the pool is warm, allocation free. When the scanned slots are all empty or
+     * all full the pool allocates, or leaves the buffer to the collector. Buffers a
+     * connection enlarged are never pooled.
+     */
+    private static final class BufferPool{
+        private static final int POOLED_BUFFERS = 256;
+        private static final int SCANNED_SLOTS = 8;
+        private final int bufferBytes;
+        private final GameMetrics metrics;
+        private final AtomicReferenceArray<ByteBuffer> slots = new AtomicReferenceArray<>(POOLED_BUFFERS);
+        
+        BufferPool(int bufferBytes, GameMetrics metrics){
+            this.bufferBytes = bufferBytes;
+            this.metrics = metrics;
+        }
+        
+        /*
+         * Returns an empty buffer in fill mode.
+         */
+        public ByteBuffer acquire(){
+            int firstSlot = getFirstSlot();
+            for(int i = 0; i < SCANNED_SLOTS; i++){
+                int slot = (firstSlot + i) % POOLED_BUFFERS;
+                ByteBuffer buffer = slots.get(slot);
+                if(buffer != null && slots.compareAndSet(slot, buffer, null)){
+                    metrics.frameBufferLent(bufferBytes, false);
+                    return buffer;
+                }
+            }
+            metrics.frameBufferLent(bufferBytes, true);
+            return ByteBuffer.allocate(bufferBytes);
+        }
+        
+        /*
+         * Returns a buffer of twice the capacity holding the bytes of buffer, which is
+         * in fill mode and released.
+         */
+        public ByteBuffer enlarge(ByteBuffer buffer){
+            ByteBuffer largerBuffer = ByteBuffer.allocate(2 * buffer.capacity());
+            buffer.flip();
+            largerBuffer.put(buffer);
+            release(buffer);
+            return largerBuffer;
+        }
+        
+        /*
+         * The caller must not touch buffer afterwards.
+         */
+        public void release(ByteBuffer buffer){
+            if(buffer.capacity() != bufferBytes)
+                return;
+            buffer.clear();
+            int firstSlot = getFirstSlot();
+            for(int i = 0; i < SCANNED_SLOTS; i++){
+                int slot = (firstSlot + i) % POOLED_BUFFERS;
+                if(slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)){
+                    metrics.frameBufferPooled(bufferBytes);
+                    return;
+                }
+            }
+        }
+        
+            private static int getFirstSlot(){
+                return (int) (Thread.currentThread().getId() * SCANNED_SLOTS % POOLED_BUFFERS);
+            }
+    }
+    
+    /*
+     * Framing and wire format negotiation shared by the blocking and the reactor
+     * transport. Both directions start in JSON. A client switches by sending USE_CODEC
+     * with the format name and may use that format for everything it sends afterwards;
+     * the server answers CODEC_SELECTED in the old format and uses the new one from then on.
+     *
+     * Commands are encoded straight into a write buffer and decoded into the reusable
+     * InboundFrame, so a turn produces no garbage. With coalesceWrites the buffer is
+     * only written out by flush, otherwise after every command. Both buffers are
+     * borrowed from the server's pools for as long as they hold bytes, from the first
+     * byte of a frame until it is decoded and from the first command until the socket
+     * took it, so a connection waiting for its next turn holds neither.
+     */
+    private abstract class CodecCommunication implements Communication{
+        protected static final int MAX_FRAME_LENGTH = 4096;
+        protected static final int MAX_WRITE_BUFFER_LENGTH = 1 << 20;
+        protected ByteBuffer readBuffer;
+        protected ByteBuffer writeBuffer;
+        private final InboundFrame inboundFrame = new InboundFrame();
+        protected final TransportStatistics statistics = new TransportStatistics();
+        private char playerSymbol = EventLog.NO_PLAYER;
+        private CommandCodec inboundCodec = JsonCodec.INSTANCE;
+        private CommandCodec outboundCodec = JsonCodec.INSTANCE;
+        private long frameReceivedNanos;
+        
+        @Override
+        public String receiveResponse(ProtocolAutomaton protocol) throws IOException{
+            receiveFrame(protocol);
+            if(validateInput(inboundFrame.getCommand(), protocol))
+                return inboundFrame.getValue();
+            else
+                throw new IOException();
+        }
+        
+            private boolean validateInput(Protocol.Input command, ProtocolAutomaton protocol) throws IOException{
+                try {
+                    return Protocol.INSTANCE.validateInput(command, protocol);
+                } catch (IOException ex) {
+                    metrics.protocolViolation();
+                    throw ex;
+                }
+            }
+            
+            private boolean validateOutput(Protocol.Output command, ProtocolAutomaton protocol) throws IOException{
+                try {
+                    return Protocol.INSTANCE.validateOutput(command, protocol);
+                } catch (IOException ex) {
+                    metrics.protocolViolation();
+                    throw ex;
+                }
+            }
+        
+            /*
+             * Leaves the next client frame other than USE_CODEC in inboundFrame.
+             */
+            protected abstract void receiveFrame(ProtocolAutomaton protocol) throws IOException;
+        
+        /*
+         * readBuffer is kept in fill mode and released once no bytes are left in it.
+         * Returns false until it holds a complete frame.
+         */
+        protected boolean decodeBufferedFrame(ProtocolAutomaton protocol) throws IOException{
+            while(readBuffer != null){
+                readBuffer.flip();
+                boolean decoded;
+                try {
+                    decoded = inboundCodec.decode(readBuffer, inboundFrame);
+                } finally {
+                    readBuffer.compact();
+                }
+                if(!decoded && !readBuffer.hasRemaining())
+                    throw new IOException("Frame exceeds " + MAX_FRAME_LENGTH + " bytes");
+                if(readBuffer.position() == 0)
+                    releaseReadBuffer();
+                if(!decoded)
+                    return false;
+                eventLog.record(EventType.COMMAND_RECEIVED, protocol.getGameId(), playerSymbol, 
+                                inboundFrame.getCommand(), inboundFrame.getValue());
+                if(inboundFrame.getCommand() != Protocol.Input.USE_CODEC){
+                    frameReceivedNanos = getReadNanos();
+                    return true;
+                }
+                switchWireFormat(protocol);
+            }
+            return false;
+        }
+        
+        protected ByteBuffer borrowReadBuffer(){
+            if(readBuffer == null)
+                readBuffer = readBuffers.acquire();
+            return readBuffer;
+        }
+        
+        protected void releaseReadBuffer(){
+            if(readBuffer == null)
+                return;
+            readBuffers.release(readBuffer);
+            readBuffer = null;
+        }
+        
+        protected void releaseWriteBuffer(){
+            if(writeBuffer == null)
+                return;
+            writeBuffers.release(writeBuffer);
+            writeBuffer = null;
+        }
+        
+        protected boolean hasPendingWrites(){
+            return writeBuffer != null && writeBuffer.position() > 0;
+        }
+        
+            private void switchWireFormat(ProtocolAutomaton protocol) throws IOException{
+                validateInput(Protocol.Input.USE_CODEC, protocol);
+                WireFormat wireFormat = WireFormat.valueOf(inboundFrame.getValue());
+                if(!configuration.wireFormats.contains(wireFormat))
+                    throw new IOException("Wire format " + wireFormat + " is disabled");
+                inboundCodec = wireFormat.getCodec();
+                confirmWireFormat(wireFormat, protocol);
+            }
+        
+        /*
+         * When the bytes of the frame just decoded were read.
+         */
+        protected long getReadNanos(){
+            return System.nanoTime();
+        }
+        
+        @Override
+        public long getFrameReceivedNanos(){
+            return frameReceivedNanos;
+        }
+        
+        /*
+         * Must run on the thread that sends the connection's commands.
+         */
+        protected void confirmWireFormat(WireFormat wireFormat, ProtocolAutomaton protocol) throws IOException{
+            sendCommand(Protocol.Output.CODEC_SELECTED, wireFormat.name(), protocol);
+            flush();
+            outboundCodec = wireFormat.getCodec();
+        }
+        
+        @Override
+        public void sendCommand(Command command, ProtocolAutomaton protocol) throws IOException{
+            eventLog.recordValues(EventType.COMMAND_SENT, protocol.getGameId(), playerSymbol, 
+                                  Protocol.Output.valueOf(command.getCommand()), command.getAdditionalValues());
+            if(validateOutput(Protocol.Output.valueOf(command.getCommand()), protocol)){
+                ensureWriteCapacity();
+                outboundCodec.encode(command, writeBuffer);
+                statistics.recordCommand();
+                if(!configuration.coalesceWrites)
+                    flush();
+            }
+        }
+        
+        @Override
+        public void sendCommand(Protocol.Output command, String value, ProtocolAutomaton protocol) throws IOException{
+            eventLog.record(EventType.COMMAND_SENT, protocol.getGameId(), playerSymbol, command, value);
+            if(validateOutput(command, protocol)){
+                ensureWriteCapacity();
+                outboundCodec.encode(command, value, writeBuffer);
+                statistics.recordCommand();
+                if(!configuration.coalesceWrites)
+                    flush();
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException{
+            if(hasPendingWrites())
+                writeFrames();
+        }
+        
+        @Override
+        public TransportStatistics getStatistics(){
+            return statistics;
+        }
+        
+        @Override
+        public void setPlayerSymbol(char playerSymbol){
+            this.playerSymbol = playerSymbol;
+        }
+        
+        public char getPlayerSymbol(){
+            return playerSymbol;
+        }
+        
+            private void ensureWriteCapacity() throws IOException{
+                if(writeBuffer == null)
+                    writeBuffer = writeBuffers.acquire();
+                if(writeBuffer.remaining() >= MAX_FRAME_LENGTH)
+                    return;
+                if(writeBuffer.capacity() >= MAX_WRITE_BUFFER_LENGTH)
+                    throw new IOException("Client doesn't read its commands");
+                writeBuffer = writeBuffers.enlarge(writeBuffer);
+            }
+        
+            /*
+             * writeBuffer is kept in fill mode and holds every encoded frame not yet
+             * written; it is released once all of them are.
+             */
+            protected abstract void writeFrames() throws IOException;
+    }
+    
+    /*
+     * Both players and all of the game's state stay on the shard's reactor thread.
+     */
+    private void startShardGame(final SocketChannel[] twoPlayersConnections, final int shard){
+        final Reactor reactor = reactors[shard];
+        reactor.execute(() -> {
+            try {
+                NioCommunication[] communications = new NioCommunication[]{
+                    new NioCommunication(twoPlayersConnections[0], reactor),
+                    new NioCommunication(twoPlayersConnections[1], reactor)};
+                new GomokuGame(communications, reactor, metrics.getShard(shard)).startTheGame();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                closeQuietly(twoPlayersConnections);
+            }
+        });
+    }
+    
+    private void startShardBotGame(final SocketChannel humanConnection, final int shard){
+        final Reactor reactor = reactors[shard];
+        reactor.execute(() -> {
+            try {
+                new GomokuGame(new NioCommunication(humanConnection, reactor), reactor, metrics.getShard(shard), engine).startTheGame();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                closeQuietly(humanConnection);
+            }
+        });
+    }
+    
+    /*
+     * Blocking transport. Frames are read on the player's thread while commands are
+     * sent by the game's actor, so the CODEC_SELECTED answer is posted to the actor too.
+     * The read buffer is only ever touched by the player's thread. Between frames it
+     * blocks reading at most FIRST_READ_LENGTH bytes into its own small array and only
+     * borrows the read buffer once they arrived, so a player waiting for its opponent
+     * holds no pooled buffer; a frame that needs more reads holds it until decoded, and
+     * a failed read releases it.
+     *
+     * The actor runs on a shared game worker and never writes to the socket itself: it
+     * queues the encoded frames for the connection's writer thread, started with the
+     * first of them, and fails the connection once more than MAX_WRITE_BUFFER_LENGTH
+     * bytes wait for a client that doesn't read. The queue is only locked to hand the
+     * frames over, never across a write, and the writer parks while it is empty.
+     * Closing lets the writer drain the queue for at most CLOSE_LINGER_NANOS.
+     */
+    private class TcpIpCommunication extends CodecCommunication{
+        private static final long CLOSE_LINGER_NANOS = 5_000_000_000L;
+        private static final int FIRST_READ_LENGTH = 64;
+        private final byte[] firstBytes = new byte[FIRST_READ_LENGTH];
+        private final Socket connection;
+        private final OutputStream out;
+        private final InputStream in;
+        private final GameActor sender;
+        private ByteBuffer queuedFrames;
+        private boolean closing = false;
+        private Thread writer;
+        
+        
+    	public TcpIpCommunication(Socket connection, GameActor sender) throws IOException{
+    		this.connection = connection;
+            this.in = connection.getInputStream();
+            this.out = connection.getOutputStream();
+            this.sender = sender;
+    	}
+    	
+    	@Override
+    	protected void confirmWireFormat(final WireFormat wireFormat, final ProtocolAutomaton protocol){
+    	    sender.post(() -> super.confirmWireFormat(wireFormat, protocol));
+    	}
+    	
+    	@Override
+    	protected void receiveFrame(ProtocolAutomaton protocol) throws IOException{
+            try {
+                while(!decodeBufferedFrame(protocol)){
+                    if(readBuffer == null){
+                        int bytesRead = read(firstBytes, 0, FIRST_READ_LENGTH);
+                        borrowReadBuffer().put(firstBytes, 0, bytesRead);
+                    }
+                    else
+                        readBuffer.position(readBuffer.position() + read(readBuffer.array(), readBuffer.position(), readBuffer.remaining()));
+                }
+            } catch (IOException | RuntimeException ex) {
+                releaseReadBuffer();
+                throw ex;
+            }
+    	}
+    	
+    	    private int read(byte[] bytes, int offset, int length) throws IOException{
+    	        int bytesRead = in.read(bytes, offset, length);
+    	        statistics.recordRead();
+    	        if(bytesRead < 0)
+    	            throw new EOFException("Connection closed by client");
+    	        return bytesRead;
+    	    }
+    	
+    	/*
+    	 * Actor only.
+    	 */
+    	@Override
+    	protected void writeFrames() throws IOException {
+    	    try {
+    	        synchronized(this){
+    	            if(closing)
+    	                throw new IOException("Connection closed");
+    	            if(queuedFrames == null){
+    	                queuedFrames = writeBuffer;
+    	                writeBuffer = null;
+    	            }
+    	            else {
+    	                if(queuedFrames.position() + writeBuffer.position() > MAX_WRITE_BUFFER_LENGTH)
+    	                    throw new IOException("Client doesn't read its commands");
+    	                while(queuedFrames.remaining() < writeBuffer.position())
+    	                    queuedFrames = writeBuffers.enlarge(queuedFrames);
+    	                writeBuffer.flip();
+    	                queuedFrames.put(writeBuffer);
+    	            }
+    	        }
+    	    } finally {
+    	        releaseWriteBuffer();
+    	    }
+    	    if(writer == null)
+    	        writer = startPlayerThread(this::writeQueuedFrames);
+    	    else
+    	        LockSupport.unpark(writer);
+    	}
+    	
+    	    /*
+    	     * Writer thread only. A failed write closes the socket, so the player's
+    	     * thread hears of the disconnect too, and fails the frames queued later.
+    	     */
+    	    private void writeQueuedFrames(){
+    	        try {
+    	            while(true){
+    	                ByteBuffer frames;
+    	                synchronized(this){
+    	                    frames = queuedFrames;
+    	                    queuedFrames = null;
+    	                    if(frames == null && closing)
+    	                        return;
+    	                }
+    	                if(frames == null){
+    	                    LockSupport.park(this);
+    	                    continue;
+    	                }
+    	                try {
+    	                    out.write(frames.array(), 0, frames.position());
+    	                    out.flush();
+    	                    statistics.recordWrite(frames.position());
+    	                } finally {
+    	                    writeBuffers.release(frames);
+    	                }
+    	            }
+    	        } catch (IOException ex) {
+    	            synchronized(this){
+    	                closing = true;
+    	                if(queuedFrames != null)
+    	                    writeBuffers.release(queuedFrames);
+    	                queuedFrames = null;
+    	            }
+    	        } finally {
+    	            closeSocket();
+    	        }
+    	    }
+    	
+    	/*
+    	 * Actor only. The socket is closed by the writer once it wrote everything
+    	 * queued, or by the timer when the client doesn't read it in time.
+    	 */
+    	public void close() throws IOException{
+    	    metrics.connectionClosed();
+    	    try {
+    	        flush();
+    	    } finally {
+    	        releaseWriteBuffer();
+    	        synchronized(this){
+    	            closing = true;
+    	        }
+    	        if(writer == null)
+    	            closeSocket();
+    	        else {
+    	            LockSupport.unpark(writer);
+    	            timer.schedule(this::closeSocket, CLOSE_LINGER_NANOS);
+    	        }
+    	    }
+    	}
+    	
+    	    private void closeSocket(){
+    	        try {
+    	            connection.close();
+    	        } catch (IOException ex) {
+    	            Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+    	        }
+    	    }
+    }
+    
+    private interface ConnectionListener{
+        public void onResponseReceived() throws IOException;
+        public void onConnectionClosed();
+    }
+    
+    /*
+     * Transport of a game played on a reactor: the listener hears of every complete
+     * client frame on the reactor thread, so no thread ever waits in receiveResponse.
+     */
+    private interface ReactorCommunication extends Communication{
+        public void setListener(ConnectionListener listener, ProtocolAutomaton protocol);
+    }
+    
+    /*
+     * Non-blocking counterpart of TcpIpCommunication. The owning Reactor decodes incoming
+     * bytes and notifies the listener once per complete frame, so receiveResponse never
+     * blocks; sendCommand writes as much as the socket accepts and leaves the rest in
+     * the write buffer for OP_WRITE.
+     */
+    private class NioCommunication extends CodecCommunication implements ReactorCommunication, ReactorHandler{
+        private final SocketChannel connection;
+        private final Reactor reactor;
+        private final SelectionKey selectionKey;
+        private ConnectionListener listener;
+        private ProtocolAutomaton protocol;
+        private boolean frameReceived = false;
+        private boolean closeWhenFlushed = false;
+        private boolean closed = false;
+        
+        public NioCommunication(SocketChannel connection, Reactor reactor) throws IOException{
+            this.connection = connection;
+            this.reactor = reactor;
+            this.selectionKey = reactor.register(connection, SelectionKey.OP_READ, this);
+        }
+        
+        @Override
+        public void setListener(ConnectionListener listener, ProtocolAutomaton protocol){
+            this.listener = listener;
+            this.protocol = protocol;
+        }
+        
+        @Override
+        public void handle(SelectionKey key){
+            try {
+                if(key.isValid() && key.isWritable())
+                    flush();
+                if(key.isValid() && key.isReadable())
+                    readFrames();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                eventLog.record(EventType.ERROR, protocol.getGameId(), getPlayerSymbol(), null, ex);
+                listener.onConnectionClosed();
+            }
+        }
+        
+            private void readFrames() throws IOException{
+                int bytesRead = connection.read(borrowReadBuffer());
+                statistics.recordRead();
+                if(bytesRead < 0){
+                    releaseReadBuffer();
+                    listener.onConnectionClosed();
+                    return;
+                }
+                while(!closed && decodeBufferedFrame(protocol)){
+                    frameReceived = true;
+                    listener.onResponseReceived();
+                }
+            }
+        
+        /*
+         * A frame waits in the socket until its reactor wakes up, so a busy reactor
+         * shows up in the game's turn latency.
+         */
+        @Override
+        protected long getReadNanos(){
+            return reactor.getSelectedNanos();
+        }
+        
+        @Override
+        protected void receiveFrame(ProtocolAutomaton protocol) throws IOException{
+            if(!frameReceived)
+                throw new IOException("No complete frame received");
+            frameReceived = false;
+        }
+        
+        @Override
+        public void sendCommand(Command command, ProtocolAutomaton protocol) throws IOException{
+            if(closed || closeWhenFlushed)
+                throw new IOException("Connection already closed");
+            super.sendCommand(command, protocol);
+        }
+        
+        @Override
+        public void sendCommand(Protocol.Output command, String value, ProtocolAutomaton protocol) throws IOException{
+            if(closed || closeWhenFlushed)
+                throw new IOException("Connection already closed");
+            super.sendCommand(command, value, protocol);
+        }
+        
+        @Override
+        protected void writeFrames() throws IOException{
+            writeBuffer.flip();
+            try {
+                statistics.recordWrite(connection.write(writeBuffer));
+            } finally {
+                writeBuffer.compact();
+            }
+            if(writeBuffer.position() > 0){
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            releaseWriteBuffer();
+            if(closeWhenFlushed)
+                closeNow();
+            else
+                selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+        
+        @Override
+        public void close() throws IOException{
+            if(closed)
+                return;
+            closeWhenFlushed = true;
+            if(hasPendingWrites())
+                writeFrames();
+            else
+                closeNow();
+        }
+        
+            private void closeNow() throws IOException{
+                if(closed)
+                    return;
+                closed = true;
+                frameReceived = false;
+                metrics.connectionClosed();
+                releaseReadBuffer();
+                releaseWriteBuffer();
+                selectionKey.cancel();
+                connection.close();
+            }
+    }
+    
+    /*
+     * The engine's side of a bot game. It keeps an EnginePosition in step with the
+     * commands the game sends it and starts a search on every NEW_MOVE; the chosen
+     * move comes back as an event of the game's actor and reaches the game through
+     * ConnectionListener, exactly like a frame read from a socket. Commands only step
+     * the game's ProtocolAutomaton and are never encoded.
+     */
+    private class BotCommunication implements Communication{
+        private final GomokuEngine engine;
+        private final GameActor actor;
+        private final EnginePosition position;
+        private final TransportStatistics statistics = new TransportStatistics();
+        private ConnectionListener listener;
+        private char playerSymbol = EventLog.NO_PLAYER;
+        private GomokuEngine.Search search;
+        private int chosenMove = GomokuEngine.NO_MOVE;
+        private String receivedMove;
+        private long moveChosenNanos;
+        private boolean closed = false;
+        
+        public BotCommunication(GomokuEngine engine, GameActor actor){
+            this.engine = engine;
+            this.actor = actor;
+            this.position = new EnginePosition(engine.getRules());
+        }
+        
+        public void setListener(ConnectionListener listener){
+            this.listener = listener;
+        }
+        
+        @Override
+        public String receiveResponse(ProtocolAutomaton protocol) throws IOException{
+            if(receivedMove == null)
+                throw new IOException("No move chosen");
+            Protocol.INSTANCE.validateInput(Protocol.Input.MY_MOVE, protocol);
+            eventLog.record(EventType.COMMAND_RECEIVED, protocol.getGameId(), playerSymbol, Protocol.Input.MY_MOVE, receivedMove);
+            String move = receivedMove;
+            receivedMove = null;
+            return move;
+        }
+        
+        @Override
+        public void sendCommand(Command command, ProtocolAutomaton protocol) throws IOException{
+            sendCommand(Protocol.Output.valueOf(command.getCommand()), null, protocol);
+        }
+        
+        @Override
+        public void sendCommand(Protocol.Output command, String value, ProtocolAutomaton protocol) throws IOException{
+            if(closed)
+                throw new IOException("Bot already left the game");
+            eventLog.record(EventType.COMMAND_SENT, protocol.getGameId(), playerSymbol, command, value);
+            Protocol.INSTANCE.validateOutput(command, protocol);
+            statistics.recordCommand();
+            switch(command){
+                case ANOTHER_PLAYER_COORDINATES:
+                    position.play(value, position.getSymbolToMove());
+                    break;
+                case NEXT_PLAYER_TURN:
+                    position.play(chosenMove);
+                    chosenMove = GomokuEngine.NO_MOVE;
+                    break;
+                case NEW_MOVE:
+                    search = engine.search(position, finishedSearch -> actor.post(() -> onMoveChosen(finishedSearch)));
+                    break;
+                case INCORRECT_MOVE:
+                    throw new IOException("Bot's position is out of step with the game");
+                default:
+                    break;
+            }
+        }
+        
+            private void onMoveChosen(GomokuEngine.Search finishedSearch) throws IOException{
+                if(closed)
+                    return;
+                if(finishedSearch.getMove() == GomokuEngine.NO_MOVE)
+                    throw new IOException("Bot found no move");
+                metrics.botMoveChosen(finishedSearch.getSearchNanos(), finishedSearch.getNodes());
+                chosenMove = finishedSearch.getMove();
+                receivedMove = position.getCoordinates(chosenMove);
+                moveChosenNanos = System.nanoTime();
+                listener.onResponseReceived();
+            }
+        
+        @Override
+        public void flush(){
+        }
+        
+        @Override
+        public long getFrameReceivedNanos(){
+            return moveChosenNanos;
+        }
+        
+        @Override
+        public TransportStatistics getStatistics(){
+            return statistics;
+        }
+        
+        @Override
+        public void setPlayerSymbol(char playerSymbol){
+            this.playerSymbol = playerSymbol;
+        }
+        
+        @Override
+        public void close(){
+            closed = true;
+            if(search != null)
+                search.cancel();
+        }
+    }
+    
+    /*
+     * One side of a simulated game, played by a MoveStrategy in memory. Like a bot it
+     * keeps its own position in step with the commands it gets, and a NEW_MOVE makes
+     * it choose in an event of its own, so a game is a chain of short actor events on
+     * the simulation's pool rather than one deep call stack. A side to move on a full
+     * board leaves, which ends a drawn game as a client would.
+     */
+    private class SimulatedCommunication implements Communication{
+        private final MoveStrategy strategy;
+        private final SimulatedGame game;
+        private final GameActor actor;
+        private final EnginePosition position = new EnginePosition(configuration.gameRules);
+        private final TransportStatistics statistics = new TransportStatistics();
+        private ConnectionListener listener;
+        private char playerSymbol = EventLog.NO_PLAYER;
+        private int chosenMove = GomokuEngine.NO_MOVE;
+        private String receivedMove;
+        private long moveChosenNanos;
+        private boolean closed = false;
+        
+        public SimulatedCommunication(MoveStrategy strategy, SimulatedGame game, GameActor actor){
+            this.strategy = strategy;
+            this.game = game;
+            this.actor = actor;
+        }
+        
+        public void setListener(ConnectionListener listener){
+            this.listener = listener;
+        }
+        
+        @Override
+        public String receiveResponse(ProtocolAutomaton protocol) throws IOException{
+            if(receivedMove == null)
+                throw new IOException("No move chosen");
+            Protocol.INSTANCE.validateInput(Protocol.Input.MY_MOVE, protocol);
+            String move = receivedMove;
+            receivedMove = null;
+            return move;
+        }
+        
+        @Override
+        public void sendCommand(Command command, ProtocolAutomaton protocol) throws IOException{
+            sendCommand(Protocol.Output.valueOf(command.getCommand()), null, protocol);
+        }
+        
+        @Override
+        public void sendCommand(Protocol.Output command, String value, ProtocolAutomaton protocol) throws IOException{
+            if(closed)
+                throw new IOException("Simulated player already left the game");
+            Protocol.INSTANCE.validateOutput(command, protocol);
+            statistics.recordCommand();
+            switch(command){
+                case ANOTHER_PLAYER_COORDINATES:
+                    position.play(value, position.getSymbolToMove());
+                    break;
+                case NEXT_PLAYER_TURN:
+                    position.play(chosenMove);
+                    chosenMove = GomokuEngine.NO_MOVE;
+                    break;
+                case NEW_MOVE:
+                    actor.post(this::chooseMove);
+                    break;
+                case INCORRECT_MOVE:
+                    throw new IOException("Simulated position is out of step with the game");
+                case YOU_WON:
+                    game.won(playerSymbol);
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+            private void chooseMove() throws IOException{
+                if(closed)
+                    return;
+                if(position.getEmptyCellsAmount() == 0){
+                    game.drawn();
+                    listener.onConnectionClosed();
+                    return;
+                }
+                int move = strategy.chooseMove(position);
+                if(move < 0 || move >= position.getCellsAmount() || !position.isEmpty(move))
+                    throw new IOException("Strategy of " + playerSymbol + " chose cell " + move + ", which isn't empty");
+                chosenMove = move;
+                receivedMove = position.getCoordinates(move);
+                moveChosenNanos = System.nanoTime();
+                listener.onResponseReceived();
+            }
+        
+        @Override
+        public void flush(){
+        }
+        
+        @Override
+        public long getFrameReceivedNanos(){
+            return moveChosenNanos;
+        }
+        
+        @Override
+        public TransportStatistics getStatistics(){
+            return statistics;
+        }
+        
+        @Override
+        public void setPlayerSymbol(char playerSymbol){
+            this.playerSymbol = playerSymbol;
+        }
+        
+        @Override
+        public void close(){
+            if(closed)
+                return;
+            closed = true;
+            game.sideClosed(position.getCellsAmount() - position.getEmptyCellsAmount());
+        }
+    }
+    
+    private interface ReactorHandler{
+        public void handle(SelectionKey key);
+    }
+    
+    /*
+     * Selector loop shared by many sessions. Every handler attached to this reactor,
+     * including the game logic it drives, runs on the reactor thread only.
+     */
+    private class Reactor implements Runnable{
+        private final Selector selector;
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private long selectedNanos;
+        
+        public Reactor() throws IOException{
+            this.selector = Selector.open();
+        }
+        
+        public SelectionKey register(SelectableChannel channel, int interestOps, ReactorHandler handler) throws IOException{
+            channel.configureBlocking(false);
+            return channel.register(selector, interestOps, handler);
+        }
+        
+        public void execute(Runnable task){
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+        
+        public void wakeup(){
+            selector.wakeup();
+        }
+        
+        /*
+         * Only meaningful on the reactor thread.
+         */
+        public long getSelectedNanos(){
+            return selectedNanos;
+        }
+        
+        @Override
+        public void run(){
+            try {
+                while(keepProcessing){
+                    selector.select();
+                    selectedNanos = System.nanoTime();
+                    runPendingTasks();
+                    handleSelectedKeys();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                closeAllChannels();
+            }
+        }
+        
+            private void runPendingTasks(){
+                Runnable task;
+                while((task = pendingTasks.poll()) != null)
+                    task.run();
+            }
+            
+            private void handleSelectedKeys(){
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while(selectedKeys.hasNext()){
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ((ReactorHandler) key.attachment()).handle(key);
+                }
+            }
+            
+            private void closeAllChannels(){
+                try {
+                    for(SelectionKey key : selector.keys())
+                        key.channel().close();
+                    selector.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+    }
+    
+    /*
+     * Accepts connections for NIO_REACTOR mode into the lobby of its own shard or, as
+     * the only acceptor of the server, into the lobbies of all shards in turn.
+     */
+    private class ReactorAcceptor implements ReactorHandler{
+        public static final int ALL_SHARDS = -1;
+        private final ServerSocketChannel channel;
+        private final int shard;
+        private int nextShard = 0;
+        
+        public ReactorAcceptor(ServerSocketChannel channel, int shard){
+            this.channel = channel;
+            this.shard = shard;
+        }
+        
+        @Override
+        public void handle(SelectionKey key){
+            try {
+                SocketChannel connection;
+                while((connection = channel.accept()) != null){
+                    int connectionShard = shard;
+                    if(shard == ALL_SHARDS){
+                        connectionShard = nextShard;
+                        nextShard = (nextShard + 1) % reactors.length;
+                    }
+                    metrics.getShard(connectionShard).connectionAccepted();
+                    lobby.join(connection, DEFAULT_LOBBY_BUCKET, connectionShard);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    private static void closeQuietly(SocketChannel... connections){
+        for(SocketChannel connection : connections)
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+    }
+    
+    /*
+     * Decides whether a new connection may join the lobby. Waiting players are
+     * counted here from join until they leave the lobby; games are counted by the
+     * metrics. A session seat can only be paired with a seat of another session, so
+     * each one left waiting counts as a game of its own. With a turn latency target,
+     * the active games limit follows the p99 of the server's turn latency measured
+     * over the last adjustment interval: it shrinks to 80% of the running games
+     * whenever the target is missed, so that finishing games relieve the server, and
+     * grows back by 10% while the target is met and the limit is what holds the games
+     * back.
+     */
+    private class AdmissionControl{
+        private static final long ADJUSTMENT_INTERVAL_NANOS = 1_000_000_000L;
+        private static final long MIN_ADJUSTMENT_SAMPLES = 16;
+        private static final double OVERLOAD_FACTOR = 0.8;
+        private static final double BINDING_LIMIT_FACTOR = 0.9;
+        private final AtomicInteger waitingPlayers = new AtomicInteger();
+        private final AtomicInteger waitingSeats = new AtomicInteger();
+        private volatile int gameLimit = configuration.maxActiveGames;
+        
+        public AdmissionControl(){
+            metrics.activeGamesLimitChanged(gameLimit);
+        }
+        
+        public void start(){
+            if(configuration.turnLatencyTargetNanos > 0)
+                timer.schedule(this::adjust, ADJUSTMENT_INTERVAL_NANOS);
+        }
+        
+        /*
+         * A successful call must be followed by playerLeftLobby once the player is
+         * paired or evicted.
+         */
+        public boolean tryAdmit(){
+            int waiting = waitingPlayers.incrementAndGet();
+            if(!isWithinLimits(waiting, waitingSeats.get())){
+                waitingPlayers.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+        
+        /*
+         * Admits all of the session seats that are going to wait or none. Each
+         * admitted seat must be followed by seatLeftWaiting once it is paired or
+         * its session closes.
+         */
+        public boolean tryAdmitWaitingSeats(int seats){
+            int waiting = waitingSeats.addAndGet(seats);
+            if(seats > 0 && !isWithinLimits(waitingPlayers.get(), waiting)){
+                waitingSeats.addAndGet(-seats);
+                return false;
+            }
+            return true;
+        }
+        
+            private boolean isWithinLimits(int players, int seats){
+                return players + seats <= configuration.maxWaitingPlayers 
+                       && metrics.getActiveGames() + (players + 1) / 2 + seats <= gameLimit;
+            }
+        
+        public void playerLeftLobby(){
+            waitingPlayers.decrementAndGet();
+        }
+        
+        public void seatLeftWaiting(){
+            waitingSeats.decrementAndGet();
+        }
+        
+        public long getRetryAfterMillis(){
+            long retryAfterNanos = configuration.busyRetryAfterNanos;
+            retryAfterNanos += ThreadLocalRandom.current().nextLong(retryAfterNanos / 2 + 1);
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+        }
+        
+            /*
+             * Timer thread only.
+             */
+            private void adjust(){
+                if(!keepProcessing)
+                    return;
+                timer.schedule(this::adjust, ADJUSTMENT_INTERVAL_NANOS);
+                long[] p99 = metrics.swapIntervalServerTurn().getQuantileNanos(new double[]{0.99});
+                if(p99[1] < MIN_ADJUSTMENT_SAMPLES)
+                    return;
+                int limit = gameLimit;
+                long activeGames = metrics.getActiveGames();
+                int newLimit = limit;
+                if(p99[0] > configuration.turnLatencyTargetNanos)
+                    newLimit = Math.max(1, (int) (Math.min(limit, activeGames) * OVERLOAD_FACTOR));
+                else if(activeGames >= limit * BINDING_LIMIT_FACTOR)
+                    newLimit = (int) Math.min(configuration.maxActiveGames, (long) limit + Math.max(1, limit / 10));
+                if(newLimit == limit)
+                    return;
+                gameLimit = newLimit;
+                metrics.activeGamesLimitChanged(newLimit);
+                eventLog.record(EventType.ADMISSION_LIMIT_CHANGED, 
+                                newLimit + " games, turn p99 " + TimeUnit.NANOSECONDS.toMicros(p99[0]) + " us");
+            }
+    }
+    
+    /*
+     * Waiting room between accept and game start. Accepting never waits for a partner:
+     * connections are queued per bucket and paired in arrival order by a matchmaker
+     * thread, which also watches waiting sockets and evicts the ones that disconnect
+     * (or send anything) before a partner shows up. A client can't say anything before
+     * its game starts, so every connection joins DEFAULT_LOBBY_BUCKET and plays the
+     * server's rules. In NIO_REACTOR mode there is one matchmaker per shard, and the
+     * blocking accept loop deals connections to its matchmakers in turn; a player
+     * left alone at any but the first for lobbyHandoffDelay moves to the first one,
+     * where the stragglers of all matchmakers meet. With a bot opponent configured, a
+     * player still alone after botOpponentDelay plays the engine.
+     */
+    private class Lobby{
+        private final Matchmaker[] matchmakers;
+        private int nextMatchmaker = 0;
+        
+        public Lobby(int matchmakerThreadsAmount){
+            this.matchmakers = new Matchmaker[matchmakerThreadsAmount];
+        }
+        
+        public void start(){
+            try {
+                for(int i = 0; i < matchmakers.length; i++){
+                    matchmakers[i] = new Matchmaker(i);
+                    Thread matchmakerThread = new Thread(matchmakers[i], "gomoku-matchmaker-" + i);
+                    matchmakerThread.setDaemon(true);
+                    matchmakerThread.start();
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException("Can't open lobby selector", ex);
+            }
+        }
+        
+        /*
+         * Blocking accept loop only.
+         */
+        public void join(SocketChannel connection, String bucket){
+            join(connection, bucket, nextMatchmaker);
+            nextMatchmaker = (nextMatchmaker + 1) % matchmakers.length;
+        }
+        
+        public void join(SocketChannel connection, String bucket, int shard){
+            if(!admission.tryAdmit()){
+                rejectBusy(connection);
+                return;
+            }
+            metrics.connectionAccepted();
+            matchmakers[shard].join(new WaitingPlayer(connection, bucket, System.nanoTime()));
+        }
+        
+            /*
+             * The answer is tiny and the socket's send buffer empty, so a single
+             * non-blocking write almost always takes all of it; a client that
+             * misses it only sees the connection closed.
+             */
+            private void rejectBusy(SocketChannel connection){
+                metrics.connectionRejected();
+                try {
+                    connection.configureBlocking(false);
+                    ByteBuffer answer = ByteBuffer.allocate(64);
+                    JsonCodec.INSTANCE.encode(Protocol.Output.SERVER_BUSY, String.valueOf(admission.getRetryAfterMillis()), answer);
+                    answer.flip();
+                    connection.write(answer);
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.FINE, null, ex);
+                }
+                closeQuietly(connection);
+            }
+        
+            private void handOff(WaitingPlayer player){
+                matchmakers[0].join(new WaitingPlayer(player.connection, player.bucket, player.joinedNanos));
+            }
+        
+        public void wakeup(){
+            for(Matchmaker matchmaker : matchmakers)
+                if(matchmaker != null)
+                    matchmaker.wakeup();
+        }
+    }
+    
+    private static class WaitingPlayer{
+        private final SocketChannel connection;
+        private final String bucket;
+        private final long joinedNanos;
+        private SelectionKey selectionKey;
+        private Timeout idleTimeout;
+        private Timeout handoffTimeout;
+        private Timeout botTimeout;
+        private boolean evicted = false;
+        private boolean paired = false;
+        private boolean handedOff = false;
+        
+        WaitingPlayer(SocketChannel connection, String bucket, long joinedNanos){
+            this.connection = connection;
+            this.bucket = bucket;
+            this.joinedNanos = joinedNanos;
+        }
+        
+        public boolean isWaiting(){
+            return !evicted && !paired && !handedOff;
+        }
+        
+        public void cancelTimeouts(){
+            if(idleTimeout != null)
+                idleTimeout.cancel();
+            if(handoffTimeout != null)
+                handoffTimeout.cancel();
+            if(botTimeout != null)
+                botTimeout.cancel();
+        }
+    }
+    
+    private class Matchmaker implements Runnable{
+        private final int shard;
+        private final Selector selector;
+        private final Queue<WaitingPlayer> arrivals = new ConcurrentLinkedQueue<>();
+        private final Queue<WaitingPlayer> idlePlayers = new ConcurrentLinkedQueue<>();
+        private final Queue<WaitingPlayer> strandedPlayers = new ConcurrentLinkedQueue<>();
+        private final Queue<WaitingPlayer> lonelyPlayers = new ConcurrentLinkedQueue<>();
+        private final Map<String, Deque<WaitingPlayer>> waitingPlayers = new HashMap<>();
+        private final ByteBuffer probeBuffer = ByteBuffer.allocate(64);
+        
+        public Matchmaker(int shard) throws IOException{
+            this.shard = shard;
+            this.selector = Selector.open();
+        }
+        
+        public void join(WaitingPlayer player){
+            arrivals.add(player);
+            selector.wakeup();
+        }
+        
+        public void wakeup(){
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run(){
+            try {
+                while(keepProcessing){
+                    if(selector.selectedKeys().isEmpty())
+                        selector.select();
+                    evictDisconnectedPlayers();
+                    evictIdlePlayers();
+                    handOffStrandedPlayers();
+                    registerArrivals();
+                    pairWaitingPlayers();
+                    pairLonelyPlayersWithBots();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                for(Deque<WaitingPlayer> bucket : waitingPlayers.values())
+                    for(WaitingPlayer player : bucket)
+                        closeQuietly(player.connection);
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        
+            /*
+             * A waiting player has not been sent anything yet, not even
+             * YOU_ARE_CONNECTED, so there is nothing it may send either: bytes that
+             * arrive in the lobby break the protocol and are rejected as such, while
+             * end of stream or a failed read means the player went away.
+             */
+            private void evictDisconnectedPlayers(){
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while(selectedKeys.hasNext()){
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    WaitingPlayer player = (WaitingPlayer) key.attachment();
+                    try {
+                        probeBuffer.clear();
+                        int readBytes = player.connection.read(probeBuffer);
+                        if(readBytes < 0)
+                            evict(player, "disconnected");
+                        else if(readBytes > 0){
+                            eventLog.record(EventType.ERROR, new IOException("Player sent data before its game started"));
+                            evict(player, "protocol error");
+                        }
+                    } catch (IOException ex) {
+                        evict(player, "disconnected");
+                    }
+                }
+            }
+            
+                private void evict(WaitingPlayer player, String reason){
+                    player.evicted = true;
+                    player.selectionKey.cancel();
+                    player.cancelTimeouts();
+                    closeQuietly(player.connection);
+                    admission.playerLeftLobby();
+                    metrics.connectionClosed();
+                    eventLog.record(EventType.PLAYER_LEFT_LOBBY, reason);
+                }
+            
+            /*
+             * Filled by the timer thread; the player may have been paired or evicted
+             * since its timeout fired.
+             */
+            private void evictIdlePlayers(){
+                WaitingPlayer player;
+                while((player = idlePlayers.poll()) != null)
+                    if(player.isWaiting()){
+                        evict(player, "idle");
+                        metrics.idleConnectionClosed();
+                    }
+            }
+            
+            /*
+             * A player still waiting at its handoff timeout is alone in its bucket,
+             * since any two waiting players are paired at once.
+             */
+            private void handOffStrandedPlayers(){
+                WaitingPlayer player;
+                while((player = strandedPlayers.poll()) != null)
+                    if(player.isWaiting()){
+                        player.handedOff = true;
+                        player.selectionKey.cancel();
+                        player.cancelTimeouts();
+                        waitingPlayers.get(player.bucket).remove(player);
+                        if(executionMode == ExecutionMode.NIO_REACTOR)
+                            metrics.getShard(shard).playerHandedOff();
+                        lobby.handOff(player);
+                    }
+            }
+            
+            private void registerArrivals() throws IOException{
+                WaitingPlayer player;
+                while((player = arrivals.poll()) != null){
+                    player.connection.configureBlocking(false);
+                    player.selectionKey = player.connection.register(selector, SelectionKey.OP_READ, player);
+                    waitingPlayers.computeIfAbsent(player.bucket, bucket -> new ArrayDeque<>()).add(player);
+                    if(configuration.idleTimeoutNanos > 0)
+                        scheduleIdleTimeout(player);
+                    if(shard > 0 && configuration.lobbyHandoffDelayNanos > 0)
+                        scheduleHandoff(player);
+                    if(engine != null)
+                        scheduleBotOpponent(player);
+                }
+            }
+            
+                private void scheduleBotOpponent(final WaitingPlayer player){
+                    player.botTimeout = timer.schedule(() -> {
+                        lonelyPlayers.add(player);
+                        selector.wakeup();
+                    }, configuration.botOpponentDelayNanos - (System.nanoTime() - player.joinedNanos));
+                }
+            
+                private void scheduleHandoff(final WaitingPlayer player){
+                    player.handoffTimeout = timer.schedule(() -> {
+                        strandedPlayers.add(player);
+                        selector.wakeup();
+                    }, configuration.lobbyHandoffDelayNanos);
+                }
+            
+                private void scheduleIdleTimeout(final WaitingPlayer player){
+                    player.idleTimeout = timer.schedule(() -> {
+                        idlePlayers.add(player);
+                        selector.wakeup();
+                    }, configuration.idleTimeoutNanos - (System.nanoTime() - player.joinedNanos));
+                }
+            
+            /*
+             * Like a stranded player, a player still waiting at its bot timeout is
+             * alone in its bucket.
+             */
+            private void pairLonelyPlayersWithBots() throws IOException{
+                if(lonelyPlayers.isEmpty())
+                    return;
+                List<SocketChannel> humanConnections = new ArrayList<>();
+                WaitingPlayer player;
+                while((player = lonelyPlayers.poll()) != null)
+                    if(player.isWaiting()){
+                        player.paired = true;
+                        player.selectionKey.cancel();
+                        player.cancelTimeouts();
+                        waitingPlayers.get(player.bucket).remove(player);
+                        admission.playerLeftLobby();
+                        metrics.playerPaired(System.nanoTime() - player.joinedNanos);
+                        humanConnections.add(player.connection);
+                    }
+                if(humanConnections.isEmpty())
+                    return;
+                selector.selectNow();
+                for(SocketChannel connection : humanConnections)
+                    try {
+                        startBotGame(connection, shard);
+                    } catch (IOException ex) {
+                        Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                        closeQuietly(connection);
+                    }
+            }
+            
+            private void pairWaitingPlayers() throws IOException{
+                List<SocketChannel[]> matches = new ArrayList<>();
+                for(Deque<WaitingPlayer> bucket : waitingPlayers.values()){
+                    WaitingPlayer first;
+                    while((first = pollNotEvicted(bucket)) != null){
+                        WaitingPlayer second = pollNotEvicted(bucket);
+                        if(second == null){
+                            bucket.addFirst(first);
+                            break;
+                        }
+                        for(WaitingPlayer player : new WaitingPlayer[]{first, second}){
+                            player.paired = true;
+                            player.selectionKey.cancel();
+                            player.cancelTimeouts();
+                            admission.playerLeftLobby();
+                        }
+                        metrics.playerPaired(System.nanoTime() - first.joinedNanos);
+                        metrics.playerPaired(System.nanoTime() - second.joinedNanos);
+                        matches.add(new SocketChannel[]{first.connection, second.connection});
+                    }
+                }
+                if(matches.isEmpty())
+                    return;
+                selector.selectNow();
+                for(SocketChannel[] match : matches)
+                    try {
+                        startNewGame(match, shard);
+                    } catch (IOException ex) {
+                        Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                        closeQuietly(match);
+                    }
+            }
+            
+                private WaitingPlayer pollNotEvicted(Deque<WaitingPlayer> bucket){
+                    WaitingPlayer player;
+                    while((player = bucket.poll()) != null && !player.isWaiting());
+                    return player;
+                }
+    }
+    
+    /*
+     * Event stream of one watched game for its spectators. A game only gets one when
+     * its first spectator arrives, starting with a snapshot of the board, and drops it
+     * once the last spectator left, so unwatched games pay nothing for spectating. The
+     * game encodes every event once, straight into a single direct buffer, and then
+     * publishes the new length; a spectator gets no copy of it, only an offset into the
+     * stream, and the reactor writes the published bytes to its socket straight from
+     * the shared buffer. The game only ever schedules one delivery at a time on the
+     * spectator reactor, which owns the spectators and their offsets, so none of them
+     * can slow the turn loop down.
+     */
+    private class GameBroadcast{
+        private static final int INITIAL_STREAM_BYTES = 2 * CodecCommunication.MAX_FRAME_LENGTH;
+        private final int gameId;
+        private final List<Spectator> spectators = new ArrayList<>();
+        private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+        private volatile ByteBuffer stream = ByteBuffer.allocateDirect(INITIAL_STREAM_BYTES);
+        private volatile int publishedBytes = 0;
+        private volatile boolean finished = false;
+        private volatile boolean watched = false;
+        private volatile boolean abandoned = false;
+        
+        GameBroadcast(int gameId){
+            this.gameId = gameId;
+        }
+        
+        /*
+         * Called by the game only. The stream's bytes and the buffer holding them are
+         * written before publishedBytes, which the reactor reads first.
+         */
+        public void publish(Protocol.Output event, String firstValue, String secondValue, boolean lastEvent){
+            ensureCapacity();
+            JsonCodec.INSTANCE.encode(event, firstValue, secondValue, stream);
+            publishedBytes = stream.position();
+            finished = lastEvent;
+            if(watched && deliveryScheduled.compareAndSet(false, true))
+                spectatorReactor.execute(this::deliver);
+        }
+        
+            private void ensureCapacity(){
+                if(stream.remaining() >= CodecCommunication.MAX_FRAME_LENGTH)
+                    return;
+                ByteBuffer largerStream = ByteBuffer.allocateDirect(2 * stream.capacity());
+                stream.flip();
+                largerStream.put(stream);
+                stream = largerStream;
+            }
+        
+        /*
+         * Set by the spectator reactor once the last spectator left; the game then
+         * drops the broadcast and a later spectator gets a new one.
+         */
+        public boolean isAbandoned(){
+            return abandoned;
+        }
+        
+        /*
+         * Spectator reactor only. watched is set before the published length is read,
+         * so every event is either written here or scheduled by publish. Returns false
+         * when the broadcast was abandoned in the meantime.
+         */
+        public boolean subscribe(Spectator spectator) throws IOException{
+            if(abandoned)
+                return false;
+            watched = true;
+            spectators.add(spectator);
+            spectator.writeStream();
+            return true;
+        }
+        
+            private void deliver(){
+                deliveryScheduled.set(false);
+                for(Spectator spectator : spectators)
+                    try {
+                        spectator.writeStream();
+                    } catch (IOException ex) {
+                        spectator.close("disconnected", false);
+                    }
+                spectators.removeIf(Spectator::isClosed);
+                if(spectators.isEmpty())
+                    abandoned = true;
+            }
+    }
+    
+    private class SpectatorAcceptor implements ReactorHandler{
+        private final ServerSocketChannel spectatorChannel;
+        private final Reactor reactor;
+        
+        public SpectatorAcceptor(ServerSocketChannel spectatorChannel, Reactor reactor){
+            this.spectatorChannel = spectatorChannel;
+            this.reactor = reactor;
+        }
+        
+        @Override
+        public void handle(SelectionKey key){
+            try {
+                SocketChannel connection;
+                while((connection = spectatorChannel.accept()) != null)
+                    new Spectator(connection, reactor);
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /*
+     * Watching connection on the spectator reactor. Its only request is a JSON WATCH
+     * frame; after that it just receives the game's stream and anything it sends is
+     * discarded. It's dropped once its socket is full while it lags more than
+     * spectatorBacklog bytes behind, and closed after the game's last event.
+     */
+    private class Spectator implements ReactorHandler{
+        private static final String LATEST_GAME = "LATEST";
+        private final SocketChannel connection;
+        private final SelectionKey selectionKey;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+        private final InboundFrame request = new InboundFrame();
+        private int watchedGameId = 0;
+        private GameBroadcast broadcast;
+        private ByteBuffer streamView;
+        private int offset = 0;
+        private boolean closed = false;
+        
+        public Spectator(SocketChannel connection, Reactor reactor) throws IOException{
+            this.connection = connection;
+            this.selectionKey = reactor.register(connection, SelectionKey.OP_READ, this);
+            metrics.spectatorJoined();
+        }
+        
+        @Override
+        public void handle(SelectionKey key){
+            try {
+                if(key.isValid() && key.isWritable())
+                    writeStream();
+                if(key.isValid() && key.isReadable())
+                    readRequest();
+            } catch (IOException | RuntimeException ex) {
+                close(ex.getMessage() != null ? ex.getMessage() : "disconnected", false);
+            }
+        }
+        
+            private void readRequest() throws IOException{
+                if(connection.read(readBuffer) < 0){
+                    close("disconnected", false);
+                    return;
+                }
+                if(watchedGameId != 0){
+                    readBuffer.clear();
+                    return;
+                }
+                readBuffer.flip();
+                boolean decoded;
+                try {
+                    decoded = JsonCodec.INSTANCE.decode(readBuffer, request);
+                } finally {
+                    readBuffer.compact();
+                }
+                if(!decoded){
+                    if(!readBuffer.hasRemaining())
+                        throw new IOException("Request too long");
+                    return;
+                }
+                if(request.getCommand() != Protocol.Input.WATCH)
+                    throw new IOException("Spectators can only send " + Protocol.Input.WATCH);
+                watch(request.getValue());
+            }
+            
+                /*
+                 * The game attaches the spectator on its own actor, which hands the
+                 * broadcast back to this reactor.
+                 */
+                private void watch(String game) throws IOException{
+                    GomokuGame watchedGame;
+                    try {
+                        watchedGame = LATEST_GAME.equals(game) ? latestGame.get() : watchableGames.get(Integer.valueOf(game));
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Malformed game id " + game, ex);
+                    }
+                    if(watchedGame == null)
+                        throw new IOException("No live game " + game);
+                    watchedGameId = watchedGame.gameId;
+                    eventLog.record(EventType.SPECTATOR_JOINED, watchedGameId, EventLog.NO_PLAYER, null, null);
+                    watchedGame.watch(this);
+                }
+        
+        /*
+         * Spectator reactor only. A broadcast abandoned before this spectator got to
+         * it is asked for again.
+         */
+        public void subscribe(GomokuGame game, GameBroadcast gameBroadcast){
+            if(closed)
+                return;
+            try {
+                broadcast = gameBroadcast;
+                if(!gameBroadcast.subscribe(this)){
+                    broadcast = null;
+                    game.watch(this);
+                }
+            } catch (IOException ex) {
+                close("disconnected", false);
+            }
+        }
+        
+        /*
+         * finished is read before publishedBytes and publishedBytes before stream, so
+         * the view always covers what was published, the last event included.
+         */
+        public void writeStream() throws IOException{
+            if(closed)
+                return;
+            boolean finished = broadcast.finished;
+            int publishedBytes = broadcast.publishedBytes;
+            ByteBuffer stream = broadcast.stream;
+            if(streamView == null || streamView.capacity() != stream.capacity())
+                streamView = stream.duplicate();
+            if(offset < publishedBytes){
+                streamView.limit(publishedBytes);
+                streamView.position(offset);
+                offset += connection.write(streamView);
+            }
+            if(offset < publishedBytes){
+                if(publishedBytes - offset > configuration.spectatorBacklogBytes)
+                    close("too slow", true);
+                else
+                    selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            else if(finished)
+                close("game over", false);
+            else
+                selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+        
+        public void close(String reason, boolean dropped){
+            if(closed)
+                return;
+            closed = true;
+            selectionKey.cancel();
+            closeQuietly(connection);
+            metrics.spectatorLeft(dropped);
+            eventLog.record(EventType.SPECTATOR_LEFT, watchedGameId, EventLog.NO_PLAYER, null, reason);
+        }
+        
+        public boolean isClosed(){
+            return closed;
+        }
+    }
+    
+    private class SessionAcceptor implements ReactorHandler{
+        private final ServerSocketChannel sessionChannel;
+        private final SessionShard[] shards;
+        private int nextShard = 0;
+        
+        public SessionAcceptor(ServerSocketChannel sessionChannel, SessionShard[] shards){
+            this.sessionChannel = sessionChannel;
+            this.shards = shards;
+        }
+        
+        @Override
+        public void handle(SelectionKey key){
+            try {
+                SocketChannel connection;
+                while((connection = sessionChannel.accept()) != null){
+                    SessionShard shard = shards[nextShard];
+                    nextShard = (nextShard + 1) % shards.length;
+                    shard.open(connection);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /*
+     * A session reactor and the seats of its sessions that wait for a game. A seat is
+     * only paired with a seat of another session on the same reactor, so a game, both
+     * of its sides and their sessions all stay on one thread. Seats wait in per-session
+     * queues kept in arrival order, which makes finding a partner O(1) even when one
+     * session asked for hundreds of games. With a bot opponent configured, a seat
+     * still alone after botOpponentDelay plays the engine.
+     */
+    private class SessionShard{
+        private final Reactor reactor;
+        private final Map<Session, Deque<SessionSeat>> waitingSeats = new LinkedHashMap<>();
+        private int waitingSeatsAmount = 0;
+        
+        public SessionShard(Reactor reactor){
+            this.reactor = reactor;
+        }
+        
+        /*
+         * Called on the accepting reactor.
+         */
+        public void open(final SocketChannel connection){
+            reactor.execute(() -> {
+                try {
+                    new Session(connection, this).open();
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                    closeQuietly(connection);
+                }
+            });
+        }
+        
+        /*
+         * Seats of the other sessions that new seats of this one would be paired with
+         * at once.
+         */
+        public int getPartnerSeats(Session session){
+            Deque<SessionSeat> ownSeats = waitingSeats.get(session);
+            return waitingSeatsAmount - (ownSeats != null ? ownSeats.size() : 0);
+        }
+        
+        public void seat(SessionSeat seat){
+            Iterator<Map.Entry<Session, Deque<SessionSeat>>> sessions = waitingSeats.entrySet().iterator();
+            while(sessions.hasNext()){
+                Map.Entry<Session, Deque<SessionSeat>> waiting = sessions.next();
+                if(waiting.getKey() == seat.session)
+                    continue;
+                SessionSeat partner = waiting.getValue().poll();
+                if(waiting.getValue().isEmpty())
+                    sessions.remove();
+                leaveWaiting(partner);
+                startSessionGame(partner, seat);
+                return;
+            }
+            waitingSeats.computeIfAbsent(seat.session, session -> new ArrayDeque<>()).add(seat);
+            waitingSeatsAmount++;
+            seat.waiting = true;
+            if(engine != null)
+                scheduleBotOpponent(seat);
+        }
+        
+            private void scheduleBotOpponent(final SessionSeat seat){
+                seat.botTimeout = timer.schedule(() -> reactor.execute(() -> pairWithBot(seat)), 
+                                                 configuration.botOpponentDelayNanos);
+            }
+            
+            private void pairWithBot(SessionSeat seat){
+                if(!seat.waiting)
+                    return;
+                removeWaitingSeat(seat);
+                eventLog.record(EventType.PLAYER_PAIRED_WITH_BOT, null);
+                metrics.botGameStarted();
+                startSessionGame(() -> new GomokuGame(seat, reactor, null, engine), seat);
+            }
+        
+            private void startSessionGame(SessionSeat first, SessionSeat second){
+                eventLog.record(EventType.PLAYERS_PAIRED, null);
+                startSessionGame(() -> new GomokuGame(new ReactorCommunication[]{first, second}, reactor, null), first, second);
+            }
+            
+            private void startSessionGame(SessionGameFactory game, SessionSeat... seats){
+                for(SessionSeat seat : seats)
+                    metrics.playerPaired(System.nanoTime() - seat.joinedNanos);
+                metrics.sessionGameStarted();
+                try {
+                    game.create().startTheGame();
+                } catch (IOException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                    for(SessionSeat seat : seats)
+                        seat.disconnect();
+                }
+            }
+        
+        private void removeWaitingSeat(SessionSeat seat){
+            leaveWaiting(seat);
+            Deque<SessionSeat> seats = waitingSeats.get(seat.session);
+            seats.remove(seat);
+            if(seats.isEmpty())
+                waitingSeats.remove(seat.session);
+        }
+        
+        public void removeWaitingSeats(Session session){
+            Deque<SessionSeat> seats = waitingSeats.remove(session);
+            if(seats == null)
+                return;
+            for(SessionSeat seat : seats)
+                leaveWaiting(seat);
+        }
+        
+            private void leaveWaiting(SessionSeat seat){
+                seat.waiting = false;
+                if(seat.botTimeout != null)
+                    seat.botTimeout.cancel();
+                waitingSeatsAmount--;
+                admission.seatLeftWaiting();
+            }
+    }
+    
+    private interface SessionGameFactory{
+        public GomokuGame create() throws IOException;
+    }
+    
+    /*
+     * Multiplexed connection of a client that plays many games at once. The session
+     * is confirmed once with YOU_ARE_CONNECTED, then every PLAY frame asks for that
+     * many more games. The seats that would be left waiting go through admission
+     * control, all of them or none: a PLAY that isn't admitted is answered
+     * SERVER_BUSY and the session stays open. Game frames carry the game's id both
+     * ways: a new game shows up as a tagged YOUR_BOARD_SYMBOL, the session hands
+     * each tagged MY_MOVE to the game it names and a game's last frame is a tagged
+     * GAME_OVER. A tagged LEAVE ends its game as a disconnect would, which is how a
+     * client gives up a drawn game. The untagged handshake of a plain connection is
+     * skipped, and USE_CODEC switches the whole session. Frames for games that are
+     * already over are dropped, since the client may have sent them before it read
+     * GAME_OVER.
+     *
+     * The commands of all games go to one write buffer that is written out once per
+     * reactor pass, so a busy session costs one write per pass, not one per game.
+     */
+    private class Session implements ReactorHandler{
+        private static final int MAX_WRITE_BUFFER_LENGTH = 1 << 24;
+        private final SocketChannel connection;
+        private final SessionShard shard;
+        private ByteBuffer readBuffer;
+        private ByteBuffer writeBuffer;
+        private final InboundFrame inboundFrame = new InboundFrame();
+        private final Map<Integer, SessionSeat> playingSeats = new HashMap<>();
+        private final TransportStatistics statistics = new TransportStatistics();
+        private CommandCodec inboundCodec = JsonCodec.INSTANCE;
+        private CommandCodec outboundCodec = JsonCodec.INSTANCE;
+        private SelectionKey selectionKey;
+        private int openSeats = 0;
+        private boolean flushScheduled = false;
+        private boolean closed = false;
+        
+        public Session(SocketChannel connection, SessionShard shard){
+            this.connection = connection;
+            this.shard = shard;
+        }
+        
+        public void open() throws IOException{
+            connection.socket().setTcpNoDelay(true);
+            selectionKey = shard.reactor.register(connection, SelectionKey.OP_READ, this);
+            metrics.sessionOpened();
+            eventLog.record(EventType.SESSION_OPENED, connection.getRemoteAddress());
+            Command command = new Command(Protocol.Output.YOU_ARE_CONNECTED);
+            for(WireFormat wireFormat : configuration.wireFormats)
+                command.addAdditionalValue(wireFormat.name());
+            ensureWriteCapacity();
+            outboundCodec.encode(command, writeBuffer);
+            flush();
+        }
+        
+        @Override
+        public void handle(SelectionKey key){
+            try {
+                if(key.isValid() && key.isWritable())
+                    writeFrames();
+                if(key.isValid() && key.isReadable())
+                    readFrames();
+            } catch (IOException | RuntimeException ex) {
+                close(ex.getMessage() != null ? ex.getMessage() : "disconnected");
+            }
+        }
+        
+            private void readFrames() throws IOException{
+                if(readBuffer == null)
+                    readBuffer = readBuffers.acquire();
+                int bytesRead = connection.read(readBuffer);
+                statistics.recordRead();
+                if(bytesRead < 0){
+                    close("disconnected");
+                    return;
+                }
+                while(!closed && decodeBufferedFrame())
+                    dispatch();
+            }
+            
+            /*
+             * readBuffer is kept in fill mode, like a CodecCommunication's, and released
+             * once no bytes are left in it. Returns false until it holds a complete frame.
+             */
+            private boolean decodeBufferedFrame() throws IOException{
+                if(readBuffer == null)
+                    return false;
+                readBuffer.flip();
+                boolean decoded;
+                try {
+                    decoded = inboundCodec.decode(readBuffer, inboundFrame);
+                } finally {
+                    readBuffer.compact();
+                }
+                if(!decoded && !readBuffer.hasRemaining())
+                    throw new IOException("Frame exceeds " + CodecCommunication.MAX_FRAME_LENGTH + " bytes");
+                if(readBuffer.position() == 0){
+                    readBuffers.release(readBuffer);
+                    readBuffer = null;
+                }
+                return decoded;
+            }
+            
+            /*
+             * A failing game only takes itself down, never the session.
+             */
+            private void dispatch() throws IOException{
+                int game = inboundFrame.getGame();
+                if(game == InboundFrame.NO_GAME){
+                    eventLog.record(EventType.COMMAND_RECEIVED, game, EventLog.NO_PLAYER, 
+                                    inboundFrame.getCommand(), inboundFrame.getValue());
+                    handleSessionCommand();
+                    return;
+                }
+                SessionSeat seat = playingSeats.get(game);
+                if(seat == null)
+                    return;
+                try {
+                    seat.onFrameReceived(inboundFrame.getCommand(), inboundFrame.getValue(), shard.reactor.getSelectedNanos());
+                } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                    eventLog.record(EventType.ERROR, game, seat.playerSymbol, null, ex);
+                    seat.disconnect();
+                }
+            }
+            
+            private void handleSessionCommand() throws IOException{
+                switch(inboundFrame.getCommand()){
+                    case PLAY:
+                        play(inboundFrame.getValue());
+                        break;
+                    case USE_CODEC:
+                        switchWireFormat(inboundFrame.getValue());
+                        break;
+                    default:
+                        metrics.protocolViolation();
+                        throw new IOException("Sessions can't send " + inboundFrame.getCommand() + " without a game");
+                }
+            }
+            
+                private void play(String value) throws IOException{
+                    int games;
+                    try {
+                        games = Integer.parseInt(value);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Malformed games amount " + value, ex);
+                    }
+                    if(games <= 0)
+                        throw new IOException("PLAY asks for " + games + " games");
+                    if(games > configuration.maxGamesPerSession - openSeats 
+                       || !admission.tryAdmitWaitingSeats(Math.max(0, games - shard.getPartnerSeats(this)))){
+                        metrics.connectionRejected();
+                        sendSessionCommand(Protocol.Output.SERVER_BUSY, String.valueOf(admission.getRetryAfterMillis()));
+                        return;
+                    }
+                    openSeats += games;
+                    for(int i = 0; i < games; i++)
+                        shard.seat(new SessionSeat(this));
+                }
+                
+                private void switchWireFormat(String value) throws IOException{
+                    WireFormat wireFormat = WireFormat.valueOf(value);
+                    if(!configuration.wireFormats.contains(wireFormat))
+                        throw new IOException("Wire format " + wireFormat + " is disabled");
+                    inboundCodec = wireFormat.getCodec();
+                    sendSessionCommand(Protocol.Output.CODEC_SELECTED, wireFormat.name());
+                    outboundCodec = inboundCodec;
+                }
+                
+                private void sendSessionCommand(Protocol.Output command, String value) throws IOException{
+                    eventLog.record(EventType.COMMAND_SENT, InboundFrame.NO_GAME, EventLog.NO_PLAYER, command, value);
+                    ensureWriteCapacity();
+                    outboundCodec.encode(command, value, writeBuffer);
+                    statistics.recordCommand();
+                    flush();
+                }
+        
+        public void encode(int game, Protocol.Output command, String value) throws IOException{
+            if(closed)
+                throw new IOException("Session already closed");
+            ensureWriteCapacity();
+            outboundCodec.encode(game, command, value, writeBuffer);
+            statistics.recordCommand();
+        }
+        
+            private void ensureWriteCapacity() throws IOException{
+                if(writeBuffer == null)
+                    writeBuffer = writeBuffers.acquire();
+                if(writeBuffer.remaining() >= CodecCommunication.MAX_FRAME_LENGTH)
+                    return;
+                if(writeBuffer.capacity() >= MAX_WRITE_BUFFER_LENGTH)
+                    throw new IOException("Client doesn't read its commands");
+                writeBuffer = writeBuffers.enlarge(writeBuffer);
+            }
+        
+        public void flush(){
+            if(flushScheduled || closed || writeBuffer == null)
+                return;
+            flushScheduled = true;
+            shard.reactor.execute(() -> {
+                flushScheduled = false;
+                try {
+                    if(!closed)
+                        writeFrames();
+                } catch (IOException ex) {
+                    close(ex.getMessage() != null ? ex.getMessage() : "disconnected");
+                }
+            });
+        }
+        
+            /*
+             * writeBuffer is kept in fill mode and holds every encoded frame not yet
+             * written; it is released once all of them are.
+             */
+            private void writeFrames() throws IOException{
+                if(writeBuffer == null)
+                    return;
+                writeBuffer.flip();
+                try {
+                    statistics.recordWrite(connection.write(writeBuffer));
+                } finally {
+                    writeBuffer.compact();
+                }
+                if(writeBuffer.position() > 0){
+                    selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeBuffers.release(writeBuffer);
+                writeBuffer = null;
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        
+        public void gameStarted(SessionSeat seat){
+            playingSeats.put(seat.game, seat);
+        }
+        
+        /*
+         * Called when the game closes the seat, normally after the outcome was sent.
+         */
+        public void seatClosed(SessionSeat seat){
+            openSeats--;
+            if(playingSeats.remove(seat.game) == null || closed)
+                return;
+            try {
+                eventLog.record(EventType.COMMAND_SENT, seat.game, seat.playerSymbol, Protocol.Output.GAME_OVER, null);
+                encode(seat.game, Protocol.Output.GAME_OVER, null);
+                flush();
+            } catch (IOException ex) {
+                close(ex.getMessage());
+            }
+        }
+        
+        /*
+         * The session's games end as if all their players had disconnected, so their
+         * opponents in other sessions are released.
+         */
+        public void close(String reason){
+            if(closed)
+                return;
+            closed = true;
+            shard.removeWaitingSeats(this);
+            for(SessionSeat seat : new ArrayList<>(playingSeats.values()))
+                seat.disconnect();
+            selectionKey.cancel();
+            closeQuietly(connection);
+            if(readBuffer != null)
+                readBuffers.release(readBuffer);
+            if(writeBuffer != null)
+                writeBuffers.release(writeBuffer);
+            readBuffer = null;
+            writeBuffer = null;
+            metrics.sessionClosed();
+            eventLog.record(EventType.SESSION_CLOSED, reason + ", " + statistics);
+        }
+    }
+    
+    /*
+     * One side of one game in a session. It is the game's Communication: commands are
+     * tagged with the game's id and appended to the session's write buffer, and the
+     * session passes it the frames tagged for its game.
+     */
+    private class SessionSeat implements ReactorCommunication{
+        private final Session session;
+        private final long joinedNanos = System.nanoTime();
+        private final TransportStatistics statistics = new TransportStatistics();
+        private ConnectionListener listener;
+        private int game = InboundFrame.NO_GAME;
+        private char playerSymbol = EventLog.NO_PLAYER;
+        private Protocol.Input receivedCommand;
+        private String receivedValue;
+        private long frameReceivedNanos;
+        private Timeout botTimeout;
+        private boolean waiting = false;
+        private boolean closed = false;
+        
+        public SessionSeat(Session session){
+            this.session = session;
+        }
+        
+        @Override
+        public void setListener(ConnectionListener listener, ProtocolAutomaton protocol){
+            this.listener = listener;
+            this.game = protocol.getGameId();
+            session.gameStarted(this);
+        }
+        
+        public void onFrameReceived(Protocol.Input command, String value, long receivedNanos) throws IOException{
+            eventLog.record(EventType.COMMAND_RECEIVED, game, playerSymbol, command, value);
+            if(command == Protocol.Input.LEAVE){
+                disconnect();
+                return;
+            }
+            receivedCommand = command;
+            receivedValue = value;
+            frameReceivedNanos = receivedNanos;
+            listener.onResponseReceived();
+        }
+        
+        @Override
+        public String receiveResponse(ProtocolAutomaton protocol) throws IOException{
+            if(receivedCommand == null)
+                throw new IOException("No complete frame received");
+            Protocol.Input command = receivedCommand;
+            receivedCommand = null;
+            try {
+                Protocol.INSTANCE.validateInput(command, protocol);
+            } catch (IOException ex) {
+                metrics.protocolViolation();
+                throw ex;
+            }
+            return receivedValue;
+        }
+        
+        /*
+         * YOU_ARE_CONNECTED was sent once for the whole session.
+         */
+        @Override
+        public void sendCommand(Command command, ProtocolAutomaton protocol) throws IOException{
+            Protocol.Output output = Protocol.Output.valueOf(command.getCommand());
+            if(output != Protocol.Output.YOU_ARE_CONNECTED){
+                sendCommand(output, command.getAdditionalValues().isEmpty() ? null : command.getAdditionalValues().get(0), protocol);
+                return;
+            }
+            eventLog.recordValues(EventType.COMMAND_SENT, game, playerSymbol, output, command.getAdditionalValues());
+            Protocol.INSTANCE.validateOutput(output, protocol);
+        }
+        
+        @Override
+        public void sendCommand(Protocol.Output command, String value, ProtocolAutomaton protocol) throws IOException{
+            if(closed)
+                throw new IOException("Seat already left the game");
+            eventLog.record(EventType.COMMAND_SENT, game, playerSymbol, command, value);
+            Protocol.INSTANCE.validateOutput(command, protocol);
+            session.encode(game, command, value);
+            statistics.recordCommand();
+        }
+        
+        @Override
+        public void flush(){
+            session.flush();
+        }
+        
+        @Override
+        public long getFrameReceivedNanos(){
+            return frameReceivedNanos;
+        }
+        
+        @Override
+        public TransportStatistics getStatistics(){
+            return statistics;
+        }
+        
+        @Override
+        public void setPlayerSymbol(char playerSymbol){
+            this.playerSymbol = playerSymbol;
+        }
+        
+        /*
+         * Ends the seat's game as a disconnect of this side would.
+         */
+        public void disconnect(){
+            if(listener != null)
+                listener.onConnectionClosed();
+            else
+                close();
+        }
+        
+        @Override
+        public void close(){
+            if(closed)
+                return;
+            closed = true;
+            session.seatClosed(this);
+        }
+    }
+    
+    /*
+     * A batch of simulated games between two move strategies, started by simulate.
+     * Games run as actors on a work-stealing pool of parallelism workers, so no game
+     * gets a thread of its own, and every finishing game starts the next one, which
+     * keeps GAMES_PER_WORKER games per worker in flight whatever the batch size.
+     */
+    final class GameSimulation{
+        private static final int GAMES_PER_WORKER = 8;
+        private final MoveStrategy crosses;
+        private final MoveStrategy circles;
+        private final long games;
+        private final ForkJoinPool pool;
+        private final SimulationResults results = new SimulationResults(configuration.gameRules);
+        private final AtomicLong startedGames = new AtomicLong();
+        private final AtomicLong finishedGames = new AtomicLong();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long startNanos = System.nanoTime();
+        private volatile long finishNanos;
+        
+        private GameSimulation(MoveStrategy crosses, MoveStrategy circles, long games, int parallelism){
+            this.crosses = crosses;
+            this.circles = circles;
+            this.games = games;
+            this.pool = new ForkJoinPool(parallelism, this::newWorkerThread, null, true);
+        }
+        
+            private ForkJoinWorkerThread newWorkerThread(ForkJoinPool pool){
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("gomoku-simulation-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }
+        
+        private void start(){
+            eventLog.start();
+            if(journal != null)
+                journal.start();
+            Thread timerThread = new Thread(timer, "gomoku-timer");
+            timerThread.setDaemon(true);
+            timerThread.start();
+            for(int i = 0; i < GAMES_PER_WORKER * pool.getParallelism(); i++)
+                startNextGame();
+        }
+        
+            private void startNextGame(){
+                if(startedGames.incrementAndGet() <= games)
+                    new GomokuGame(new SimulatedGame(this), pool).simulateTheGame();
+            }
+        
+        private void gameFinished(SimulatedGame game){
+            results.record(game.winner, game.isDrawn, game.movesAmount);
+            if(finishedGames.incrementAndGet() == games)
+                finish();
+            else
+                startNextGame();
+        }
+        
+            private void finish(){
+                finishNanos = System.nanoTime();
+                pool.shutdown();
+                timer.stop();
+                if(journal != null)
+                    journal.stop();
+                if(engine != null)
+                    engine.shutdown();
+                eventLog.stop();
+                done.countDown();
+            }
+        
+        public MoveStrategy getStrategy(char playerSymbol){
+            return playerSymbol == 'X' ? crosses : circles;
+        }
+        
+        public void await() throws InterruptedException{
+            done.await();
+        }
+        
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException{
+            return done.await(timeout, unit);
+        }
+        
+        public boolean isDone(){
+            return done.getCount() == 0;
+        }
+        
+        public long getElapsedNanos(){
+            return (isDone() ? finishNanos : System.nanoTime()) - startNanos;
+        }
+        
+        public SimulationResults getResults(){
+            return results;
+        }
+        
+        public GameMetricsMXBean getMetrics(){
+            return metrics;
+        }
+    }
+    
+    /*
+     * Outcome of one simulated game as its sides saw it, handed to the simulation once
+     * the game closed both of them.
+     */
+    private class SimulatedGame{
+        private final GameSimulation simulation;
+        private char winner = JournaledGame.NO_WINNER;
+        private boolean isDrawn = false;
+        private int movesAmount = 0;
+        private int closedSides = 0;
+        
+        public SimulatedGame(GameSimulation simulation){
+            this.simulation = simulation;
+        }
+        
+        public SimulatedCommunication[] createSides(GameActor actor){
+            return new SimulatedCommunication[]{new SimulatedCommunication(simulation.getStrategy('X'), this, actor), 
+                                                new SimulatedCommunication(simulation.getStrategy('O'), this, actor)};
+        }
+        
+        public void won(char playerSymbol){
+            winner = playerSymbol;
+        }
+        
+        public void drawn(){
+            isDrawn = true;
+        }
+        
+        /*
+         * The winner's own last move never reaches its position, the loser's does.
+         */
+        public void sideClosed(int sideMovesAmount){
+            movesAmount = Math.max(movesAmount, sideMovesAmount);
+            if(++closedSides == 2)
+                simulation.gameFinished(this);
+        }
+    }
+    
+    /*
+     * Tallies of a simulation, updated by its workers as games finish and safe to read
+     * while it runs. A game neither won nor drawn failed, as when a strategy threw or
+     * chose an occupied cell.
+     */
+    static final class SimulationResults{
+        private final LongAdder crossWins = new LongAdder();
+        private final LongAdder circleWins = new LongAdder();
+        private final LongAdder draws = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder moves = new LongAdder();
+        private final AtomicLongArray gameLengths;
+        
+        SimulationResults(GameRules rules){
+            this.gameLengths = new AtomicLongArray(rules.getBoardSize() * rules.getBoardSize() + 1);
+        }
+        
+        private void record(char winner, boolean isDrawn, int movesAmount){
+            if(winner == 'X')
+                crossWins.increment();
+            else if(winner == 'O')
+                circleWins.increment();
+            else if(isDrawn)
+                draws.increment();
+            else
+                failures.increment();
+            moves.add(movesAmount);
+            gameLengths.incrementAndGet(movesAmount);
+        }
+        
+        public long getGames(){
+            return crossWins.sum() + circleWins.sum() + draws.sum() + failures.sum();
+        }
+        
+        public long getCrossWins(){
+            return crossWins.sum();
+        }
+        
+        public long getCircleWins(){
+            return circleWins.sum();
+        }
+        
+        public long getDraws(){
+            return draws.sum();
+        }
+        
+        public long getFailures(){
+            return failures.sum();
+        }
+        
+        public long getMoves(){
+            return moves.sum();
+        }
+        
+        /*
+         * Shortest game length that at least the given fraction of the games didn't
+         * exceed, or 0 before any game finished.
+         */
+        public int getGameLengthQuantile(double quantile){
+            long[] counts = new long[gameLengths.length()];
+            long total = 0;
+            for(int length = 0; length < counts.length; length++)
+                total += counts[length] = gameLengths.get(length);
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for(int length = 0; length < counts.length; length++)
+                if((seen += counts[length]) >= rank && seen > 0)
+                    return length;
+            return 0;
+        }
+    }
+    
+    static class Command{
+		
+		private String command;
+		private ArrayList<String> additionalValues = new ArrayList<String>();
+		private Integer game;
+		
+		private Command() {
+		}
+		
+		Command(Protocol.Output command) {
+			this.command = String.valueOf(command);
+		}
+		
+		Command(Protocol.Input command) {
+			this.command = String.valueOf(command);
+		}
+		
+		public void setCommand(Protocol.Output command) {
+			this.command = String.valueOf(command);
+		}
+		
+		public String getCommand() {
+			return this.command;
+		}
+		
+		public void addAdditionalValue(String value) {
+			this.additionalValues.add(value);
+		}
+		
+		public ArrayList<String> getAdditionalValues(){
+			return this.additionalValues;
+		}
+		
+		public Integer getGame(){
+			return this.game;
+		}
+	}
+    
+    public static enum WireFormat{ 
+        JSON, 
+        BINARY;
+        
+        CommandCodec getCodec(){
+            return this == JSON ? JsonCodec.INSTANCE : BinaryCodec.INSTANCE;
+        }
+    };
+    
+    /*
+     * Client command decoded in place, reused by its connection for every frame.
+     * The value is a canonical String shared by all connections whenever the
+     * command carries coordinates or a wire format name. Frames of a multiplexed
+     * session may carry the id of their game, all others are NO_GAME.
+     */
+    static final class InboundFrame{
+        public static final int NO_GAME = 0;
+        private int game = NO_GAME;
+        private Protocol.Input command;
+        private String value;
+        
+        public void set(Protocol.Input command, String value){
+            set(NO_GAME, command, value);
+        }
+        
+        public void set(int game, Protocol.Input command, String value){
+            this.game = game;
+            this.command = command;
+            this.value = value;
+        }
+        
+        public int getGame(){
+            return game;
+        }
+        
+        public Protocol.Input getCommand(){
+            return command;
+        }
+        
+        public String getValue(){
+            return value;
+        }
+    }
+    
+    /*
+     * Codecs are stateless and shared by every connection. Encoders append one frame
+     * to frames, which must have MAX_FRAME_LENGTH bytes remaining.
+     */
+    interface CommandCodec{
+        public void encode(Protocol.Output command, String value, ByteBuffer frames);
+        public void encode(Protocol.Input command, String value, ByteBuffer frames);
+        public void encode(Command command, ByteBuffer frames);
+        /*
+         * Frames of a multiplexed session, tagged with the game they belong to.
+         */
+        public void encode(int game, Protocol.Output command, String value, ByteBuffer frames);
+        public void encode(int game, Protocol.Input command, String value, ByteBuffer frames);
+        /*
+         * Consumes the next client frame into frame and returns true, or returns false
+         * when frames doesn't hold a complete one yet.
+         */
+        public boolean decode(ByteBuffer frames, InboundFrame frame) throws IOException;
+    }
+    
+    /*
+     * Newline terminated JSON objects, the original wire format. Every verb's frame is
+     * encoded once up front, so sending only copies bytes; client frames are read by a
+     * streaming parser that maps verbs and values back to shared constants. Gson is
+     * kept for multi-value commands and for frames containing escapes. A session's
+     * frames start with a numeric "game" key.
+     */
+    static enum JsonCodec implements CommandCodec{
+        INSTANCE;
+        private static final Protocol.Input[] INPUTS = Protocol.Input.values();
+        private static final WireFormat[] WIRE_FORMATS = WireFormat.values();
+        private final Gson gson = new Gson();
+        private final byte[] commandKey = ascii("command");
+        private final byte[] valuesKey = ascii("additionalValues");
+        private final byte[] gameKey = ascii("game");
+        private final byte[] gameTag = ascii("{\"game\":");
+        private final byte[] valueSuffix = ascii("]}\n");
+        private final byte[][] outputFrames = new byte[Protocol.Output.values().length][];
+        private final byte[][] outputValuePrefixes = new byte[Protocol.Output.values().length][];
+        private final byte[][] inputFrames = new byte[Protocol.Input.values().length][];
+        private final byte[][] inputValuePrefixes = new byte[Protocol.Input.values().length][];
+        private final byte[][] inputVerbs = new byte[Protocol.Input.values().length][];
+        private final byte[][] wireFormatNames = new byte[WireFormat.values().length][];
+        
+        private JsonCodec(){
+            for(Protocol.Output output : Protocol.Output.values()){
+                outputFrames[output.ordinal()] = ascii("{\"command\":\"" + output + "\",\"additionalValues\":[]}\n");
+                outputValuePrefixes[output.ordinal()] = ascii("{\"command\":\"" + output + "\",\"additionalValues\":[");
+            }
+            for(Protocol.Input input : Protocol.Input.values()){
+                inputFrames[input.ordinal()] = ascii("{\"command\":\"" + input + "\",\"additionalValues\":[]}\n");
+                inputValuePrefixes[input.ordinal()] = ascii("{\"command\":\"" + input + "\",\"additionalValues\":[");
+                inputVerbs[input.ordinal()] = ascii(input.name());
+            }
+            for(WireFormat wireFormat : WireFormat.values())
+                wireFormatNames[wireFormat.ordinal()] = ascii(wireFormat.name());
+        }
+        
+            private static byte[] ascii(String text){
+                return text.getBytes(StandardCharsets.US_ASCII);
+            }
+        
+        @Override
+        public void encode(Protocol.Output command, String value, ByteBuffer frames){
+            encode(outputFrames[command.ordinal()], outputValuePrefixes[command.ordinal()], 0, value, frames);
+        }
+        
+        @Override
+        public void encode(Protocol.Input command, String value, ByteBuffer frames){
+            encode(inputFrames[command.ordinal()], inputValuePrefixes[command.ordinal()], 0, value, frames);
+        }
+        
+        /*
+         * The precomputed frame follows the game tag without its opening brace.
+         */
+        @Override
+        public void encode(int game, Protocol.Output command, String value, ByteBuffer frames){
+            encodeGameTag(game, frames);
+            encode(outputFrames[command.ordinal()], outputValuePrefixes[command.ordinal()], 1, value, frames);
+        }
+        
+        @Override
+        public void encode(int game, Protocol.Input command, String value, ByteBuffer frames){
+            encodeGameTag(game, frames);
+            encode(inputFrames[command.ordinal()], inputValuePrefixes[command.ordinal()], 1, value, frames);
+        }
+        
+            private void encodeGameTag(int game, ByteBuffer frames){
+                checkArgument(game > 0, "Illegal game id %s", game);
+                frames.put(gameTag);
+                int divisor = 1;
+                while(game / divisor >= 10)
+                    divisor *= 10;
+                for(; divisor > 0; divisor /= 10)
+                    frames.put((byte) ('0' + game / divisor % 10));
+                frames.put((byte) ',');
+            }
+        
+            private void encode(byte[] frame, byte[] valuePrefix, int from, String value, ByteBuffer frames){
+                if(value == null)
+                    frames.put(frame, from, frame.length - from);
+                else
+                    encodeWithValue(valuePrefix, from, value, frames);
+            }
+        
+            private void encodeWithValue(byte[] prefix, int from, String value, ByteBuffer frames){
+                frames.put(prefix, from, prefix.length - from);
+                encodeValue(value, frames);
+                frames.put(valueSuffix);
+            }
+            
+            private void encodeValue(String value, ByteBuffer frames){
+                if(isPlainAscii(value)){
+                    frames.put((byte) '"');
+                    for(int i = 0; i < value.length(); i++)
+                        frames.put((byte) value.charAt(i));
+                    frames.put((byte) '"');
+                }
+                else
+                    frames.put(gson.toJson(value).getBytes(StandardCharsets.UTF_8));
+            }
+        
+        /*
+         * Two-value events of the spectator stream, encoded without the Command and
+         * Gson round trip.
+         */
+        public void encode(Protocol.Output command, String firstValue, String secondValue, ByteBuffer frames){
+            byte[] prefix = outputValuePrefixes[command.ordinal()];
+            frames.put(prefix, 0, prefix.length);
+            encodeValue(firstValue, frames);
+            frames.put((byte) ',');
+            encodeValue(secondValue, frames);
+            frames.put(valueSuffix);
+        }
+            
+            private boolean isPlainAscii(String value){
+                for(int i = 0; i < value.length(); i++){
+                    char c = value.charAt(i);
+                    if(c < 0x20 || c > 0x7E || c == '"' || c == '\\')
+                        return false;
+                }
+                return true;
+            }
+        
+        @Override
+        public void encode(Command command, ByteBuffer frames){
+            frames.put(toFrame(command));
+        }
+        
+        public byte[] toFrame(Command command){
+            byte[] frame = (gson.toJson(command) + "\n").getBytes(StandardCharsets.UTF_8);
+            checkArgument(frame.length <= CodecCommunication.MAX_FRAME_LENGTH, "Command %s too long", command.getCommand());
+            return frame;
+        }
+        
+        @Override
+        public boolean decode(ByteBuffer frames, InboundFrame frame) throws IOException{
+            byte[] bytes = frames.array();
+            int offset = frames.arrayOffset();
+            int start = frames.position();
+            for(int i = start; i < frames.limit(); i++){
+                if(bytes[offset + i] == '\n'){
+                    frames.position(i + 1);
+                    int from = skipWhitespace(bytes, offset + start, offset + i);
+                    if(from == offset + i){
+                        start = i + 1;
+                        continue;
+                    }
+                    if(containsEscape(bytes, from, offset + i))
+                        parseWithGson(new String(bytes, from, offset + i - from, StandardCharsets.UTF_8), frame);
+                    else
+                        parse(bytes, from, offset + i, frame);
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+            private boolean containsEscape(byte[] bytes, int from, int to){
+                for(int i = from; i < to; i++)
+                    if(bytes[i] == '\\')
+                        return true;
+                return false;
+            }
+            
+            /*
+             * Accepts the object Gson produces for Command, with keys in any order and
+             * arbitrary whitespace. Only the first additional value is kept.
+             */
+            private void parse(byte[] bytes, int from, int to, InboundFrame frame) throws IOException{
+                int game = InboundFrame.NO_GAME;
+                Protocol.Input command = null;
+                String value = null;
+                int i = skipWhitespace(bytes, expect(bytes, from, to, '{'), to);
+                while(true){
+                    int keyEnd = findStringEnd(bytes, i, to);
+                    int keyStart = i + 1;
+                    i = skipWhitespace(bytes, expect(bytes, skipWhitespace(bytes, keyEnd + 1, to), to, ':'), to);
+                    if(matches(bytes, keyStart, keyEnd, commandKey)){
+                        int verbEnd = findStringEnd(bytes, i, to);
+                        command = findInput(bytes, i + 1, verbEnd);
+                        i = verbEnd + 1;
+                    }
+                    else if(matches(bytes, keyStart, keyEnd, valuesKey)){
+                        i = skipWhitespace(bytes, expect(bytes, i, to, '['), to);
+                        while(byteAt(bytes, i, to) != ']'){
+                            int valueEnd = findStringEnd(bytes, i, to);
+                            if(value == null)
+                                value = canonicalValue(bytes, i + 1, valueEnd);
+                            i = skipWhitespace(bytes, valueEnd + 1, to);
+                            if(byteAt(bytes, i, to) == ',')
+                                i = skipWhitespace(bytes, i + 1, to);
+                        }
+                        i++;
+                    }
+                    else if(matches(bytes, keyStart, keyEnd, gameKey)){
+                        int gameEnd = i;
+                        while(gameEnd < to && bytes[gameEnd] >= '0' && bytes[gameEnd] <= '9')
+                            gameEnd++;
+                        game = parseGame(bytes, i, gameEnd);
+                        i = gameEnd;
+                    }
+                    else
+                        throw new IOException("Unknown key in command " + new String(bytes, from, to - from, StandardCharsets.UTF_8));
+                    i = skipWhitespace(bytes, i, to);
+                    if(byteAt(bytes, i, to) != ',')
+                        break;
+                    i = skipWhitespace(bytes, i + 1, to);
+                }
+                if(skipWhitespace(bytes, expect(bytes, i, to, '}'), to) != to)
+                    throw new IOException("Malformed command " + new String(bytes, from, to - from, StandardCharsets.UTF_8));
+                if(command == null || (value == null && command != Protocol.Input.LEAVE))
+                    throw new IOException("Incomplete command " + new String(bytes, from, to - from, StandardCharsets.UTF_8));
+                frame.set(game, command, value);
+            }
+            
+                private int parseGame(byte[] bytes, int from, int to) throws IOException{
+                    if(to == from || to - from > 9 || bytes[from] == '0')
+                        throw new IOException("Malformed game id in command");
+                    int game = 0;
+                    for(int i = from; i < to; i++)
+                        game = game * 10 + bytes[i] - '0';
+                    return game;
+                }
+            
+            private int skipWhitespace(byte[] bytes, int i, int to){
+                while(i < to && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == '\r' || bytes[i] == '\n'))
+                    i++;
+                return i;
+            }
+            
+            private byte byteAt(byte[] bytes, int i, int to) throws IOException{
+                if(i >= to)
+                    throw new IOException("Truncated command");
+                return bytes[i];
+            }
+            
+            private int expect(byte[] bytes, int i, int to, char expected) throws IOException{
+                if(byteAt(bytes, i, to) != expected)
+                    throw new IOException("Expected '" + expected + "' in command at " + i);
+                return i + 1;
+            }
+            
+            /*
+             * i points at the opening quote. Returns the index of the closing one.
+             */
+            private int findStringEnd(byte[] bytes, int i, int to) throws IOException{
+                expect(bytes, i, to, '"');
+                for(int end = i + 1; end < to; end++)
+                    if(bytes[end] == '"')
+                        return end;
+                throw new IOException("Unterminated string in command");
+            }
+            
+            private boolean matches(byte[] bytes, int from, int to, byte[] expected){
+                if(to - from != expected.length)
+                    return false;
+                for(int i = 0; i < expected.length; i++)
+                    if(bytes[from + i] != expected[i])
+                        return false;
+                return true;
+            }
+            
+            private Protocol.Input findInput(byte[] bytes, int from, int to) throws IOException{
+                for(int i = 0; i < inputVerbs.length; i++)
+                    if(matches(bytes, from, to, inputVerbs[i]))
+                        return INPUTS[i];
+                throw new IOException("Unknown command " + new String(bytes, from, to - from, StandardCharsets.UTF_8));
+            }
+            
+            private String canonicalValue(byte[] bytes, int from, int to){
+                String coordinates = canonicalCoordinates(bytes, from, to);
+                if(coordinates != null)
+                    return coordinates;
+                for(int i = 0; i < wireFormatNames.length; i++)
+                    if(matches(bytes, from, to, wireFormatNames[i]))
+                        return WIRE_FORMATS[i].name();
+                return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+            }
+            
+                private String canonicalCoordinates(byte[] bytes, int from, int to){
+                    if(to - from < 2 || to - from > 3)
+                        return null;
+                    int column = 0;
+                    for(int i = from + 1; i < to; i++){
+                        if(bytes[i] < '0' || bytes[i] > '9')
+                            return null;
+                        column = column * 10 + bytes[i] - '0';
+                    }
+                    if(to - from == 3 && bytes[from + 1] == '0')
+                        return null;
+                    return GameBoard.getCoordinates(bytes[from] - 'A', column);
+                }
+            
+            private void parseWithGson(String text, InboundFrame frame) throws IOException{
+                try {
+                    Command command = gson.fromJson(text, Command.class);
+                    if(command == null || command.getCommand() == null || command.getAdditionalValues() == null)
+                        throw new IOException("Incomplete command " + text);
+                    Protocol.Input input = Protocol.Input.valueOf(command.getCommand());
+                    List<String> values = command.getAdditionalValues();
+                    if(values.isEmpty() && input != Protocol.Input.LEAVE)
+                        throw new IOException("Incomplete command " + text);
+                    if(command.getGame() != null && command.getGame() <= InboundFrame.NO_GAME)
+                        throw new IOException("Malformed game id in command " + text);
+                    frame.set(command.getGame() != null ? command.getGame() : InboundFrame.NO_GAME, 
+                              input, values.isEmpty() ? null : values.get(0));
+                } catch (JsonParseException | IllegalArgumentException ex) {
+                    throw new IOException("Malformed command " + text, ex);
+                }
+            }
+    }
+    
+    /*
+     * Length-prefixed frames: [body length][opcode][payload]. Server verbs use their
+     * Output ordinal as opcode, client verbs 0x40 plus their Input ordinal. Coordinates
+     * are packed into two bytes (row, column), the board symbol into one ASCII byte,
+     * wire formats into one byte per WireFormat ordinal and the games asked for by
+     * PLAY into one unsigned byte; other verbs, LEAVE among them, carry no payload.
+     * A session's game frames set the GAME_TAG bit of the opcode and follow it with
+     * the game id as a big-endian int: [body length][opcode | GAME_TAG][game id][payload].
+     */
+    static enum BinaryCodec implements CommandCodec{
+        INSTANCE;
+        public static final int MAX_BODY_LENGTH = 8;
+        public static final int MAX_PLAY_GAMES = 0xFF;
+        private static final int INPUT_OPCODES = 0x40;
+        private static final int GAME_TAG = 0x80;
+        private static final Map<String, Integer> OPCODES = new HashMap<>();
+        private static final Protocol.Input[] INPUTS = Protocol.Input.values();
+        private static final WireFormat[] WIRE_FORMATS = WireFormat.values();
+        static {
+            for(Protocol.Output output : Protocol.Output.values())
+                OPCODES.put(output.name(), output.ordinal());
+            for(Protocol.Input input : Protocol.Input.values())
+                OPCODES.put(input.name(), INPUT_OPCODES + input.ordinal());
+        }
+        
+        @Override
+        public void encode(Protocol.Output command, String value, ByteBuffer frames){
+            encode(command.ordinal(), InboundFrame.NO_GAME, value, frames);
+        }
+        
+        @Override
+        public void encode(Protocol.Input command, String value, ByteBuffer frames){
+            encode(INPUT_OPCODES + command.ordinal(), InboundFrame.NO_GAME, value, frames);
+        }
+        
+        @Override
+        public void encode(int game, Protocol.Output command, String value, ByteBuffer frames){
+            checkArgument(game > 0, "Illegal game id %s", game);
+            encode(command.ordinal(), game, value, frames);
+        }
+        
+        @Override
+        public void encode(int game, Protocol.Input command, String value, ByteBuffer frames){
+            checkArgument(game > 0, "Illegal game id %s", game);
+            encode(INPUT_OPCODES + command.ordinal(), game, value, frames);
         }
         
-            private Socket[] receiveConnectionsFromTwoPlayers() throws IOException{
-                Socket[] connections = new Socket[2];
-                for(int i = 0; i < 2; i++)
-                    connections[i] = serverConnection.accept();
-                System.out.println("Received connections from 2 players.");
-                return connections;
+        @Override
+        public void encode(Command command, ByteBuffer frames){
+            Integer opcode = OPCODES.get(command.getCommand());
+            checkArgument(opcode != null, "Unknown command %s", command.getCommand());
+            List<String> values = command.getAdditionalValues();
+            if(!isWireFormatsVerb(opcode)){
+                encode(opcode, InboundFrame.NO_GAME, values.isEmpty() ? null : values.get(0), frames);
+                return;
             }
-
-    public void stopRunning(){
-        keepProcessing = false;
-    }    
+            frames.put((byte) (1 + values.size())).put((byte) (int) opcode);
+            for(String value : values)
+                frames.put((byte) WireFormat.valueOf(value).ordinal());
+        }
         
-
-    private interface Communication{
-    	public String receiveResponse(int gameId) throws IOException;
-    	public void sendCommand(Command command, int gameId) throws IOException;
-    	public void close() throws IOException;
-    }
-    
-    private class TcpIpCommunication implements Communication{
-        private final Socket connection;
-        private final PrintWriter out;
-        private final BufferedReader in;
-        private JsonParser jsonParser = new JsonParser();
-        private Gson gson = new Gson();
+            private void encode(int opcode, int game, String value, ByteBuffer frames){
+                int payloadLength = getPayloadLength(opcode, 1);
+                checkArgument((payloadLength == 0) == (value == null), "Opcode %s doesn't take value %s", opcode, value);
+                if(game == InboundFrame.NO_GAME)
+                    frames.put((byte) (1 + payloadLength)).put((byte) opcode);
+                else
+                    frames.put((byte) (1 + Integer.BYTES + payloadLength)).put((byte) (opcode | GAME_TAG)).putInt(game);
+                if(isCoordinatesVerb(opcode)){
+                    int column = 0;
+                    for(int i = 1; i < value.length(); i++)
+                        column = column * 10 + value.charAt(i) - '0';
+                    frames.put((byte) (value.charAt(0) - 'A')).put((byte) column);
+                }
+                else if(opcode == Protocol.Output.YOUR_BOARD_SYMBOL.ordinal())
+                    frames.put((byte) value.charAt(0));
+                else if(isWireFormatsVerb(opcode))
+                    frames.put((byte) WireFormat.valueOf(value).ordinal());
+                else if(opcode == INPUT_OPCODES + Protocol.Input.PLAY.ordinal()){
+                    int games = Integer.parseInt(value);
+                    checkArgument(games > 0 && games <= MAX_PLAY_GAMES, "Can't ask for %s games at once", games);
+                    frames.put((byte) games);
+                }
+            }
         
+            private int getPayloadLength(int opcode, int valuesAmount){
+                if(isCoordinatesVerb(opcode))
+                    return 2;
+                if(opcode == Protocol.Output.YOUR_BOARD_SYMBOL.ordinal() || opcode == INPUT_OPCODES + Protocol.Input.PLAY.ordinal())
+                    return 1;
+                if(isWireFormatsVerb(opcode))
+                    return valuesAmount;
+                return 0;
+            }
+            
+            private boolean isCoordinatesVerb(int opcode){
+                return opcode == Protocol.Output.ANOTHER_PLAYER_COORDINATES.ordinal() 
+                       || opcode == INPUT_OPCODES + Protocol.Input.MY_MOVE.ordinal();
+            }
+            
+            private boolean isWireFormatsVerb(int opcode){
+                return opcode == Protocol.Output.YOU_ARE_CONNECTED.ordinal() 
+                       || opcode == Protocol.Output.CODEC_SELECTED.ordinal()
+                       || opcode == INPUT_OPCODES + Protocol.Input.USE_CODEC.ordinal();
+            }
         
-    	public TcpIpCommunication(Socket connection) throws IOException{
-    		this.connection = connection;
-            this.in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            this.out = new PrintWriter(connection.getOutputStream(), true);
-    	}
-    	
-    	@Override
-    	public String receiveResponse(int gameId) throws IOException{
-    		String jsonResponse = in.readLine();
-    		System.out.println(jsonResponse);
-    		Gson gson = new Gson();
-    		Command command = gson.fromJson(jsonResponse, Command.class);
-    		
-    		if(Protocol.INSTANCE.validateInput(command, gameId))
-    			return command.getAdditionalValues().get(0);
-    		else
-    			throw new IOException();
-    	}
-    	
-    	@Override
-    	public void sendCommand(Command command, int gameId) throws IOException {
-    		System.out.println(gson.toJson(command));
-    		if(Protocol.INSTANCE.validateOutput(command, gameId))
-    			out.println(gson.toJson(command));
-    		
-    	}    	
-    	
-    	public void close() throws IOException{
-    		this.connection.close();
-    		this.out.close();
-    		this.in.close();
-    	}
+        @Override
+        public boolean decode(ByteBuffer frames, InboundFrame frame) throws IOException{
+            if(!frames.hasRemaining())
+                return false;
+            int bodyLength = frames.get(frames.position()) & 0xFF;
+            if(bodyLength == 0 || bodyLength > MAX_BODY_LENGTH)
+                throw new IOException("Illegal frame length " + bodyLength);
+            if(frames.remaining() < 1 + bodyLength)
+                return false;
+            frames.get();
+            int opcode = frames.get() & 0xFF;
+            int tagLength = (opcode & GAME_TAG) != 0 ? Integer.BYTES : 0;
+            opcode &= ~GAME_TAG;
+            int inputOrdinal = opcode - INPUT_OPCODES;
+            if(inputOrdinal < 0 || inputOrdinal >= INPUTS.length || bodyLength != 1 + tagLength + getInputPayloadLength(opcode))
+                throw new IOException("Illegal frame with opcode " + opcode + " and length " + bodyLength);
+            int game = tagLength > 0 ? frames.getInt() : InboundFrame.NO_GAME;
+            if(tagLength > 0 && game <= InboundFrame.NO_GAME)
+                throw new IOException("Illegal game id " + game);
+            Protocol.Input command = INPUTS[inputOrdinal];
+            if(isCoordinatesVerb(opcode))
+                frame.set(game, command, decodeCoordinates(frames.get(), frames.get()));
+            else if(command == Protocol.Input.LEAVE)
+                frame.set(game, command, null);
+            else if(command == Protocol.Input.PLAY)
+                frame.set(game, command, decodePlayedGames(frames.get()));
+            else
+                frame.set(game, command, decodeWireFormat(frames.get()));
+            return true;
+        }
+        
+            private String decodeCoordinates(byte row, byte column){
+                String coordinates = GameBoard.getCoordinates(row, column);
+                return coordinates != null ? coordinates : (char) ('A' + row) + Integer.toString(column);
+            }
+            
+            private int getInputPayloadLength(int opcode){
+                if(isCoordinatesVerb(opcode))
+                    return 2;
+                return opcode == INPUT_OPCODES + Protocol.Input.LEAVE.ordinal() ? 0 : 1;
+            }
+            
+            private String decodePlayedGames(byte games) throws IOException{
+                if(games == 0)
+                    throw new IOException("PLAY asks for no games");
+                return Integer.toString(games & 0xFF);
+            }
+            
+            private String decodeWireFormat(byte ordinal) throws IOException{
+                if(ordinal < 0 || ordinal >= WIRE_FORMATS.length)
+                    throw new IOException("Unknown wire format " + ordinal);
+                return WIRE_FORMATS[ordinal].name();
+            }
     }
-    
-    private class Command{
-		
-		private String command;
-		private ArrayList<String> additionalValues = new ArrayList<String>();
-		
-		private Command(Protocol.Output command) {
-			this.command = String.valueOf(command);
-		}
-		
-		public void setCommand(Protocol.Output command) {
-			this.command = String.valueOf(command);
-		}
-		
-		public String getCommand() {
-			return this.command;
-		}
-		
-		public void addAdditionalValue(String value) {
-			this.additionalValues.add(value);
-		}
-		
-		public ArrayList<String> getAdditionalValues(){
-			return this.additionalValues;
-		}
-	}
 
-    private static enum Protocol {
+    static enum Protocol {
         INSTANCE;
         public static enum Output{YOU_ARE_CONNECTED, 
                                   YOUR_BOARD_SYMBOL, 
@@ -163,403 +5401,1773 @@ public class ServerGomokuGame implements Runnable {
                                   NEXT_PLAYER_TURN, 
                                   ANOTHER_PLAYER_COORDINATES, 
                                   YOU_WON, 
-                                  YOU_LOST};
-        public static enum Input{ MY_MOVE};
+                                  YOU_LOST,
+                                  CODEC_SELECTED,
+                                  GAME_OVER,
+                                  SERVER_BUSY};
+        public static enum Input{ MY_MOVE, USE_CODEC, WATCH, PLAY, LEAVE};
         private static enum State{START_STATE, 
                                   PLAYER_ONE_START, 
                                   READY_FOR_NEW_TURN, 
                                   WAITING_FOR_NEW_MOVE, 
                                   WINNER_INFORMED, 
                                   END_STATE};
-        private SortedMap<Integer, State> gamesProtocolState = Collections.synchronizedSortedMap(new TreeMap<Integer, State>()); 
         
-        public void createProtocolFiniteStateAutoma(final int gameId){
-            gamesProtocolState.put(new Integer(gameId), State.START_STATE);
+        public ProtocolAutomaton createProtocolFiniteStateAutoma(final int gameId){
+            return new ProtocolAutomaton(gameId);
         }
                 
-        public boolean validateInput(Command command, final int gameId) throws IOException{
-            if(processInput(command, gameId))
+        public boolean validateInput(final Input command, final ProtocolAutomaton automaton) throws IOException{
+            if(processInput(command, automaton))
                 return true;
             else
-                throw new IOException("Exception while Protocol in " + gamesProtocolState.get(gameId) + " state");
+                throw new IOException("Exception while Protocol in " + automaton.getState() + " state");
         }
 
-	        private boolean processInput(Command command, int gameId){
-	        	if(Input.valueOf(command.getCommand()) == Input.MY_MOVE)
-	        		if(gamesProtocolState.get(gameId) == State.WAITING_FOR_NEW_MOVE)
-	        			return true;
-	        		else return false;
-        		else
-        			return false;
+	        private boolean processInput(Input command, ProtocolAutomaton automaton){
+	        	switch(command){
+	        	    case MY_MOVE:
+	        	        return automaton.getState() == State.WAITING_FOR_NEW_MOVE;
+	        	    case USE_CODEC:
+	        	        return automaton.getState() != State.END_STATE;
+	        	    default:
+	        	        return false;
+	        	}
 	        }
         
-        public boolean validateOutput(final Command command, final int gameId) throws IOException{
-            if(processOutput(gameId, Output.valueOf(command.getCommand())))
+        public boolean validateOutput(final Output command, final ProtocolAutomaton automaton) throws IOException{
+            if(processOutput(automaton, command))
         		return true;
             else
-                throw new IOException("Exception while Protocol in " + gamesProtocolState.get(gameId) + " state");
+                throw new IOException("Exception while Protocol in " + automaton.getState() + " state");
         }
         
-            private synchronized boolean processOutput(int gameId, final Output output){
-                State currentState = gamesProtocolState.get(gameId);
+            /*
+             * Lock-free: both players of a game may send at the same time, so the
+             * transition is retried until it is applied to the state it was computed from.
+             */
+            boolean processOutput(ProtocolAutomaton automaton, final Output output){
+                State currentState;
+                State nextState;
+                do {
+                    currentState = automaton.getState();
+                    nextState = makeTransition(currentState, output);
+                    if(nextState == null)
+                        return false;
+                } while(!automaton.compareAndSetState(currentState, nextState));
+                return true;
+            }
+            
+            /*
+             * Returns the state after sending output, or null when output is not allowed.
+             */
+            private State makeTransition(final State currentState, final Output output){
+                if(output == Output.CODEC_SELECTED)
+                    return currentState == State.END_STATE ? null : currentState;
                 switch(currentState){
                     case START_STATE:
                         switch (output) {
                             case YOU_ARE_CONNECTED:
-                                return true;
+                                return currentState;
                             case START_THE_GAME:
-                                gamesProtocolState.put(gameId, State.PLAYER_ONE_START);
-                                return true;
+                                return State.PLAYER_ONE_START;
                             case YOUR_BOARD_SYMBOL:
-                                return true;
+                                return currentState;
                             default:
-                                return false;
+                                return null;
                         }
                     case PLAYER_ONE_START:
-                        if(output == Output.START_THE_GAME){
-                            gamesProtocolState.put(gameId, State.READY_FOR_NEW_TURN);
-                            return true;
-                        }
+                        if(output == Output.START_THE_GAME)
+                            return State.READY_FOR_NEW_TURN;
                         else 
-                            return false;
+                            return null;
                     case READY_FOR_NEW_TURN:
                         switch (output) {
                             case WAIT_FOR_YOUR_TURN:
-                                return true;
+                                return currentState;
                             case NEW_MOVE:
-                                gamesProtocolState.put(gameId, State.WAITING_FOR_NEW_MOVE);
-                                return true;
+                                return State.WAITING_FOR_NEW_MOVE;
                             case ANOTHER_PLAYER_COORDINATES:
-                                gamesProtocolState.put(gameId, State.READY_FOR_NEW_TURN);
-                                return true;
+                                return State.READY_FOR_NEW_TURN;
                             default:
-                                return false;
+                                return null;
                         }
                     case WAITING_FOR_NEW_MOVE:
                         switch (output) {
                             case INCORRECT_MOVE:
-                                return true;
+                                return currentState;
                             case NEXT_PLAYER_TURN:
-                                gamesProtocolState.put(gameId, State.READY_FOR_NEW_TURN);
-                                return true;
+                                return State.READY_FOR_NEW_TURN;
                             case YOU_WON:
-                                gamesProtocolState.put(gameId, State.WINNER_INFORMED);
-                                return true;
+                                return State.WINNER_INFORMED;
                             default:
-                                return false;
+                                return null;
                         }
                     case WINNER_INFORMED:
                         switch (output) {
                             case YOU_LOST:
-                                gamesProtocolState.put(gameId, State.END_STATE);
-                                return true;
+                                return State.END_STATE;
                             case ANOTHER_PLAYER_COORDINATES:
-                                return true;
+                                return currentState;
                             default:
-                                return false;
+                                return null;
                         }
-                    default: return false;
+                    default: return null;
+                }
+            }
+
+
+    }
+    
+    /*
+     * Protocol state of a single game. It is owned by its GomokuGame, so validation
+     * never touches state shared with other games and the automaton is released
+     * together with the game.
+     */
+    static final class ProtocolAutomaton{
+        private final int gameId;
+        private final AtomicReference<Protocol.State> state = new AtomicReference<>(Protocol.State.START_STATE);
+        
+        private ProtocolAutomaton(int gameId){
+            this.gameId = gameId;
+        }
+        
+        public int getGameId(){
+            return gameId;
+        }
+        
+        public Protocol.State getState(){
+            return state.get();
+        }
+        
+            private boolean compareAndSetState(Protocol.State expectedState, Protocol.State newState){
+                return state.compareAndSet(expectedState, newState);
+            }
+        
+        public void finish(){
+            state.set(Protocol.State.END_STATE);
+        }
+    }
+    
+    /*
+     * Runs the events of one game one at a time, in the order they were posted, on the
+     * shared worker pool, so a game owns no thread and handing the turn over costs no
+     * context switch. At most MAX_EVENTS_PER_RUN events run back to back before the
+     * actor gives its worker to the other games.
+     */
+    static final class GameActor implements Runnable{
+        private static final int MAX_EVENTS_PER_RUN = 16;
+        private final Queue<Event> mailbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingEvents = new AtomicInteger();
+        private final Executor workers;
+        private final Consumer<Exception> failureHandler;
+        
+        interface Event{
+            public void handle() throws IOException;
+        }
+        
+        GameActor(Executor workers, Consumer<Exception> failureHandler){
+            this.workers = checkNotNull(workers, "Workers can't be null");
+            this.failureHandler = checkNotNull(failureHandler, "Failure handler can't be null");
+        }
+        
+        public void post(Event event){
+            mailbox.add(event);
+            if(pendingEvents.getAndIncrement() == 0)
+                workers.execute(this);
+        }
+        
+        /*
+         * pendingEvents only drops to zero after the last event ran, so exactly one
+         * worker runs the actor while its mailbox isn't empty.
+         */
+        @Override
+        public void run(){
+            for(int i = 0; i < MAX_EVENTS_PER_RUN; i++){
+                try {
+                    mailbox.poll().handle();
+                } catch (IOException | RuntimeException ex) {
+                    failureHandler.accept(ex);
+                }
+                if(pendingEvents.decrementAndGet() == 0)
+                    return;
+            }
+            workers.execute(this);
+        }
+    }
+    
+    /*
+     * Hashed timing wheel (Varghese and Lauck) for deadlines of every connection. A
+     * timeout is hashed into one of WHEEL_SIZE buckets by its expiry tick, so
+     * scheduling and cancelling are O(1) whatever the amount pending, and the timer
+     * thread only walks one bucket per tick. Expiry is accurate to one tick; tasks run
+     * on the timer thread and must only hand work over to the thread that owns it.
+     */
+    static final class HashedWheelTimer implements Runnable{
+        private static final int WHEEL_SIZE = 512;
+        private static final int MAX_TRANSFERS_PER_TICK = 100000;
+        private final long tickNanos;
+        private final TimerBucket[] wheel = new TimerBucket[WHEEL_SIZE];
+        private final Queue<Timeout> scheduledTimeouts = new ConcurrentLinkedQueue<>();
+        private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingTimeouts = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private volatile boolean keepRunning = true;
+        private long tick;
+        
+        HashedWheelTimer(long tickNanos){
+            checkArgument(tickNanos > 0, "Timer tick must be positive");
+            this.tickNanos = tickNanos;
+            for(int i = 0; i < WHEEL_SIZE; i++)
+                wheel[i] = new TimerBucket();
+        }
+        
+        public Timeout schedule(Runnable task, long delayNanos){
+            Timeout timeout = new Timeout(this, checkNotNull(task, "Task can't be null"), 
+                                          System.nanoTime() - startNanos + Math.max(0, delayNanos));
+            pendingTimeouts.incrementAndGet();
+            scheduledTimeouts.add(timeout);
+            return timeout;
+        }
+        
+        public long getPendingTimeouts(){
+            return pendingTimeouts.get();
+        }
+        
+        public void stop(){
+            keepRunning = false;
+        }
+        
+        @Override
+        public void run(){
+            while(keepRunning){
+                waitForNextTick();
+                removeCancelledTimeouts();
+                transferScheduledTimeouts();
+                wheel[(int) (tick & (WHEEL_SIZE - 1))].expireTimeouts();
+                tick++;
+            }
+        }
+        
+            private void waitForNextTick(){
+                long tickDeadlineNanos = startNanos + (tick + 1) * tickNanos;
+                long sleepNanos;
+                while((sleepNanos = tickDeadlineNanos - System.nanoTime()) > 0 && keepRunning)
+                    LockSupport.parkNanos(this, sleepNanos);
+            }
+            
+            private void removeCancelledTimeouts(){
+                Timeout timeout;
+                while((timeout = cancelledTimeouts.poll()) != null)
+                    if(timeout.bucket != null)
+                        timeout.bucket.remove(timeout);
+            }
+            
+            /*
+             * Bounded, so a burst of new timeouts can't delay the expiry of due ones.
+             */
+            private void transferScheduledTimeouts(){
+                Timeout timeout;
+                for(int i = 0; i < MAX_TRANSFERS_PER_TICK && (timeout = scheduledTimeouts.poll()) != null; i++){
+                    if(timeout.isCancelled())
+                        continue;
+                    long expiryTick = timeout.deadlineNanos / tickNanos;
+                    timeout.remainingRounds = (expiryTick - tick) / WHEEL_SIZE;
+                    wheel[(int) (Math.max(expiryTick, tick) & (WHEEL_SIZE - 1))].add(timeout);
+                }
+            }
+    }
+    
+    static final class Timeout{
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+        private TimerBucket bucket;
+        private Timeout previous;
+        private Timeout next;
+        
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadlineNanos){
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+        
+        /*
+         * Returns false when the task already ran or is running.
+         */
+        public boolean cancel(){
+            if(!state.compareAndSet(PENDING, CANCELLED))
+                return false;
+            timer.pendingTimeouts.decrementAndGet();
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+        
+        public boolean isCancelled(){
+            return state.get() == CANCELLED;
+        }
+        
+            private void expire(){
+                if(!state.compareAndSet(PENDING, EXPIRED))
+                    return;
+                timer.pendingTimeouts.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+    }
+    
+    /*
+     * Doubly linked list of the timeouts hashed to one wheel slot, touched by the
+     * timer thread only.
+     */
+    private static final class TimerBucket{
+        private Timeout head;
+        private Timeout tail;
+        
+        public void add(Timeout timeout){
+            timeout.bucket = this;
+            if(head == null)
+                head = tail = timeout;
+            else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+        
+        public void remove(Timeout timeout){
+            if(timeout.bucket != this)
+                return;
+            if(timeout.previous != null)
+                timeout.previous.next = timeout.next;
+            else
+                head = timeout.next;
+            if(timeout.next != null)
+                timeout.next.previous = timeout.previous;
+            else
+                tail = timeout.previous;
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+        
+        public void expireTimeouts(){
+            Timeout timeout = head;
+            while(timeout != null){
+                Timeout next = timeout.next;
+                if(timeout.remainingRounds <= 0 || timeout.isCancelled()){
+                    remove(timeout);
+                    timeout.expire();
+                }
+                else
+                    timeout.remainingRounds--;
+                timeout = next;
+            }
+        }
+    }
+    
+    /*
+     * A game is driven by events: moves and disconnects of its two players and expired
+     * deadlines. Reactor sessions deliver I/O on the reactor thread both players are
+     * pinned to and their GameActor runs there too; blocking sessions read on one thread
+     * per player and post every move to the game's GameActor on the shared workers.
+     * Either way the game state is only ever touched by one thread at a time.
+     */
+    private class GomokuGame {
+        private final int gameId;
+        private final ProtocolAutomaton protocolAutomaton;
+        private final Player[] players = new Player[2];
+        private final GameBoard gameBoard = new GameBoard(configuration.gameRules);
+        private final GameActor actor;
+        private boolean isGameNotOver = true;
+        private volatile boolean isGameClosed = false;
+        private final long createdNanos = System.nanoTime();
+        private Player playerOnMove;
+        private long turnStartNanos;
+        private long turnTimeoutNanos;
+        private Timeout deadlineCheck;
+        private long deadlineCheckNanos;
+        private int movesAmount = 0;
+        private boolean isOutcomeRecorded = false;
+        private GameBroadcast broadcast;
+        private final ShardLoad shardLoad;
+        private final BotCommunication bot;
+        
+        GomokuGame(Socket[] playersConnections) throws IOException{
+            if(playersConnections.length != 2)
+                throw new IOException("Wrong connections amount");
+            this.gameId = GAME_IDS.incrementAndGet();
+            this.protocolAutomaton = Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+            this.actor = new GameActor(gameWorkers, this::onGameFailed);
+            this.shardLoad = null;
+            this.bot = null;
+            metrics.gameStarted();
+            initPlayers(new Communication[]{new TcpIpCommunication(playersConnections[0], actor), 
+                                            new TcpIpCommunication(playersConnections[1], actor)});
+        }
+        
+        GomokuGame(Socket humanConnection, GomokuEngine engine) throws IOException{
+            this.gameId = GAME_IDS.incrementAndGet();
+            this.protocolAutomaton = Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+            this.actor = new GameActor(gameWorkers, this::onGameFailed);
+            this.shardLoad = null;
+            this.bot = new BotCommunication(engine, actor);
+            metrics.gameStarted();
+            initPlayers(new Communication[]{new TcpIpCommunication(humanConnection, actor), bot});
+            bot.setListener(players[1]);
+        }
+        
+        /*
+         * shardLoad is null for the games of multiplexed sessions.
+         */
+        GomokuGame(ReactorCommunication[] playersCommunications, Reactor reactor, ShardLoad shardLoad) throws IOException{
+            if(playersCommunications.length != 2)
+                throw new IOException("Wrong connections amount");
+            this.gameId = GAME_IDS.incrementAndGet();
+            this.protocolAutomaton = Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+            this.actor = new GameActor(reactor::execute, this::onGameFailed);
+            this.shardLoad = shardLoad;
+            this.bot = null;
+            metrics.gameStarted();
+            if(shardLoad != null)
+                shardLoad.gameStarted();
+            initPlayers(playersCommunications);
+            playersCommunications[0].setListener(players[0], protocolAutomaton);
+            playersCommunications[1].setListener(players[1], protocolAutomaton);
+        }
+        
+        GomokuGame(ReactorCommunication humanCommunication, Reactor reactor, ShardLoad shardLoad, GomokuEngine engine){
+            this.gameId = GAME_IDS.incrementAndGet();
+            this.protocolAutomaton = Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+            this.actor = new GameActor(reactor::execute, this::onGameFailed);
+            this.shardLoad = shardLoad;
+            this.bot = new BotCommunication(engine, actor);
+            metrics.gameStarted();
+            if(shardLoad != null)
+                shardLoad.gameStarted();
+            initPlayers(new Communication[]{humanCommunication, bot});
+            humanCommunication.setListener(players[0], protocolAutomaton);
+            bot.setListener(players[1]);
+        }
+        
+        /*
+         * Simulated games: both sides are move strategies answering in memory and the
+         * actor runs on the simulation's pool.
+         */
+        GomokuGame(SimulatedGame simulatedGame, Executor workers){
+            this.gameId = GAME_IDS.incrementAndGet();
+            this.protocolAutomaton = Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+            this.actor = new GameActor(workers, this::onGameFailed);
+            this.shardLoad = null;
+            this.bot = null;
+            metrics.gameStarted();
+            SimulatedCommunication[] sides = simulatedGame.createSides(actor);
+            initPlayers(sides);
+            sides[0].setListener(players[0]);
+            sides[1].setListener(players[1]);
+        }
+
+            private void initPlayers(Communication[] playersCommunications){
+                players[0] = new Player(playersCommunications[0], 'X');
+                players[1] = new Player(playersCommunications[1], 'O');
+            }
+            
+        /*
+         * Blocking sessions: the handshake is the actor's first event and each human
+         * player gets a thread that only reads.
+         */
+        public void runTheGame(){
+            actor.post(this::startTheGame);
+            startPlayerThread(players[0]); 
+            if(bot == null)
+                startPlayerThread(players[1]); 
+        }
+        
+        public void simulateTheGame(){
+            actor.post(this::startTheGame);
+        }
+        
+        /*
+         * Sends the init handshake to both players, one command for each in turn, then
+         * asks X for the first move. Every later turn is driven by Player.onMoveReceived.
+         */
+        public void startTheGame() throws IOException{
+            for(Player player : players)
+                player.sendConnectionConfirm();
+            for(Player player : players)
+                player.sendAssignedBoardSymbol();
+            for(Player player : players)
+                player.sendStartCommand();
+            for(Player player : players)
+                player.sendWaitCommand();
+            eventLog.record(EventType.GAME_STARTED, gameId, EventLog.NO_PLAYER, null, configuration.gameRules);
+            if(journal != null)
+                journal.gameStarted(gameId, configuration.gameRules);
+            if(spectatorReactor != null){
+                watchableGames.put(gameId, this);
+                latestGame.set(this);
+            }
+            playerOnMove = players[0];
+            playerOnMove.sendNewMoveCommand();
+            for(Player player : players)
+                player.communication.flush();
+            metrics.handshakeFinished(System.nanoTime() - createdNanos);
+            scheduleDeadlineCheck(turnTimeoutNanos);
+        }
+        
+        /*
+         * Called by the spectator reactor. The first spectator of the game, or the
+         * first after all others left, starts a broadcast with the board as it stands,
+         * one stone per event in board order, since the game keeps no move list.
+         */
+        public void watch(Spectator spectator){
+            actor.post(() -> {
+                if(isOutcomeRecorded){
+                    spectatorReactor.execute(() -> spectator.close("no live game " + gameId, false));
+                    return;
+                }
+                if(broadcast == null || broadcast.isAbandoned())
+                    startBroadcast();
+                GameBroadcast gameBroadcast = broadcast;
+                spectatorReactor.execute(() -> spectator.subscribe(this, gameBroadcast));
+            });
+        }
+        
+            private void startBroadcast(){
+                broadcast = new GameBroadcast(gameId);
+                broadcast.publish(Protocol.Output.START_THE_GAME, String.valueOf(gameId), configuration.gameRules.toString(), false);
+                int boardSize = configuration.gameRules.getBoardSize();
+                for(int row = 0; row < boardSize; row++)
+                    for(int col = 0; col < boardSize; col++)
+                        if(gameBoard.getSymbol(row, col) != GameBoard.EMPTY)
+                            broadcast.publish(Protocol.Output.ANOTHER_PLAYER_COORDINATES, GameBoard.getCoordinates(row, col), 
+                                              getSymbolName(gameBoard.getSymbol(row, col)), false);
+            }
+            
+            private String getSymbolName(char playerSymbol){
+                return playerSymbol == 'X' ? "X" : playerSymbol == 'O' ? "O" : String.valueOf(playerSymbol);
+            }
+        
+            /*
+             * One timeout per game follows whoever is on move: a move only restarts
+             * turnStartNanos, and the check reschedules itself for the rest of the
+             * current turn until a deadline really passes. It is only replaced when a
+             * turn ends before the pending check, as a move after a longer handshake does.
+             */
+            private void startTurn(long timeoutNanos){
+                turnStartNanos = System.nanoTime();
+                turnTimeoutNanos = timeoutNanos;
+                if(deadlineCheck != null && timeoutNanos > 0 && turnStartNanos + timeoutNanos - deadlineCheckNanos < 0){
+                    deadlineCheck.cancel();
+                    scheduleDeadlineCheck(timeoutNanos);
+                }
+            }
+            
+            private void scheduleDeadlineCheck(long delayNanos){
+                long checkIntervalNanos = Math.max(configuration.moveTimeoutNanos, configuration.handshakeTimeoutNanos);
+                if(checkIntervalNanos == 0 || isGameClosed)
+                    return;
+                long checkDelayNanos = delayNanos > 0 ? delayNanos : checkIntervalNanos;
+                deadlineCheckNanos = System.nanoTime() + checkDelayNanos;
+                deadlineCheck = timer.schedule(() -> actor.post(this::checkTurnDeadline), checkDelayNanos);
+            }
+            
+            private void checkTurnDeadline() throws IOException{
+                if(!isGameNotOver)
+                    return;
+                long remainingNanos = turnTimeoutNanos - (System.nanoTime() - turnStartNanos);
+                if(turnTimeoutNanos == 0 || remainingNanos > 0)
+                    scheduleDeadlineCheck(turnTimeoutNanos == 0 ? 0 : remainingNanos);
+                else
+                    forfeit(playerOnMove);
+            }
+            
+            /*
+             * The loser is still asked for a move, so the protocol lets its opponent be
+             * told it won right away.
+             */
+            private void forfeit(Player loser) throws IOException{
+                isGameNotOver = false;
+                loser.getOpponent().endGame();
+                loser.sendLostCommand();
+                recordOutcome(GameOutcome.FORFEITED, loser.getOpponent().boardSymbol);
+                eventLog.record(EventType.GAME_FORFEITED, gameId, loser.boardSymbol, null, "turn deadline");
+                metrics.gameForfeited();
+                closeTheGame();
+            }
+        
+            private void onGameFailed(Exception ex){
+                if(!isGameClosed){
+                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                    eventLog.record(EventType.ERROR, gameId, EventLog.NO_PLAYER, null, ex);
+                }
+                closeTheGame();
+            }
+        
+            private void recordMove(String coordinates, char playerSymbol){
+                movesAmount++;
+                if(journal != null)
+                    journal.moveAccepted(gameId, movesAmount, gameBoard.decodeCell(coordinates), playerSymbol);
+                if(broadcast != null && broadcast.isAbandoned())
+                    broadcast = null;
+                if(broadcast != null)
+                    broadcast.publish(Protocol.Output.ANOTHER_PLAYER_COORDINATES, coordinates, getSymbolName(playerSymbol), false);
+            }
+            
+            private void recordOutcome(GameOutcome outcome, char winner){
+                if(isOutcomeRecorded)
+                    return;
+                isOutcomeRecorded = true;
+                if(journal != null)
+                    journal.gameFinished(gameId, outcome, winner);
+                if(spectatorReactor != null){
+                    watchableGames.remove(gameId);
+                    latestGame.compareAndSet(this, null);
+                }
+                if(broadcast != null && !broadcast.isAbandoned())
+                    broadcast.publish(Protocol.Output.GAME_OVER, outcome.name(), getSymbolName(winner), true);
+                broadcast = null;
+            }
+        
+            private void closeTheGame(){
+                if(isGameClosed)
+                    return;
+                recordOutcome(GameOutcome.ABANDONED, JournaledGame.NO_WINNER);
+                isGameClosed = true;
+                isGameNotOver = false;
+                if(deadlineCheck != null)
+                    deadlineCheck.cancel();
+                protocolAutomaton.finish();
+                for(Player player : players)
+                    try {
+                        player.communication.close();
+                    } catch (IOException ex) {
+                        Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                reportGameClosed();
+            }
+            
+            private void reportGameClosed(){
+                for(Player player : players)
+                    metrics.gameTransportClosed(player.communication.getStatistics());
+                if(eventLog.isRecorded(EventType.GAME_CLOSED)){
+                    TransportStatistics statistics = new TransportStatistics();
+                    for(Player player : players)
+                        statistics.add(player.communication.getStatistics());
+                    eventLog.record(EventType.GAME_CLOSED, gameId, EventLog.NO_PLAYER, null, statistics);
+                }
+                metrics.gameFinished();
+                if(shardLoad != null)
+                    shardLoad.gameFinished();
+            }
+
+        private class Player implements Runnable, ConnectionListener{
+            private final char boardSymbol;
+        	private final Communication communication;
+        	private long moveRequestedNanos;
+        	private long moveReceivedNanos;
+        	private boolean hasMoved = false;
+        	
+            Player(final Communication communication, final char boardSymbol) {
+                this.communication = communication;
+                this.boardSymbol = boardSymbol;
+                communication.setPlayerSymbol(boardSymbol);
+            }
+
+            /*
+             * Reading loop of a blocking session. It ends when the client disconnects or
+             * the game closes the socket; a disconnect is posted like any other event.
+             */
+            @Override
+            public void run(){
+                try {
+                    while(!isGameClosed){
+                        final String newMoveCoordinates = communication.receiveResponse(protocolAutomaton);
+                        actor.post(() -> onMoveReceived(newMoveCoordinates));
+                    }
+                } catch (IOException ex) {
+                    if(!isGameClosed){
+                        Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
+                        eventLog.record(EventType.ERROR, gameId, boardSymbol, null, ex);
+                    }
+                    actor.post(this::onConnectionClosed);
+                }
+            }    
+
+                private void sendConnectionConfirm() throws IOException{
+                    Command command = new Command(Protocol.Output.YOU_ARE_CONNECTED);
+                    for(WireFormat wireFormat : configuration.wireFormats)
+                        command.addAdditionalValue(wireFormat.name());
+                	this.communication.sendCommand(command, protocolAutomaton);
+                }
+
+                private void sendAssignedBoardSymbol() throws IOException{
+                	if(this.boardSymbol == 'X')
+                    	this.communication.sendCommand(Protocol.Output.YOUR_BOARD_SYMBOL, "O", protocolAutomaton);
+                    else
+                    	this.communication.sendCommand(Protocol.Output.YOUR_BOARD_SYMBOL, "X", protocolAutomaton);
+                }
+
+                private void sendStartCommand() throws IOException{
+                	this.communication.sendCommand(Protocol.Output.START_THE_GAME, protocolAutomaton);
+                }
+
+                private void sendWaitCommand() throws IOException{
+                	this.communication.sendCommand(Protocol.Output.WAIT_FOR_YOUR_TURN, protocolAutomaton);
+                }
+
+                private void sendOpponentsMoveCoordinates(String coordinates) throws IOException{
+                	this.communication.sendCommand(Protocol.Output.ANOTHER_PLAYER_COORDINATES, coordinates, protocolAutomaton);
+                }
+            
+                private void sendLostCommand() throws IOException{
+                	this.communication.sendCommand(Protocol.Output.YOU_LOST, protocolAutomaton);
+                }
+                
+                private void sendNewMoveCommand() throws IOException{
+                	this.communication.sendCommand(Protocol.Output.NEW_MOVE, protocolAutomaton);
+                	moveRequestedNanos = System.nanoTime();
+                	startTurn(hasMoved ? configuration.moveTimeoutNanos : configuration.handshakeTimeoutNanos);
+                }
+            
+            	private void sendIncorrectMoveCommand() throws IOException{
+                	this.communication.sendCommand(Protocol.Output.INCORRECT_MOVE, protocolAutomaton);
+                	metrics.incorrectMove();
+                	moveRequestedNanos = System.nanoTime();
+            	}
+         
+                private void endGame() throws IOException{
+                	this.communication.sendCommand(Protocol.Output.YOU_WON, protocolAutomaton);
+                    eventLog.record(EventType.GAME_WON, gameId, boardSymbol, null, null);
+                }
+                
+                private void continueGame() throws IOException {
+                	this.communication.sendCommand(Protocol.Output.NEXT_PLAYER_TURN, protocolAutomaton);
+                	this.communication.sendCommand(Protocol.Output.WAIT_FOR_YOUR_TURN, protocolAutomaton);
+                }
+            
+            @Override
+            public void onResponseReceived() throws IOException{
+                onMoveReceived(communication.receiveResponse(protocolAutomaton));
+            }
+            
+            public void onMoveReceived(String newMoveCoordinates) throws IOException{
+                if(this != playerOnMove || !isGameNotOver){
+                    metrics.protocolViolation();
+                    throw new IOException("Player " + boardSymbol + " sent a move out of turn");
+                }
+                moveReceivedNanos = System.nanoTime();
+                metrics.moveReceived(moveReceivedNanos - moveRequestedNanos);
+                if(!gameBoard.isNewMoveCorrect(newMoveCoordinates)){
+                    sendIncorrectMoveCommand();
+                    communication.flush();
+                    recordTurnServed();
+                    return;
+                }
+                gameBoard.addNewMove(newMoveCoordinates, boardSymbol);
+                hasMoved = true;
+                recordMove(newMoveCoordinates, boardSymbol);
+                Player opponent = getOpponent();
+                if(gameBoard.checkVictory(newMoveCoordinates)){
+                    isGameNotOver = false;
+                    endGame();
+                    recordOutcome(GameOutcome.WON, boardSymbol);
+                    opponent.sendOpponentsMoveCoordinates(newMoveCoordinates);
+                    opponent.sendLostCommand();
+                    closeTheGame();
+                    recordTurnServed();
+                }
+                else {
+                    continueGame();
+                    opponent.sendOpponentsMoveCoordinates(newMoveCoordinates);
+                    opponent.sendNewMoveCommand();
+                    playerOnMove = opponent;
+                    communication.flush();
+                    opponent.communication.flush();
+                    recordTurnServed();
+                }
+            }
+            
+                private void recordTurnServed(){
+                    long now = System.nanoTime();
+                    metrics.moveProcessed(now - moveReceivedNanos);
+                    metrics.turnServed(now - communication.getFrameReceivedNanos());
+                }
+            
+                private Player getOpponent(){
+                    return this == players[0] ? players[1] : players[0];
                 }
+            
+            @Override
+            public void onConnectionClosed(){
+                closeTheGame();
             }
-
-
+        }
     }
     
-    private class GomokuGame {
-        private final int gameId;
-        private final Player[] players = new Player[2];
-        private final Semaphore onePlayerTurnAtATime = new Semaphore(1, true);
-        private final SynchronousQueue<String> NewMoveCoordinates = new SynchronousQueue();
-        private final CyclicBarrier waitForSecondPlayer = new CyclicBarrier(2);
-        private final GameBoard gameBoard = new GameBoard();
-        private volatile boolean isGameNotOver = true;
-        private volatile boolean isItFirstTurn = true;
+    /*
+     * One bitset per player, size * size bits each, indexed by row * size + col.
+     * Coordinates are a row letter followed by a decimal column ("A0", "O14") and are
+     * decoded in place, so checking and adding a move allocates nothing.
+     */
+    static final class GameBoard {
+        public static final int MAX_SIZE = 26;
+        private static final char EMPTY = ' ';
+        private static final String[] COORDINATES = new String[MAX_SIZE * MAX_SIZE];
+        static {
+            for(int row = 0; row < MAX_SIZE; row++)
+                for(int col = 0; col < MAX_SIZE; col++)
+                    COORDINATES[row * MAX_SIZE + col] = (char) ('A' + row) + Integer.toString(col);
+        }
+        private final GameRules rules;
+        private final int size;
+        private final long[] crosses;
+        private final long[] circles;
+        private final RunLengths runLengths;
+        private int lastMoveCell = -1;
+        private boolean lastMoveVictory = false;
         
-        GomokuGame(Socket[] playersConnections) throws IOException{
-            if(playersConnections.length != 2)
-                throw new IOException("Wrong connections amount");
-            this.gameId = Arrays.hashCode(playersConnections);
-            initPlayers(playersConnections);
-            Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+        public GameBoard(final GameRules rules){
+            this.rules = checkNotNull(rules, "Game rules can't be null");
+            this.size = rules.getBoardSize();
+            this.crosses = new long[(size * size + 63) >>> 6];
+            this.circles = new long[crosses.length];
+            this.runLengths = new RunLengths(this);
         }
 
-            private void initPlayers(Socket[] playersConnections) throws IOException{
-                players[0] = new Player(playersConnections[0], 'X');
-                players[1] = new Player(playersConnections[1], 'O');
-            }
-            
-        public void runTheGame(){
-            new Thread(players[0]).start(); 
-            new Thread(players[1]).start(); 
-            System.out.println("Game " + gameId + " starts.");
+        public void addNewMove(String coordinates, char playerSymbol) throws IOException{
+            int cell = decodeCell(coordinates);
+            if(cell < 0 || !isEmpty(cell))
+                throw new IOException("Incorrect move " + coordinates);
+            long[] playerStones = getStones(playerSymbol);
+            playerStones[cell >>> 6] |= 1L << cell;
+            lastMoveCell = cell;
+            lastMoveVictory = runLengths.addStone(cell / size, cell % size, playerSymbol);
         }
 
-        private class Player implements Runnable{
-            private final char boardSymbol;
-        	private final Communication communication;
-        	
-            Player(final Socket playerConnection, final char boardSymbol) throws IOException {
-                this.communication = new TcpIpCommunication(playerConnection);
-                this.boardSymbol = boardSymbol;
+        public boolean isNewMoveCorrect(String coordinates){
+            int cell = decodeCell(coordinates);
+            return cell >= 0 && isEmpty(cell);
+        }
+        
+            private boolean isEmpty(int cell){
+                return ((crosses[cell >>> 6] | circles[cell >>> 6]) & (1L << cell)) == 0;
             }
-
-            @Override
-            public void run(){
-                try {
-                    sendInitMessagesToClient();
-                    playTheGame();
-                } catch (InterruptedException | IOException | BrokenBarrierException ex) {
-                    Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
-                } finally {
-                    try {
-                        communication.close();
-                    } catch (IOException ex) {
-                        Logger.getLogger(ServerGomokuGame.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+            
+            private long[] getStones(char playerSymbol){
+                switch(playerSymbol){
+                    case 'X': return crosses;
+                    case 'O': return circles;
+                    default: throw new IllegalArgumentException("Unknown player symbol " + playerSymbol);
                 }
-            }    
-                
-                private void sendInitMessagesToClient() throws IOException, InterruptedException, BrokenBarrierException{
-                    sendConnectionConfirm();
-                    sendAssignedBoardSymbol();
-                    sendStartCommand();
-                    sendWaitCommand();
-                }
-
-                    private void sendConnectionConfirm() throws IOException, InterruptedException, BrokenBarrierException{
-                    	this.communication.sendCommand(new Command(Protocol.Output.YOU_ARE_CONNECTED), gameId);
-                        waitForSecondPlayer.await();
-                    }
-
-                    private void sendAssignedBoardSymbol() throws IOException, InterruptedException, BrokenBarrierException{
-                        Command command = new Command(Protocol.Output.YOUR_BOARD_SYMBOL);
-                    	if(this.boardSymbol == 'X') {
-                    		command.addAdditionalValue("O");
-                        	this.communication.sendCommand(command, gameId);
-                    	}
-                        else {
-                        	command.addAdditionalValue("X");
-                        	this.communication.sendCommand(command, gameId);
-                        }
-                        	waitForSecondPlayer.await();
-                    }
-
-                    private void sendStartCommand() throws IOException, InterruptedException, BrokenBarrierException{
-                    	this.communication.sendCommand(new Command(Protocol.Output.START_THE_GAME), gameId);
-                        waitForSecondPlayer.await();
-                    }
-
-                    private void sendWaitCommand() throws InterruptedException, BrokenBarrierException, IOException{
-                    	this.communication.sendCommand(new Command(Protocol.Output.WAIT_FOR_YOUR_TURN), gameId);
-                        waitForSecondPlayer.await();
-                    }
+            }
 
-                private void playTheGame() throws IOException, InterruptedException, BrokenBarrierException{
-                    String newMoveCoordinates;
-                    while(isGameNotOver){
-                        onePlayerTurnAtATime.acquire();
-                        sendOpponentsMoveCoordinates();
-                        if(!isGameNotOver){
-                            sendLostCommand();
-                            break;
-                        }
-                        newMoveCoordinates = makeNewMove();
-                        if(gameBoard.checkVictory(newMoveCoordinates)){
-                        	endGame();
-                        	isGameNotOver = false;
-                        }
-                        else
-                        	continueGame();
-                        	
-                        onePlayerTurnAtATime.release();
-                        NewMoveCoordinates.put(newMoveCoordinates);
-                    }
-                }
+        /*
+         * Returns the shared String naming the cell, or null outside of the largest board.
+         */
+        public static String getCoordinates(int row, int col){
+            if(row < 0 || row >= MAX_SIZE || col < 0 || col >= MAX_SIZE)
+                return null;
+            return COORDINATES[row * MAX_SIZE + col];
+        }
 
-                    private void sendOpponentsMoveCoordinates() throws IOException, InterruptedException{
-                        if(!isItFirstTurn){
-                        	Command command = new Command(Protocol.Output.ANOTHER_PLAYER_COORDINATES);
-                        	command.addAdditionalValue((String)NewMoveCoordinates.take());
-                        	this.communication.sendCommand(command, gameId);
-                        }
-                        else
-                            isItFirstTurn = false;
-                    }
-                
-                    private void sendLostCommand() throws IOException{
-                    	this.communication.sendCommand(new Command(Protocol.Output.YOU_LOST), gameId);
-                    }
-                    
-                    private String makeNewMove() throws IOException, InterruptedException{
-                    	sendNewMoveCommand();
-                    	String newMoveCoordinates = receiveNewMove();
-                        if(!gameBoard.isNewMoveCorrect(newMoveCoordinates))
-                            newMoveCoordinates = makeCorrectMove();
-                        gameBoard.addNewMove(newMoveCoordinates, boardSymbol);
-                        return newMoveCoordinates;
-                    }
-                    
-	                    private void sendNewMoveCommand() throws IOException{
-	                    	this.communication.sendCommand(new Command(Protocol.Output.NEW_MOVE), gameId);
-	                    }
-                    	
-	                    private String receiveNewMove() throws IOException{
-	                    	return this.communication.receiveResponse(gameId);
-	                    }
-	                    
-                    	private String makeCorrectMove() throws IOException{
-                            String correctCoordinates;
-                            do {
-                            	sendIncorrectMoveCommand();
-                            	correctCoordinates = receiveNewMove();
-                            } while(!gameBoard.isNewMoveCorrect(correctCoordinates));
-
-                            return correctCoordinates;
-                        }
-                    
-                    	private void sendIncorrectMoveCommand() throws IOException{
-                        	this.communication.sendCommand(new Command(Protocol.Output.INCORRECT_MOVE), gameId);
-                    	}
-             
-                    private void endGame() throws IOException{
-                    	this.communication.sendCommand(new Command(Protocol.Output.YOU_WON), gameId);
-                        System.out.println("Game " + gameId + " ends.");
-                    }
-                    
-                    private void continueGame() throws IOException {
-                    	this.communication.sendCommand(new Command(Protocol.Output.NEXT_PLAYER_TURN), gameId);
-                    	this.communication.sendCommand(new Command(Protocol.Output.WAIT_FOR_YOUR_TURN), gameId);
-                    }
-        } 
+        /*
+         * Returns row * size + col, or -1 when the coordinates are malformed or off the board.
+         */
+        public int decodeCell(CharSequence coordinates){
+            return decodeCell(coordinates, size);
+        }
+        
+        public static int decodeCell(CharSequence coordinates, int size){
+            if(coordinates == null || coordinates.length() < 2 || coordinates.length() > 3)
+                return -1;
+            int row = coordinates.charAt(0) - 'A';
+            if(row < 0 || row >= size)
+                return -1;
+            int col = 0;
+            for(int i = 1; i < coordinates.length(); i++){
+                int digit = coordinates.charAt(i) - '0';
+                if(digit < 0 || digit > 9)
+                    return -1;
+                col = col * 10 + digit;
+            }
+            return col < size ? row * size + col : -1;
+        }
+        
+        public char getSymbol(int row, int col){
+            if(row < 0 || row >= size || col < 0 || col >= size)
+                return EMPTY;
+            int cell = row * size + col;
+            long mask = 1L << cell;
+            if((crosses[cell >>> 6] & mask) != 0)
+                return 'X';
+            if((circles[cell >>> 6] & mask) != 0)
+                return 'O';
+            return EMPTY;
+        }
+        
+        public int getSize(){
+            return size;
+        }
+        
+        public GameRules getRules(){
+            return rules;
+        }
 
-        private class GameBoard {
-            private final HashBasedTable<Integer, Integer, Character> board;
+        /*
+         * The move just added was already judged by RunLengths; any other cell falls
+         * back to scanning the board.
+         */
+        public boolean checkVictory(String coordinates){
+            int cell = decodeCell(coordinates);
+            if(cell < 0)
+                return false;
+            if(cell == lastMoveCell)
+                return lastMoveVictory;
+            return Victory.INSTANCE.isVictory(this, cell / size, cell % size);
+        }    
+    }
+    
+    /*
+     * Incremental victory detection. For each of the four directions the length of
+     * every run of same stones is stored at both ends of the run. A new stone can only
+     * touch runs at their ends, so joining them costs two lookups and two stores per
+     * direction, whatever the board size.
+     */
+    private static final class RunLengths{
+        private static final int[] ROW_STEPS = {0, 1, 1, 1};
+        private static final int[] COL_STEPS = {1, 0, 1, -1};
+        private final GameBoard board;
+        private final int cellsAmount;
+        private final byte[] runLengths;
+        
+        RunLengths(GameBoard board){
+            this.board = board;
+            this.cellsAmount = board.getSize() * board.getSize();
+            this.runLengths = new byte[ROW_STEPS.length * cellsAmount];
+        }
+        
+        public boolean addStone(int row, int col, char playerSymbol){
+            boolean victory = false;
+            for(int direction = 0; direction < ROW_STEPS.length; direction++){
+                int rowStep = ROW_STEPS[direction];
+                int colStep = COL_STEPS[direction];
+                int before = getRunEndingAt(direction, row - rowStep, col - colStep, playerSymbol);
+                int after = getRunEndingAt(direction, row + rowStep, col + colStep, playerSymbol);
+                int sameSymbolsAmount = before + 1 + after;
+                setRunLength(direction, row - before * rowStep, col - before * colStep, sameSymbolsAmount);
+                setRunLength(direction, row + after * rowStep, col + after * colStep, sameSymbolsAmount);
+                victory |= board.getRules().isWinningRun(sameSymbolsAmount);
+            }
+            return victory;
+        }
+        
+            private int getRunEndingAt(int direction, int row, int col, char playerSymbol){
+                if(board.getSymbol(row, col) != playerSymbol)
+                    return 0;
+                return runLengths[direction * cellsAmount + row * board.getSize() + col];
+            }
             
-            public GameBoard(){
-                board = HashBasedTable.create(10,10);
+            private void setRunLength(int direction, int row, int col, int sameSymbolsAmount){
+                runLengths[direction * cellsAmount + row * board.getSize() + col] = (byte) sameSymbolsAmount;
+            }
+    }
+    
+    /*
+     * Scanning victory check, used for cells other than the last move.
+     */
+    static enum Victory {
+        INSTANCE;
+        
+        public boolean isVictory(final GameBoard board, final int row, final int col){
+            if(board.getSymbol(row, col) == GameBoard.EMPTY)
+                return false;
+            return isHorizontalVictory(board, row, col) || isVerticalVictory(board, row, col) 
+                   || isDiagonalVictory(board, row, col) || isAntiDiagonalVictory(board, row, col);
+        }
+
+            private boolean isHorizontalVictory(final GameBoard board, final int row, final int col){
+                return isVictoryInDirection(board, row, col, 0, 1);
             }
 
-            public synchronized void addNewMove(String coordinates, char playerSymbol) throws IOException{
-                board.put(getRow(coordinates), getCol(coordinates), playerSymbol);
+            private boolean isVerticalVictory(final GameBoard board, final int row, final int col){
+                return isVictoryInDirection(board, row, col, 1, 0);
             }
 
-            public boolean isNewMoveCorrect(String coordinates){
-                return !board.contains(getRow(coordinates), getCol(coordinates));
+            private boolean isDiagonalVictory(final GameBoard board, final int row, final int col){
+                return isVictoryInDirection(board, row, col, 1, 1);
             }
 
-                private int getRow(String coordinates){
-                    return Arrays.asList(new String[]{"A","B","C","D","E","F","G","H","I","J"}).indexOf(coordinates.substring(0,1));
+            private boolean isAntiDiagonalVictory(final GameBoard board, final int row, final int col){
+                return isVictoryInDirection(board, row, col, 1, -1);
+            }
+            
+                private boolean isVictoryInDirection(final GameBoard board, final int row, final int col, 
+                                                     final int rowStep, final int colStep){
+                    int sameSymbolsAmount = 1 + getAmountOfSameSymbolsInDirection(board, row, col, rowStep, colStep) 
+                                              + getAmountOfSameSymbolsInDirection(board, row, col, -rowStep, -colStep);
+                    return board.getRules().isWinningRun(sameSymbolsAmount);
                 }
-                
-                private int getCol(String coordinates){
-                    return Integer.parseInt(coordinates.substring(1,2));
+             
+                private int getAmountOfSameSymbolsInDirection(final GameBoard board, final int row, final int col, 
+                                                              final int rowStep, final int colStep){
+                    char symbol = board.getSymbol(row, col);
+                    int sameSymbolsAmount = 0;
+                    int nextRow = row + rowStep;
+                    int nextCol = col + colStep;
+                    while(board.getSymbol(nextRow, nextCol) == symbol){
+                        sameSymbolsAmount++;
+                        nextRow += rowStep;
+                        nextCol += colStep;
+                    }
+                    return sameSymbolsAmount;
                 }
+    }
 
-            public boolean checkVictory(String  coordinates){
-                return Victory.INSTANCE.isVictory(board, coordinates);
-            }    
+    /*
+     * Server-side opponent. Every bot game asks for its moves here and all of them
+     * share one ForkJoinPool of searchThreadsAmount low priority threads, so a search
+     * never runs on a reactor or game worker thread and its CPU use has a hard cap.
+     *
+     * Moves are chosen by iterative deepening alpha-beta over EnginePosition, with
+     * positions cached in a TranspositionTable shared by all games. At the root the
+     * first move of the principal variation is searched alone, then its siblings are
+     * split over the pool with a null window against the best score so far (Young
+     * Brothers Wait), and only those that beat it are searched again. A search stops
+     * at its deadline and answers with the best move of the last finished iteration;
+     * the first ply always finishes, even for a search that only started after its
+     * deadline because the pool was busy.
+     */
+    static final class GomokuEngine{
+        static final int NO_MOVE = -1;
+        private static final int WIN_SCORE = 1 << 30;
+        private static final int INFINITY = WIN_SCORE + 1;
+        private static final int MAX_DEPTH = 32;
+        private static final int WIN_BOUND = WIN_SCORE - 2 * MAX_DEPTH;
+        private static final int ROOT_BRANCHING = 16;
+        private static final int BRANCHING = 10;
+        private static final int DEADLINE_CHECK_NODES = 1 << 4;
+        private final GameRules rules;
+        private final ForkJoinPool pool;
+        private final TranspositionTable table;
+        private final long moveTimeNanos;
+        private final AtomicInteger generation = new AtomicInteger();
+        private final ThreadLocal<Searcher> searchers;
+        
+        GomokuEngine(GameRules rules, int searchThreadsAmount, long moveTimeNanos, int tableEntries){
+            checkArgument(searchThreadsAmount > 0, "At least one search thread is required");
+            checkArgument(moveTimeNanos > 0, "Move time must be positive");
+            this.rules = checkNotNull(rules, "Game rules can't be null");
+            this.moveTimeNanos = moveTimeNanos;
+            this.table = new TranspositionTable(tableEntries);
+            this.pool = new ForkJoinPool(searchThreadsAmount, GomokuEngine::newSearchThread, null, false);
+            this.searchers = ThreadLocal.withInitial(() -> new Searcher(new EnginePosition(rules)));
         }
-    }
-    
-    private static enum Victory {
-        INSTANCE;
-        private final int SYMBOLS_FOR_VICTORY = 3;
-        private final int BOARD_SIZE = 10;
+            
+            private static ForkJoinWorkerThread newSearchThread(ForkJoinPool pool){
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("gomoku-bot-" + thread.getPoolIndex());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
         
-        public boolean isVictory(final HashBasedTable board, String coordinates){
-            return isHorizontalVictory(board, coordinates) || isVerticalVictory(board, coordinates) || isDiagonalVictory(board, coordinates);
+        public GameRules getRules(){
+            return rules;
         }
-
-            private boolean isHorizontalVictory(final HashBasedTable board, final String coordinates){
-                int sameSymbolsAmount = 1; 
-                int col = getCol(coordinates);
-                final Map<Integer, Character> rowMap = board.row(getRow(coordinates));
+        
+        /*
+         * Searches a copy of position and hands the finished search to onMoveChosen on
+         * a search thread, unless it was cancelled first.
+         */
+        public Search search(EnginePosition position, Consumer<Search> onMoveChosen){
+            checkArgument(position.rules.equals(rules), "Position is played by other rules");
+            Search search = new Search(position.copy(), checkNotNull(onMoveChosen, "Callback can't be null"),
+                                       System.nanoTime() + moveTimeNanos, generation.incrementAndGet());
+            pool.execute(search);
+            return search;
+        }
+        
+        /*
+         * Searches a copy of position on the calling thread. The root's siblings are
+         * searched by the caller's ForkJoinPool, or by the common pool when the caller
+         * is no pool worker, never by the engine's own threads.
+         */
+        public Search searchNow(EnginePosition position){
+            checkArgument(position.rules.equals(rules), "Position is played by other rules");
+            Search search = new Search(position.copy(), finishedSearch -> {}, 
+                                       System.nanoTime() + moveTimeNanos, generation.incrementAndGet());
+            search.invoke();
+            return search;
+        }
+        
+        public void shutdown(){
+            pool.shutdownNow();
+        }
+        
+        /*
+         * One move request. Iteration results are only taken once the whole iteration
+         * finished, so a search stopped halfway answers with the previous depth.
+         */
+        final class Search extends RecursiveAction{
+            private static final long serialVersionUID = 1L;
+            private final EnginePosition position;
+            private final Consumer<Search> onMoveChosen;
+            private final long deadlineNanos;
+            private final int generation;
+            private final AtomicLong nodes = new AtomicLong();
+            private final AtomicInteger alpha = new AtomicInteger();
+            private volatile int depth;
+            private volatile boolean stopped = false;
+            private volatile boolean cancelled = false;
+            private int[] rootMoves;
+            private int bestMove = NO_MOVE;
+            private int bestScore;
+            private int iterationBestMove;
+            private int iterationBestScore;
+            private int finishedDepth = 0;
+            private long startNanos;
+            private long searchNanos;
+            
+            private Search(EnginePosition position, Consumer<Search> onMoveChosen, long deadlineNanos, int generation){
+                this.position = position;
+                this.onMoveChosen = onMoveChosen;
+                this.deadlineNanos = deadlineNanos;
+                this.generation = generation;
+            }
+            
+            @Override
+            protected void compute(){
+                startNanos = System.nanoTime();
+                try {
+                    chooseMove();
+                } finally {
+                    searchNanos = System.nanoTime() - startNanos;
+                    if(!cancelled)
+                        onMoveChosen.accept(this);
+                }
+            }
                 
-                while(col+1 <= BOARD_SIZE && rowMap.get(col+1) != null){
-                    if(Objects.equals(rowMap.get(getCol(coordinates)), rowMap.get(col+1))){
-                        sameSymbolsAmount++;
-                        col++;
+                private void chooseMove(){
+                    Searcher searcher = searchers.get().reset(this);
+                    int movesAmount = searcher.generateMoves(0, NO_MOVE, ROOT_BRANCHING);
+                    rootMoves = Arrays.copyOf(searcher.moves[0], movesAmount);
+                    if(movesAmount == 0)
+                        return;
+                    bestMove = rootMoves[0];
+                    if(movesAmount == 1)
+                        return;
+                    int maxDepth = Math.min(MAX_DEPTH, position.getEmptyCellsAmount());
+                    for(depth = 1; depth <= maxDepth; depth++){
+                        searchRoot();
+                        if(stopped)
+                            return;
+                        bestMove = iterationBestMove;
+                        bestScore = iterationBestScore;
+                        finishedDepth = depth;
+                        table.store(position.getHash(), bestMove, depth, TranspositionTable.EXACT, bestScore, generation);
+                        moveToFront(bestMove);
+                        if(Math.abs(bestScore) >= WIN_BOUND || System.nanoTime() - startNanos > (deadlineNanos - startNanos) / 2)
+                            return;
                     }
-                    else break;
                 }
                 
-                col = getCol(coordinates);
-                while(col-1 >= 0 && rowMap.get(col-1) != null){
-                    if(Objects.equals(rowMap.get(getCol(coordinates)), rowMap.get(col-1))){
-                        sameSymbolsAmount++;
-                        col--;
+                /*
+                 * A nested task may reuse this thread's Searcher while invokeAll waits,
+                 * so the root keeps its moves in rootMoves and resets the Searcher first.
+                 */
+                private void searchRoot(){
+                    iterationBestMove = NO_MOVE;
+                    iterationBestScore = -INFINITY;
+                    alpha.set(-INFINITY);
+                    Searcher searcher = searchers.get().reset(this);
+                    int score = searcher.searchRootMove(rootMoves[0], -INFINITY, INFINITY, depth);
+                    searcher.reportNodes();
+                    if(stopped)
+                        return;
+                    offer(rootMoves[0], score);
+                    List<SiblingSearch> siblings = new ArrayList<>(rootMoves.length - 1);
+                    for(int i = 1; i < rootMoves.length; i++)
+                        siblings.add(new SiblingSearch(rootMoves[i]));
+                    invokeAll(siblings);
+                }
+                
+                private synchronized void offer(int move, int score){
+                    if(score > iterationBestScore){
+                        iterationBestScore = score;
+                        iterationBestMove = move;
                     }
-                    else break;
+                    alpha.accumulateAndGet(score, Math::max);
                 }
-                return sameSymbolsAmount >= SYMBOLS_FOR_VICTORY;
+                
+                private void moveToFront(int move){
+                    for(int i = 0; i < rootMoves.length; i++)
+                        if(rootMoves[i] == move){
+                            System.arraycopy(rootMoves, 0, rootMoves, 1, i);
+                            rootMoves[0] = move;
+                            return;
+                        }
+                }
+            
+            /*
+             * The first ply is never stopped by the deadline, so there is always a move.
+             */
+            private void checkDeadline(){
+                if(depth > 1 && System.nanoTime() - deadlineNanos > 0)
+                    stopped = true;
             }
-
-            private boolean isVerticalVictory(final HashBasedTable board, final String coordinates){
-                int sameSymbolsAmount = 1;
-                int row = getRow(coordinates);
-                final Map<Integer, Character> colMap = board.column(getCol(coordinates));
+            
+            public void cancel(){
+                cancelled = true;
+                stopped = true;
+            }
+            
+            public int getMove(){
+                return bestMove;
+            }
+            
+            public int getScore(){
+                return bestScore;
+            }
+            
+            public int getDepth(){
+                return finishedDepth;
+            }
+            
+            public long getNodes(){
+                return nodes.get();
+            }
+            
+            public long getSearchNanos(){
+                return searchNanos;
+            }
+            
+            private final class SiblingSearch extends RecursiveAction{
+                private static final long serialVersionUID = 1L;
+                private final int move;
                 
-                while(row+1 <= BOARD_SIZE && colMap.get(row+1) != null){
-                    if(Objects.equals(colMap.get(getRow(coordinates)), colMap.get(row+1))){
-                        sameSymbolsAmount++;
-                        row++;
-                    }
-                    else break;
+                SiblingSearch(int move){
+                    this.move = move;
                 }
                 
-                row = getRow(coordinates);
-                while(row-1 >= 0 && colMap.get(row-1) != null){
-                    if(Objects.equals(colMap.get(getCol(coordinates)), colMap.get(row-1))){
-                        sameSymbolsAmount++;
-                        row--;
-                    }
-                    else break;
+                @Override
+                protected void compute(){
+                    if(stopped)
+                        return;
+                    Searcher searcher = searchers.get().reset(Search.this);
+                    int bound = alpha.get();
+                    int score = searcher.searchRootMove(move, bound, bound + 1, depth);
+                    if(score > bound && !stopped)
+                        score = searcher.searchRootMove(move, alpha.get(), INFINITY, depth);
+                    searcher.reportNodes();
+                    if(!stopped)
+                        offer(move, score);
                 }
-                return sameSymbolsAmount >= SYMBOLS_FOR_VICTORY;
             }
-
-            private boolean isDiagonalVictory(final HashBasedTable board, final String coordinates){
-                int sameSymbolsAmount = 1 + getAmountOfSameDiagonalSymbolsInSouthEastDirection(board, coordinates) 
-                                          + getAmountOfSameDiagonalSymbolsInNorthWestDirection(board, coordinates);
-                return sameSymbolsAmount >= SYMBOLS_FOR_VICTORY;
+        }
+        
+        /*
+         * Search state of one pool thread: a private copy of the position and the move
+         * lists of every ply, so searching allocates nothing.
+         */
+        private final class Searcher{
+            private final EnginePosition position;
+            private final int[][] moves = new int[MAX_DEPTH + 1][];
+            private final long[][] moveScores = new long[MAX_DEPTH + 1][];
+            private Search search;
+            private long nodes;
+            
+            Searcher(EnginePosition position){
+                this.position = position;
+                for(int ply = 0; ply <= MAX_DEPTH; ply++){
+                    moves[ply] = new int[position.cellsAmount];
+                    moveScores[ply] = new long[position.cellsAmount];
+                }
             }
-             
-                private int getAmountOfSameDiagonalSymbolsInSouthEastDirection(final HashBasedTable board, final String coordinates){
-                    int sameSymbolsAmount = 0;
-                    int row = getRow(coordinates);
-                    int col = getCol(coordinates);
-                    while(row+1 <= BOARD_SIZE && col+1 <= BOARD_SIZE && board.get(row+1, col+1) != null){
-                        if(board.get(getRow(coordinates), getCol(coordinates)) == board.get(row+1, col+1)){
-                            sameSymbolsAmount++;
-                            row++;
-                            col++;
+            
+            public Searcher reset(Search search){
+                this.search = search;
+                this.nodes = 0;
+                position.copyFrom(search.position);
+                return this;
+            }
+            
+            public void reportNodes(){
+                search.nodes.addAndGet(nodes);
+                nodes = 0;
+            }
+            
+            public int searchRootMove(int move, int alpha, int beta, int depth){
+                position.play(move);
+                int score = position.isWinningMove(move) ? WIN_SCORE - 1 : -negamax(-beta, -alpha, depth - 1, 1);
+                position.undo(move);
+                return score;
+            }
+                
+                /*
+                 * Scores are seen from the side to move. A win scores WIN_SCORE less the
+                 * plies it takes, so nearer wins are preferred and farther losses resisted.
+                 */
+                private int negamax(int alpha, int beta, int depth, int ply){
+                    if((++nodes & (DEADLINE_CHECK_NODES - 1)) == 0)
+                        search.checkDeadline();
+                    if(search.stopped)
+                        return 0;
+                    if(depth == 0)
+                        return position.evaluate();
+                    long hash = position.getHash();
+                    long entry = table.probe(hash);
+                    int tableMove = NO_MOVE;
+                    if(entry != TranspositionTable.MISS){
+                        tableMove = TranspositionTable.getMove(entry);
+                        if(TranspositionTable.getDepth(entry) >= depth){
+                            int score = fromTable(TranspositionTable.getScore(entry), ply);
+                            switch(TranspositionTable.getBound(entry)){
+                                case TranspositionTable.EXACT: return score;
+                                case TranspositionTable.LOWER_BOUND: alpha = Math.max(alpha, score); break;
+                                default: beta = Math.min(beta, score);
+                            }
+                            if(alpha >= beta)
+                                return score;
                         }
-                        else return sameSymbolsAmount;
                     }
-                    return sameSymbolsAmount;
+                    int movesAmount = generateMoves(ply, tableMove, BRANCHING);
+                    if(movesAmount == 0)
+                        return 0;
+                    int originalAlpha = alpha;
+                    int bestScore = -INFINITY;
+                    int bestMove = NO_MOVE;
+                    int[] plyMoves = moves[ply];
+                    for(int i = 0; i < movesAmount; i++){
+                        int move = plyMoves[i];
+                        position.play(move);
+                        int score = position.isWinningMove(move) ? WIN_SCORE - ply - 1
+                                                                  : -negamax(-beta, -alpha, depth - 1, ply + 1);
+                        position.undo(move);
+                        if(search.stopped)
+                            return 0;
+                        if(score > bestScore){
+                            bestScore = score;
+                            bestMove = move;
+                            alpha = Math.max(alpha, score);
+                            if(alpha >= beta)
+                                break;
+                        }
+                    }
+                    int bound = bestScore <= originalAlpha ? TranspositionTable.UPPER_BOUND
+                              : bestScore >= beta ? TranspositionTable.LOWER_BOUND : TranspositionTable.EXACT;
+                    table.store(hash, bestMove, depth, bound, toTable(bestScore, ply), search.generation);
+                    return bestScore;
                 }
+                    
+                    private int toTable(int score, int ply){
+                        return score >= WIN_BOUND ? score + ply : score <= -WIN_BOUND ? score - ply : score;
+                    }
+                    
+                    private int fromTable(int score, int ply){
+                        return score >= WIN_BOUND ? score - ply : score <= -WIN_BOUND ? score + ply : score;
+                    }
             
-                private int getAmountOfSameDiagonalSymbolsInNorthWestDirection(final HashBasedTable board, final String coordinates){
-                    int sameSymbolsAmount = 0;
-                    int row = getRow(coordinates);
-                    int col = getCol(coordinates);
-                    while(row-1 >= 0 && col-1 >= 0 && board.get(row-1, col-1) != null){
-                        if(board.get(getRow(coordinates), getCol(coordinates)) == board.get(row-1, col-1)){
-                            sameSymbolsAmount++;
-                            row--;
-                            col--;
-                        }
-                        else break;
+            /*
+             * Fills moves[ply] with the branching best candidates, best first, the table
+             * move ahead of all of them, and returns how many there are.
+             */
+            public int generateMoves(int ply, int tableMove, int branching){
+                int[] plyMoves = moves[ply];
+                long[] scores = moveScores[ply];
+                int movesAmount = 0;
+                for(int cell = 0; cell < position.cellsAmount; cell++)
+                    if(position.isCandidate(cell)){
+                        plyMoves[movesAmount] = cell;
+                        scores[movesAmount] = cell == tableMove ? Long.MAX_VALUE : position.getMoveScore(cell);
+                        movesAmount++;
                     }
-                    return sameSymbolsAmount;
+                int keptAmount = Math.min(movesAmount, branching);
+                for(int i = 0; i < keptAmount; i++){
+                    int best = i;
+                    for(int j = i + 1; j < movesAmount; j++)
+                        if(scores[j] > scores[best])
+                            best = j;
+                    int move = plyMoves[best];
+                    long score = scores[best];
+                    plyMoves[best] = plyMoves[i];
+                    scores[best] = scores[i];
+                    plyMoves[i] = move;
+                    scores[i] = score;
                 }
-                
-                private int getRow(String coordinates){
-                    return Arrays.asList(new String[]{"A","B","C","D","E","F","G","H","I","J"}).indexOf(coordinates.substring(0,1));
+                return keptAmount;
+            }
+        }
+    }
+    
+    /*
+     * Chooses the moves of one side of simulated games. The position is the game so
+     * far, with the strategy's side to move and at least one empty cell; the strategy
+     * returns one of the empty cells and leaves the position as it found it. A single
+     * strategy plays its side of every game of a simulation, from many threads at
+     * once, so it must be thread safe.
+     */
+    interface MoveStrategy{
+        public int chooseMove(EnginePosition position);
+        
+        /*
+         * Any empty cell, all equally likely.
+         */
+        public static MoveStrategy random(){
+            return position -> {
+                int emptyCell = ThreadLocalRandom.current().nextInt(position.getEmptyCellsAmount());
+                for(int cell = 0; ; cell++)
+                    if(position.isEmpty(cell) && emptyCell-- == 0)
+                        return cell;
+            };
+        }
+        
+        /*
+         * The candidate the engine's move ordering scores best, ties broken at random:
+         * completes and blocks lines but never looks ahead.
+         */
+        public static MoveStrategy greedy(){
+            return position -> {
+                int bestMove = GomokuEngine.NO_MOVE;
+                long bestScore = -1;
+                int ties = 0;
+                for(int cell = 0; cell < position.getCellsAmount(); cell++){
+                    if(!position.isCandidate(cell))
+                        continue;
+                    long score = position.getMoveScore(cell);
+                    if(score > bestScore){
+                        bestScore = score;
+                        bestMove = cell;
+                        ties = 1;
+                    }
+                    else if(score == bestScore && ThreadLocalRandom.current().nextInt(++ties) == 0)
+                        bestMove = cell;
                 }
-
-                private int getCol(String coordinates){
-                    return Integer.parseInt(coordinates.substring(1,2));
+                return bestMove != GomokuEngine.NO_MOVE ? bestMove : random().chooseMove(position);
+            };
+        }
+        
+        /*
+         * The engine's full search, run on the calling thread.
+         */
+        public static MoveStrategy engine(GomokuEngine engine){
+            checkNotNull(engine, "Engine can't be null");
+            return position -> {
+                int move = engine.searchNow(position).getMove();
+                return move != GomokuEngine.NO_MOVE ? move : random().chooseMove(position);
+            };
+        }
+    }
+    
+    /*
+     * Board of the engine: one byte per cell, a Zobrist hash and a static evaluation,
+     * all kept up to date by play and undo. The evaluation sums every line of
+     * symbolsForVictory cells holding stones of one side only, each weighted by
+     * eight to the power of its stones, so play and undo only rescore the lines
+     * through the changed cell. Candidate moves are the empty cells within two of a
+     * stone, or the centre of an empty board.
+     */
+    static final class EnginePosition{
+        private static final byte EMPTY = 0;
+        private static final byte CROSS = 1;
+        private static final byte CIRCLE = 2;
+        private static final int MAX_CELLS = GameBoard.MAX_SIZE * GameBoard.MAX_SIZE;
+        private static final long[] ZOBRIST_KEYS = createZobristKeys();
+        private static final int[] ROW_STEPS = {0, 1, 1, 1};
+        private static final int[] COL_STEPS = {1, 0, 1, -1};
+        private static final int NEIGHBOURHOOD = 2;
+        private static final int MAX_WEIGHT_SHIFT = 40;
+        private final GameRules rules;
+        private final int size;
+        private final int cellsAmount;
+        private final int lineLength;
+        private final long[] lineWeights;
+        private final byte[] cells;
+        private final byte[] neighbours;
+        private long hash = 0;
+        private long crossesScore = 0;
+        private int stonesAmount = 0;
+        
+        EnginePosition(GameRules rules){
+            this.rules = checkNotNull(rules, "Game rules can't be null");
+            this.size = rules.getBoardSize();
+            this.cellsAmount = size * size;
+            this.lineLength = rules.getSymbolsForVictory();
+            this.lineWeights = new long[lineLength + 1];
+            for(int stones = 1; stones < lineLength; stones++)
+                lineWeights[stones] = 1L << Math.min(3 * (stones - 1), MAX_WEIGHT_SHIFT);
+            this.lineWeights[lineLength] = 1L << (MAX_WEIGHT_SHIFT + 10);
+            this.cells = new byte[cellsAmount];
+            this.neighbours = new byte[cellsAmount];
+        }
+            
+            private static long[] createZobristKeys(){
+                Random random = new Random(0x5EED_600D_C0DEL);
+                long[] keys = new long[2 * MAX_CELLS];
+                for(int i = 0; i < keys.length; i++)
+                    keys[i] = random.nextLong();
+                return keys;
+            }
+        
+        public EnginePosition copy(){
+            EnginePosition copy = new EnginePosition(rules);
+            copy.copyFrom(this);
+            return copy;
+        }
+        
+        public void copyFrom(EnginePosition other){
+            System.arraycopy(other.cells, 0, cells, 0, cellsAmount);
+            System.arraycopy(other.neighbours, 0, neighbours, 0, cellsAmount);
+            hash = other.hash;
+            crossesScore = other.crossesScore;
+            stonesAmount = other.stonesAmount;
+        }
+        
+        /*
+         * Plays a move of the game; X always moves first.
+         */
+        public void play(String coordinates, char playerSymbol) throws IOException{
+            int cell = GameBoard.decodeCell(coordinates, size);
+            if(cell < 0 || cells[cell] != EMPTY || playerSymbol != getSymbolToMove())
+                throw new IOException("Incorrect move " + coordinates + " of " + playerSymbol);
+            play(cell);
+        }
+        
+        public void play(int cell){
+            byte stone = stonesAmount % 2 == 0 ? CROSS : CIRCLE;
+            crossesScore -= getLinesScore(cell);
+            cells[cell] = stone;
+            crossesScore += getLinesScore(cell);
+            hash ^= ZOBRIST_KEYS[(stone - 1) * MAX_CELLS + cell];
+            stonesAmount++;
+            updateNeighbours(cell, 1);
+        }
+        
+        public void undo(int cell){
+            byte stone = cells[cell];
+            crossesScore -= getLinesScore(cell);
+            cells[cell] = EMPTY;
+            crossesScore += getLinesScore(cell);
+            hash ^= ZOBRIST_KEYS[(stone - 1) * MAX_CELLS + cell];
+            stonesAmount--;
+            updateNeighbours(cell, -1);
+        }
+            
+            private void updateNeighbours(int cell, int change){
+                int row = cell / size;
+                int col = cell % size;
+                for(int neighbourRow = Math.max(0, row - NEIGHBOURHOOD); neighbourRow <= Math.min(size - 1, row + NEIGHBOURHOOD); neighbourRow++)
+                    for(int neighbourCol = Math.max(0, col - NEIGHBOURHOOD); neighbourCol <= Math.min(size - 1, col + NEIGHBOURHOOD); neighbourCol++)
+                        neighbours[neighbourRow * size + neighbourCol] += change;
+            }
+            
+            /*
+             * Crosses' lines add and circles' lines subtract.
+             */
+            private long getLinesScore(int cell){
+                long score = 0;
+                int row = cell / size;
+                int col = cell % size;
+                for(int direction = 0; direction < ROW_STEPS.length; direction++)
+                    for(int offset = 0; offset < lineLength; offset++){
+                        int startRow = row - offset * ROW_STEPS[direction];
+                        int startCol = col - offset * COL_STEPS[direction];
+                        if(!isLineOnBoard(startRow, startCol, direction))
+                            continue;
+                        int crosses = countStones(startRow, startCol, direction, CROSS);
+                        int circles = countStones(startRow, startCol, direction, CIRCLE);
+                        if(circles == 0)
+                            score += lineWeights[crosses];
+                        else if(crosses == 0)
+                            score -= lineWeights[circles];
+                    }
+                return score;
+            }
+            
+            private boolean isLineOnBoard(int startRow, int startCol, int direction){
+                int endRow = startRow + (lineLength - 1) * ROW_STEPS[direction];
+                int endCol = startCol + (lineLength - 1) * COL_STEPS[direction];
+                return startRow >= 0 && startCol >= 0 && startCol < size && endRow < size && endCol >= 0 && endCol < size;
+            }
+            
+            private int countStones(int startRow, int startCol, int direction, byte stone){
+                int stones = 0;
+                int cell = startRow * size + startCol;
+                int step = ROW_STEPS[direction] * size + COL_STEPS[direction];
+                for(int i = 0; i < lineLength; i++, cell += step)
+                    if(cells[cell] == stone)
+                        stones++;
+                return stones;
+            }
+        
+        public boolean isCandidate(int cell){
+            if(cells[cell] != EMPTY)
+                return false;
+            return stonesAmount == 0 ? cell == (size / 2) * size + size / 2 : neighbours[cell] > 0;
+        }
+        
+        /*
+         * How much playing cell helps the side to move: the lines through it it would
+         * extend, plus half of the opponent's lines it would block. Completing a line
+         * outweighs everything else, and blocking one outweighs all but that.
+         */
+        public long getMoveScore(int cell){
+            byte stone = stonesAmount % 2 == 0 ? CROSS : CIRCLE;
+            byte opponentStone = stone == CROSS ? CIRCLE : CROSS;
+            long score = 0;
+            int row = cell / size;
+            int col = cell % size;
+            for(int direction = 0; direction < ROW_STEPS.length; direction++)
+                for(int offset = 0; offset < lineLength; offset++){
+                    int startRow = row - offset * ROW_STEPS[direction];
+                    int startCol = col - offset * COL_STEPS[direction];
+                    if(!isLineOnBoard(startRow, startCol, direction))
+                        continue;
+                    int own = countStones(startRow, startCol, direction, stone);
+                    int opponents = countStones(startRow, startCol, direction, opponentStone);
+                    if(opponents == 0)
+                        score += lineWeights[own + 1];
+                    else if(own == 0)
+                        score += lineWeights[opponents + 1] / 2;
                 }
+            return score;
+        }
+        
+        /*
+         * Judged by the rules, so an overline doesn't win where only an exact run does.
+         */
+        public boolean isWinningMove(int cell){
+            byte stone = cells[cell];
+            int row = cell / size;
+            int col = cell % size;
+            for(int direction = 0; direction < ROW_STEPS.length; direction++){
+                int sameStones = 1 + countRun(row, col, ROW_STEPS[direction], COL_STEPS[direction], stone)
+                                   + countRun(row, col, -ROW_STEPS[direction], -COL_STEPS[direction], stone);
+                if(rules.isWinningRun(sameStones))
+                    return true;
+            }
+            return false;
+        }
+            
+            private int countRun(int row, int col, int rowStep, int colStep, byte stone){
+                int sameStones = 0;
+                for(row += rowStep, col += colStep; row >= 0 && row < size && col >= 0 && col < size
+                                                    && cells[row * size + col] == stone; row += rowStep, col += colStep)
+                    sameStones++;
+                return sameStones;
+            }
+        
+        public int evaluate(){
+            long score = stonesAmount % 2 == 0 ? crossesScore : -crossesScore;
+            return (int) Math.max(-GomokuEngine.WIN_BOUND + 1, Math.min(GomokuEngine.WIN_BOUND - 1, score));
+        }
+        
+        public char getSymbolToMove(){
+            return stonesAmount % 2 == 0 ? 'X' : 'O';
+        }
+        
+        public boolean isEmpty(int cell){
+            return cells[cell] == EMPTY;
+        }
+        
+        public int getCellsAmount(){
+            return cellsAmount;
+        }
+        
+        public int getEmptyCellsAmount(){
+            return cellsAmount - stonesAmount;
+        }
+        
+        public long getHash(){
+            return hash;
+        }
+        
+        public GameRules getRules(){
+            return rules;
+        }
+        
+        public String getCoordinates(int cell){
+            return GameBoard.getCoordinates(cell / size, cell % size);
+        }
+    }
+    
+    /*
+     * Lock-free cache of searched positions shared by every search thread. Each entry
+     * is two longs, the hash xor the data and the data itself, so an entry torn by a
+     * concurrent store just stops matching its hash (Hyatt and Mann's lockless
+     * hashing) and costs a search, never a wrong answer. Buckets hold two entries: the
+     * first keeps the deepest result, the second always takes what the first refused.
+     * An entry loses one ply of depth priority for every search started after it, so
+     * results of finished games age out.
+     */
+    static final class TranspositionTable{
+        static final long MISS = 0;
+        static final int EXACT = 1;
+        static final int LOWER_BOUND = 2;
+        static final int UPPER_BOUND = 3;
+        private static final int ENTRY_LONGS = 2;
+        private static final int BUCKET_LONGS = 2 * ENTRY_LONGS;
+        private static final int MOVE_SHIFT = 32;
+        private static final int DEPTH_SHIFT = 43;
+        private static final int BOUND_SHIFT = 50;
+        private static final int GENERATION_SHIFT = 52;
+        private static final int GENERATION_MASK = 0xFF;
+        private final long[] slots;
+        private final int bucketMask;
+        
+        TranspositionTable(int entries){
+            checkArgument(entries >= 2, "Transposition table needs at least two entries");
+            int buckets = Integer.highestOneBit(entries / 2);
+            this.slots = new long[buckets * BUCKET_LONGS];
+            this.bucketMask = buckets - 1;
+        }
+        
+        public long probe(long hash){
+            int bucket = getBucket(hash);
+            for(int i = bucket; i < bucket + BUCKET_LONGS; i += ENTRY_LONGS){
+                long data = slots[i + 1];
+                if(data != MISS && (slots[i] ^ data) == hash)
+                    return data;
+            }
+            return MISS;
+        }
+        
+        public void store(long hash, int move, int depth, int bound, int score, int generation){
+            int bucket = getBucket(hash);
+            long deepest = slots[bucket + 1];
+            int age = (generation - (int) (deepest >>> GENERATION_SHIFT)) & GENERATION_MASK;
+            int entry = deepest == MISS || (slots[bucket] ^ deepest) == hash || depth >= getDepth(deepest) - age
+                      ? bucket : bucket + ENTRY_LONGS;
+            long data = (score & 0xFFFFFFFFL) | (long) (move + 1) << MOVE_SHIFT | (long) depth << DEPTH_SHIFT
+                        | (long) bound << BOUND_SHIFT | (long) (generation & GENERATION_MASK) << GENERATION_SHIFT;
+            slots[entry] = hash ^ data;
+            slots[entry + 1] = data;
+        }
+            
+            private int getBucket(long hash){
+                return ((int) (hash ^ (hash >>> 32)) & bucketMask) * BUCKET_LONGS;
+            }
+        
+        public static int getScore(long data){
+            return (int) data;
+        }
+        
+        public static int getMove(long data){
+            return (int) (data >>> MOVE_SHIFT & 0x7FF) - 1;
+        }
+        
+        public static int getDepth(long data){
+            return (int) (data >>> DEPTH_SHIFT & 0x7F);
+        }
+        
+        public static int getBound(long data){
+            return (int) (data >>> BOUND_SHIFT & 0x3);
+        }
     }
 }
\ No newline at end of file
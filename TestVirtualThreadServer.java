@@ -0,0 +1,93 @@
+import ServerCrossAndCircleGame.ServerGomokuGame;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the server in VIRTUAL_THREADS mode, with no timeouts and no admission
+ * limits, opens idle-but-connected players over loopback and reports how many
+ * carrier threads serve them. It passes once the server holds a game for every two
+ * players and the carrier threads stayed within the virtual thread scheduler's
+ * parallelism, availableProcessors unless jdk.virtualThreadScheduler.parallelism
+ * says otherwise, however many players were connected; the exit code is 1 otherwise.
+ *
+ * Usage: TestVirtualThreadServer [port] [players]
+ * Run on Java 21+, with a file descriptor limit above twice the players amount
+ * (ulimit -n 250000 for the default 100000 players). One source address only has
+ * about 28000 ephemeral ports, so every PLAYERS_PER_ADDRESS players connect from
+ * the next 127.0.0.x loopback address.
+ */
+public class TestVirtualThreadServer {
+    private static final int PLAYERS_PER_ADDRESS = 20000;
+    private static final int REPORT_INTERVAL = 10000;
+    private static final long GAMES_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int playersAmount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int carrierThreadsLimit = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                                                     Runtime.getRuntime().availableProcessors());
+
+        ServerGomokuGame server = new ServerGomokuGame(ServerGomokuGame.Configuration.builder()
+                .port(port)
+                .executionMode(ServerGomokuGame.ExecutionMode.VIRTUAL_THREADS)
+                .admissionLimits(Integer.MAX_VALUE, Integer.MAX_VALUE)
+                .turnLatencyTarget(0, TimeUnit.SECONDS)
+                .handshakeTimeout(0, TimeUnit.SECONDS)
+                .moveTimeout(0, TimeUnit.SECONDS)
+                .idleTimeout(0, TimeUnit.SECONDS)
+                .build());
+        new Thread(server).start();
+
+        InetAddress serverAddress = InetAddress.getByName("127.0.0.1");
+        List<Socket> players = new ArrayList<>(playersAmount);
+        int maxCarrierThreads = 0;
+        for(int i = 0; i < playersAmount; i++){
+            InetAddress sourceAddress = InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) (1 + i / PLAYERS_PER_ADDRESS)});
+            players.add(new Socket(serverAddress, port, sourceAddress, 0));
+            if((i + 1) % REPORT_INTERVAL == 0)
+                maxCarrierThreads = Math.max(maxCarrierThreads, printThreadUsage(i + 1));
+        }
+        long activeGames = awaitActiveGames(server, playersAmount / 2);
+        maxCarrierThreads = Math.max(maxCarrierThreads, printThreadUsage(playersAmount));
+        boolean passed = activeGames == playersAmount / 2 && maxCarrierThreads <= carrierThreadsLimit;
+        System.out.println("Active games: " + activeGames + " of " + playersAmount / 2
+                + ", most carrier threads: " + maxCarrierThreads + ", limit: " + carrierThreadsLimit
+                + (passed ? ", PASSED" : ", FAILED"));
+
+        for(Socket player : players)
+            player.close();
+        server.stopRunning();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /*
+     * Returns the server's active games once they reach expectedGames, or when
+     * GAMES_TIMEOUT_NANOS passed without that.
+     */
+    private static long awaitActiveGames(ServerGomokuGame server, long expectedGames) throws InterruptedException {
+        long deadline = System.nanoTime() + GAMES_TIMEOUT_NANOS;
+        long activeGames;
+        while((activeGames = server.getMetrics().getActiveGames()) != expectedGames && System.nanoTime() - deadline < 0)
+            Thread.sleep(100);
+        return activeGames;
+    }
+
+    private static int printThreadUsage(int connectedPlayers){
+        int carrierThreads = 0;
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+            if(thread.getClass().getName().equals("jdk.internal.misc.CarrierThread"))
+                carrierThreads++;
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("Connected players: " + connectedPlayers
+                + ", platform threads: " + ManagementFactory.getThreadMXBean().getThreadCount()
+                + ", carrier threads: " + carrierThreads
+                + ", used heap MB: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+        return carrierThreads;
+    }
+}
@@ -0,0 +1,46 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.GameRules;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Deterministic game data shared by the benchmarks, so every implementation is
+ * measured on the same moves.
+ */
+final class BenchmarkGames {
+    static final long SEED = 20181206L;
+    
+    private BenchmarkGames(){}
+    
+    static GameRules getRules(String name){
+        switch(name){
+            case "CLASSIC": return GameRules.CLASSIC;
+            case "FREESTYLE_GOMOKU": return GameRules.FREESTYLE_GOMOKU;
+            case "STANDARD_GOMOKU": return GameRules.STANDARD_GOMOKU;
+            default: throw new IllegalArgumentException("Unknown game rules " + name);
+        }
+    }
+    
+    /*
+     * Every cell of the board once, in random order.
+     */
+    static String[] getShuffledCells(GameRules rules, long seed){
+        List<String> cells = new ArrayList<>();
+        for(int row = 0; row < rules.getBoardSize(); row++)
+            for(int col = 0; col < rules.getBoardSize(); col++)
+                cells.add(ServerGomokuGame.GameBoard.getCoordinates(row, col));
+        Collections.shuffle(cells, new Random(seed));
+        return cells.toArray(new String[0]);
+    }
+    
+    static int getMovesAmount(GameRules rules, int fillPercent){
+        return Math.max(1, rules.getBoardSize() * rules.getBoardSize() * fillPercent / 100);
+    }
+    
+    static char getSymbol(int move){
+        return move % 2 == 0 ? 'X' : 'O';
+    }
+}
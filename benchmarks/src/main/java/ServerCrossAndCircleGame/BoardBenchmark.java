@@ -0,0 +1,104 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.GameBoard;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameRules;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * playMoves fills fillPercent of a fresh board, so its score is per game and not per
+ * move; isNewMoveCorrect probes every cell of an already filled board plus a few
+ * malformed coordinates, one per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBenchmark {
+    private static final String[] MALFORMED_COORDINATES = {"", "A", "a1", "Z99", "A-1", "A999"};
+    
+    /*
+     * Add a constant here to measure another board next to the current one.
+     */
+    public enum Implementation{
+        BITBOARD {
+            @Override
+            Board create(GameRules rules){
+                GameBoard board = new GameBoard(rules);
+                return new Board(){
+                    @Override
+                    public void addNewMove(String coordinates, char playerSymbol) throws IOException{
+                        board.addNewMove(coordinates, playerSymbol);
+                    }
+                    
+                    @Override
+                    public boolean isNewMoveCorrect(String coordinates){
+                        return board.isNewMoveCorrect(coordinates);
+                    }
+                };
+            }
+        };
+        
+        abstract Board create(GameRules rules);
+    }
+    
+    interface Board{
+        public void addNewMove(String coordinates, char playerSymbol) throws IOException;
+        public boolean isNewMoveCorrect(String coordinates);
+    }
+    
+    @Param
+    public Implementation implementation;
+    
+    @Param({"CLASSIC", "FREESTYLE_GOMOKU"})
+    public String rules;
+    
+    @Param({"10", "50", "90"})
+    public int fillPercent;
+    
+    private GameRules gameRules;
+    private String[] moves;
+    private String[] probes;
+    private Board filledBoard;
+    private int nextProbe;
+    
+    @Setup
+    public void setUp() throws IOException{
+        gameRules = BenchmarkGames.getRules(rules);
+        String[] cells = BenchmarkGames.getShuffledCells(gameRules, BenchmarkGames.SEED);
+        moves = new String[BenchmarkGames.getMovesAmount(gameRules, fillPercent)];
+        System.arraycopy(cells, 0, moves, 0, moves.length);
+        filledBoard = playMoves();
+        probes = new String[cells.length + MALFORMED_COORDINATES.length];
+        System.arraycopy(cells, 0, probes, 0, cells.length);
+        System.arraycopy(MALFORMED_COORDINATES, 0, probes, cells.length, MALFORMED_COORDINATES.length);
+    }
+    
+    @Benchmark
+    public Board playMoves() throws IOException{
+        Board board = implementation.create(gameRules);
+        for(int move = 0; move < moves.length; move++)
+            board.addNewMove(moves[move], BenchmarkGames.getSymbol(move));
+        return board;
+    }
+    
+    @Benchmark
+    public boolean isNewMoveCorrect(){
+        String probe = probes[nextProbe];
+        nextProbe = nextProbe + 1 == probes.length ? 0 : nextProbe + 1;
+        return filledBoard.isNewMoveCorrect(probe);
+    }
+}
@@ -0,0 +1,149 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.BinaryCodec;
+import ServerCrossAndCircleGame.ServerGomokuGame.Command;
+import ServerCrossAndCircleGame.ServerGomokuGame.CommandCodec;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameBoard;
+import ServerCrossAndCircleGame.ServerGomokuGame.InboundFrame;
+import ServerCrossAndCircleGame.ServerGomokuGame.JsonCodec;
+import ServerCrossAndCircleGame.ServerGomokuGame.Protocol;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Encodes the server commands of a scripted game and decodes the client's MY_MOVE
+ * frames, one command per operation. Both go through reusable buffers the way a
+ * connection uses them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int MOVES_AMOUNT = 30;
+    private static final int MAX_FRAME_LENGTH = 4096;
+    
+    /*
+     * Add a constant here to measure another codec next to the current ones.
+     */
+    public enum Implementation{
+        JSON(JsonCodec.INSTANCE),
+        BINARY(BinaryCodec.INSTANCE),
+        /* Reflective Gson round trip of Command, as the server originally did it. */
+        GSON_REFLECTION(new GsonReflectionCodec());
+        
+        private final CommandCodec codec;
+        
+        private Implementation(CommandCodec codec){
+            this.codec = codec;
+        }
+    }
+    
+    @Param
+    public Implementation implementation;
+    
+    private final List<Protocol.Output> serverCommands = new ArrayList<>();
+    private final List<String> serverValues = new ArrayList<>();
+    private final ByteBuffer serverFrames = ByteBuffer.allocate(MAX_FRAME_LENGTH);
+    private final InboundFrame inboundFrame = new InboundFrame();
+    private ByteBuffer clientFrames;
+    private int nextCommand;
+    
+    @Setup
+    public void setUp(){
+        for(int player = 0; player < 2; player++){
+            addServerCommand(Protocol.Output.YOUR_BOARD_SYMBOL, player == 0 ? "O" : "X");
+            addServerCommand(Protocol.Output.START_THE_GAME, null);
+            addServerCommand(Protocol.Output.WAIT_FOR_YOUR_TURN, null);
+        }
+        clientFrames = ByteBuffer.allocate(MOVES_AMOUNT * MAX_FRAME_LENGTH);
+        for(int move = 0; move < MOVES_AMOUNT; move++){
+            String coordinates = GameBoard.getCoordinates(move % 15, move / 15);
+            addServerCommand(Protocol.Output.NEW_MOVE, null);
+            addServerCommand(Protocol.Output.NEXT_PLAYER_TURN, null);
+            addServerCommand(Protocol.Output.WAIT_FOR_YOUR_TURN, null);
+            addServerCommand(Protocol.Output.ANOTHER_PLAYER_COORDINATES, coordinates);
+            implementation.codec.encode(Protocol.Input.MY_MOVE, coordinates, clientFrames);
+        }
+        clientFrames.flip();
+    }
+    
+        private void addServerCommand(Protocol.Output command, String value){
+            serverCommands.add(command);
+            serverValues.add(value);
+        }
+    
+    @Benchmark
+    public int encodeServerCommand(){
+        serverFrames.clear();
+        implementation.codec.encode(serverCommands.get(nextCommand), serverValues.get(nextCommand), serverFrames);
+        nextCommand = nextCommand + 1 == serverCommands.size() ? 0 : nextCommand + 1;
+        return serverFrames.position();
+    }
+    
+    @Benchmark
+    public String decodeClientMove() throws IOException{
+        if(!clientFrames.hasRemaining())
+            clientFrames.rewind();
+        implementation.codec.decode(clientFrames, inboundFrame);
+        return inboundFrame.getValue();
+    }
+    
+    static final class GsonReflectionCodec implements CommandCodec{
+        private final Gson gson = new Gson();
+        
+        @Override
+        public void encode(Protocol.Output command, String value, ByteBuffer frames){
+            Command frame = new Command(command);
+            if(value != null)
+                frame.addAdditionalValue(value);
+            encode(frame, frames);
+        }
+        
+        @Override
+        public void encode(Protocol.Input command, String value, ByteBuffer frames){
+            Command frame = new Command(command);
+            if(value != null)
+                frame.addAdditionalValue(value);
+            encode(frame, frames);
+        }
+        
+        @Override
+        public void encode(Command command, ByteBuffer frames){
+            frames.put((gson.toJson(command) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        
+        @Override
+        public boolean decode(ByteBuffer frames, InboundFrame frame) throws IOException{
+            for(int i = frames.position(); i < frames.limit(); i++){
+                if(frames.get(i) == '\n'){
+                    String text = new String(frames.array(), frames.arrayOffset() + frames.position(), 
+                                             i - frames.position(), StandardCharsets.UTF_8);
+                    frames.position(i + 1);
+                    Command command = gson.fromJson(text, Command.class);
+                    frame.set(Protocol.Input.valueOf(command.getCommand()), command.getAdditionalValues().get(0));
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.EventLogLevel;
+import ServerCrossAndCircleGame.ServerGomokuGame.ExecutionMode;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameMetricsMXBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/*
+ * Capacity planning aid. Starts a server in this JVM and measures how much heap it
+ * retains for each idle connection, a session that asked for no game yet, and for
+ * each active game, two players that finished the handshake and never move, from
+ * the live heap after full collections. The clients are bare SocketChannels of this
+ * JVM too; their share is measured against a plain acceptor first and subtracted.
+ * Thread stacks and kernel socket buffers are off heap and not included, so threads
+ * per game are printed alongside.
+ * Usage: java -cp benchmarks/target/benchmarks.jar ServerCrossAndCircleGame.GomokuFootprint [--name=value ...]
+ */
+public final class GomokuFootprint {
+    private static final String USAGE =
+          "Options (--name=value):\n"
+        + "  mode=NIO_REACTOR           execution mode of the server\n"
+        + "  port=2200                  game port; sessions use port+1 and the plain acceptor port+2\n"
+        + "  rules=CLASSIC              CLASSIC, FREESTYLE_GOMOKU or STANDARD_GOMOKU\n"
+        + "  connections=2000           idle sessions to measure\n"
+        + "  games=1000                 active games to measure";
+    private static final long SETTLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private ExecutionMode executionMode = ExecutionMode.NIO_REACTOR;
+    private int port = 2200;
+    private String rulesName = "CLASSIC";
+    private int connections = 2000;
+    private int games = 1000;
+    private double gameThreads;
+
+    private GomokuFootprint(){}
+
+    public static void main(String[] args) throws Exception {
+        GomokuFootprint footprint = new GomokuFootprint();
+        try {
+            for(String arg : args){
+                int separator = arg.indexOf('=');
+                checkArgument(arg.startsWith("--") && separator > 2, "Expected --name=value but got %s", arg);
+                footprint.set(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        footprint.run();
+        System.exit(0);
+    }
+
+        private void set(String name, String value){
+            switch(name){
+                case "mode": executionMode = ExecutionMode.valueOf(value); break;
+                case "port": port = Integer.parseInt(value); break;
+                case "rules":
+                    BenchmarkGames.getRules(value);
+                    rulesName = value;
+                    break;
+                case "connections": connections = parsePositive(name, value); break;
+                case "games": games = parsePositive(name, value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        private static int parsePositive(String name, String value){
+            int number = Integer.parseInt(value);
+            checkArgument(number > 0, "%s must be positive", name);
+            return number;
+        }
+
+    private void run() throws IOException, InterruptedException{
+        ServerGomokuGame server = startServer();
+        GameMetricsMXBean metrics = server.getMetrics();
+        System.out.println(String.format("%s server, %s rules, %d idle sessions, %d active games",
+                executionMode, rulesName, connections, games));
+        measureClientBytes(Math.min(connections, 64));
+        long clientBytes = measureClientBytes(connections);
+        measureSessions(metrics, Math.min(connections, 64), clientBytes);
+        long sessionBytes = measureSessions(metrics, connections, clientBytes);
+        measureGames(metrics, Math.min(games, 64), clientBytes);
+        long gameBytes = measureGames(metrics, games, clientBytes);
+        System.out.println(String.format("Client socket:   %,8d bytes, subtracted from the figures below", clientBytes));
+        System.out.println(String.format("Idle connection: %,8d bytes retained", sessionBytes));
+        System.out.println(String.format("Active game:     %,8d bytes retained, %.2f threads", gameBytes, gameThreads));
+        System.out.println(String.format("Games per GB of heap: %,d", (1L << 30) / Math.max(1, gameBytes)));
+        System.out.println(String.format("Frame buffers: %,d lent, %,d allocated, %,d bytes pooled",
+                metrics.getFrameBuffersLent(), metrics.getFrameBuffersAllocated(), metrics.getFrameBufferBytesPooled()));
+        server.stopRunning();
+    }
+
+        private ServerGomokuGame startServer() throws InterruptedException{
+            ServerGomokuGame server = new ServerGomokuGame(ServerGomokuGame.Configuration.builder()
+                    .port(port)
+                    .executionMode(executionMode)
+                    .sessionPort(port + 1)
+                    .admissionLimits(Integer.MAX_VALUE, Integer.MAX_VALUE)
+                    .turnLatencyTarget(0, TimeUnit.SECONDS)
+                    .moveTimeout(0, TimeUnit.SECONDS)
+                    .handshakeTimeout(0, TimeUnit.SECONDS)
+                    .idleTimeout(0, TimeUnit.SECONDS)
+                    .gameRules(BenchmarkGames.getRules(rulesName))
+                    .eventLog(Paths.get("gomoku-footprint-events.log"), EventLogLevel.ERRORS)
+                    .build());
+            Thread serverThread = new Thread(server, "gomoku-footprint-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            while(server.getSessionAddress() == null)
+                Thread.sleep(10);
+            return server;
+        }
+
+        /*
+         * A client socket and the socket a plain acceptor gets for it weigh about the
+         * same, so half of the pair is the client's.
+         */
+        private long measureClientBytes(int amount) throws IOException, InterruptedException{
+            try(ServerSocketChannel acceptor = ServerSocketChannel.open()){
+                acceptor.bind(new InetSocketAddress("127.0.0.1", port + 2), amount);
+                List<SocketChannel> sockets = new ArrayList<>();
+                long baseline = getLiveHeapBytes();
+                for(int i = 0; i < amount; i++){
+                    sockets.add(SocketChannel.open(acceptor.getLocalAddress()));
+                    sockets.add(acceptor.accept());
+                }
+                long bytes = (getLiveHeapBytes() - baseline) / amount / 2;
+                closeAll(sockets);
+                return bytes;
+            }
+        }
+
+        private long measureSessions(GameMetricsMXBean metrics, int amount, long clientBytes) throws IOException, InterruptedException{
+            long baseline = getLiveHeapBytes();
+            long sessionsBefore = metrics.getActiveSessions();
+            List<SocketChannel> sockets = connect(port + 1, amount);
+            awaitCount(metrics::getActiveSessions, sessionsBefore + amount);
+            long bytes = (getLiveHeapBytes() - baseline) / amount - clientBytes;
+            closeAll(sockets);
+            awaitCount(metrics::getActiveSessions, sessionsBefore);
+            return bytes;
+        }
+
+        private long measureGames(GameMetricsMXBean metrics, int amount, long clientBytes) throws IOException, InterruptedException{
+            long baseline = getLiveHeapBytes();
+            int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+            long gamesBefore = metrics.getActiveGames();
+            List<SocketChannel> sockets = connect(port, 2 * amount);
+            awaitCount(metrics::getActiveGames, gamesBefore + amount);
+            long bytes = (getLiveHeapBytes() - baseline) / amount - 2 * clientBytes;
+            gameThreads = (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore) / (double) amount;
+            closeAll(sockets);
+            awaitCount(metrics::getActiveGames, gamesBefore);
+            return bytes;
+        }
+
+        private static List<SocketChannel> connect(int port, int amount) throws IOException{
+            List<SocketChannel> sockets = new ArrayList<>(amount);
+            for(int i = 0; i < amount; i++)
+                sockets.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", port)));
+            return sockets;
+        }
+
+        private static void closeAll(List<SocketChannel> sockets) throws IOException{
+            for(SocketChannel socket : sockets)
+                socket.close();
+            sockets.clear();
+        }
+
+        /*
+         * Waits until the server counted every connection and then a little longer,
+         * so the handshakes are flushed and any buffer lent for them is back.
+         */
+        private static void awaitCount(LongSupplier counter, long expected) throws InterruptedException{
+            long deadline = System.nanoTime() + SETTLE_TIMEOUT_NANOS;
+            while(counter.getAsLong() != expected){
+                if(System.nanoTime() - deadline > 0)
+                    throw new IllegalStateException("Server counts " + counter.getAsLong() + " instead of " + expected);
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+        }
+
+        private static long getLiveHeapBytes() throws InterruptedException{
+            for(int i = 0; i < 3; i++){
+                System.gc();
+                Thread.sleep(50);
+            }
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+}
@@ -0,0 +1,174 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.EventLogLevel;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Headless soak test. Starts a server in this JVM (or targets a running one), keeps
+ * up to the configured amount of client pairs playing random games against it over
+ * loopback and prints one report line per interval. Thread and heap figures are
+ * those of this JVM minus the load generator's own threads, so they are only
+ * meaningful for the in-process server. The exit code is 1 when a gate fails.
+ * Usage: java -cp benchmarks/target/benchmarks.jar ServerCrossAndCircleGame.GomokuLoadGenerator [--name=value ...]
+ */
+public final class GomokuLoadGenerator {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private final LoadProfile profile;
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final LoadClient[] clients;
+    private ServerGomokuGame server;
+    
+    private GomokuLoadGenerator(LoadProfile profile) throws IOException{
+        this.profile = profile;
+        this.clients = new LoadClient[profile.clientThreads];
+        for(int i = 0; i < clients.length; i++)
+            clients[i] = new LoadClient(profile, statistics);
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadProfile profile;
+        try {
+            profile = LoadProfile.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(LoadProfile.USAGE);
+            System.exit(2);
+            return;
+        }
+        System.exit(new GomokuLoadGenerator(profile).run() ? 0 : 1);
+    }
+    
+    private boolean run() throws InterruptedException{
+        startServer();
+        System.out.println("Load profile: " + profile);
+        Thread[] clientThreads = new Thread[clients.length];
+        for(int i = 0; i < clients.length; i++){
+            clientThreads[i] = new Thread(clients[i], "gomoku-load-client-" + i);
+            clientThreads[i].start();
+        }
+        System.out.println(String.format("%6s %7s %8s %8s %8s %8s %8s %7s %7s %8s %7s", 
+                "time s", "pairs", "games/s", "turn p50", "p99 ms", "p999 ms", "moves/s", "fails", "stalls", "threads", "heap MB"));
+        long startNanos = System.nanoTime();
+        long previousGames = 0;
+        long previousMoves = 0;
+        long elapsedNanos = 0;
+        while(elapsedNanos < profile.durationNanos){
+            long nextReportNanos = Math.min(elapsedNanos + profile.intervalNanos, profile.durationNanos);
+            int targetPairs = 0;
+            while((elapsedNanos = System.nanoTime() - startNanos) < nextReportNanos){
+                targetPairs = profile.ramp.getTargetPairs(profile.pairs, elapsedNanos);
+                setTargetPairs(targetPairs);
+                Thread.sleep(Math.min(100, TimeUnit.NANOSECONDS.toMillis(nextReportNanos - elapsedNanos) + 1));
+            }
+            long games = statistics.getGamesFinished();
+            long moves = statistics.movesSent.sum();
+            double seconds = profile.intervalNanos / 1e9;
+            long[] turns = statistics.swapIntervalTurnLatency().getQuantileNanos(QUANTILES);
+            System.out.println(String.format("%6d %7d %8.1f %8.2f %8.2f %8.2f %8.1f %7d %7d %8d %7d", 
+                    TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), targetPairs, (games - previousGames) / seconds,
+                    turns[0] / 1e6, turns[1] / 1e6, turns[2] / 1e6, (moves - previousMoves) / seconds,
+                    statistics.getFailures(), statistics.stalledPlayers.sum(), getServerThreads(), getUsedHeapMegabytes()));
+            previousGames = games;
+            previousMoves = moves;
+        }
+        for(LoadClient client : clients)
+            client.stop();
+        for(Thread clientThread : clientThreads)
+            clientThread.join();
+        if(server != null)
+            server.stopRunning();
+        return printSummary();
+    }
+    
+        private void startServer() throws InterruptedException{
+            if(profile.target != null)
+                return;
+            server = new ServerGomokuGame(ServerGomokuGame.Configuration.builder()
+                    .port(profile.port)
+                    .executionMode(profile.executionMode)
+                    .reactorThreadsAmount(profile.reactors)
+                    .sessionPort(profile.sessions > 0 ? profile.port + 1 : -1)
+                    .admissionLimits(profile.maxGames > 0 ? profile.maxGames : Integer.MAX_VALUE, 10000)
+                    .turnLatencyTarget(profile.turnTargetNanos, TimeUnit.NANOSECONDS)
+                    .gameRules(profile.rules)
+                    .eventLog(Paths.get("gomoku-load-events.log"), EventLogLevel.GAMES)
+                    .build());
+            Thread serverThread = new Thread(server, "gomoku-load-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            while(profile.sessions > 0 && server.getSessionAddress() == null)
+                Thread.sleep(10);
+        }
+        
+        /*
+         * Each client holds whole pairs, so no player is left waiting in the lobby
+         * for a partner that is never opened.
+         */
+        private void setTargetPairs(int targetPairs){
+            for(int i = 0; i < clients.length; i++)
+                clients[i].setTargetPlayers(2 * (targetPairs / clients.length + (i < targetPairs % clients.length ? 1 : 0)));
+        }
+        
+        private long getServerThreads(){
+            return ManagementFactory.getThreadMXBean().getThreadCount() - clients.length - 1;
+        }
+        
+        private long getUsedHeapMegabytes(){
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        }
+        
+        private boolean printSummary(){
+            double seconds = profile.durationNanos / 1e9;
+            System.out.println(String.format("Games: %d won, %d drawn, %.1f per second", 
+                    statistics.gamesWon.sum(), statistics.gamesDrawn.sum(), statistics.getGamesFinished() / seconds));
+            System.out.println(String.format("Moves: %d sent, %d illegal, %d rejected, %d unexpected verdicts", 
+                    statistics.movesSent.sum(), statistics.illegalMovesSent.sum(), 
+                    statistics.incorrectMovesReceived.sum(), statistics.unexpectedVerdicts.sum()));
+            System.out.println(String.format("Connections: %d opened, %d connect failures, %d dropped, %d stalled, %d turned away busy", 
+                    statistics.connectionsOpened.sum(), statistics.connectFailures.sum(), 
+                    statistics.droppedConnections.sum(), statistics.stalledPlayers.sum(), statistics.busyAnswers.sum()));
+            System.out.println("Turn latency micros: " + statistics.turnLatency.getSummaryMicros());
+            System.out.println("Game start latency micros: " + statistics.gameStartLatency.getSummaryMicros());
+            if(server != null){
+                System.out.println("Server turn round trip micros: " + server.getMetrics().getTurnRoundTripMicros());
+                System.out.println("Server turn micros: " + server.getMetrics().getServerTurnMicros());
+                System.out.println(String.format("Admission: %d connections rejected, active games limit %d", 
+                        server.getMetrics().getConnectionsRejected(), server.getMetrics().getActiveGamesLimit()));
+                printShards(server.getMetrics());
+            }
+            return checkGates();
+        }
+        
+        private void printShards(ServerGomokuGame.GameMetricsMXBean metrics){
+            Map<String, Long> gamesStarted = metrics.getShardGamesStarted();
+            Map<String, Long> playersHandedOff = metrics.getShardPlayersHandedOff();
+            for(Map.Entry<String, Long> connections : metrics.getShardConnectionsAccepted().entrySet())
+                System.out.println(String.format("Shard %s: %d connections accepted, %d games started, %d players handed off", 
+                        connections.getKey(), connections.getValue(), gamesStarted.get(connections.getKey()), 
+                        playersHandedOff.get(connections.getKey())));
+        }
+        
+        private boolean checkGates(){
+            boolean passed = true;
+            long p99Nanos = statistics.turnLatency.getQuantileNanos(new double[]{0.99})[0];
+            if(profile.maxP99Nanos >= 0 && p99Nanos > profile.maxP99Nanos){
+                System.out.println(String.format("FAILED: p99 turn latency %.2f ms is above %.2f ms", p99Nanos / 1e6, profile.maxP99Nanos / 1e6));
+                passed = false;
+            }
+            if(profile.maxFailures >= 0 && statistics.getFailures() > profile.maxFailures){
+                System.out.println("FAILED: " + statistics.getFailures() + " failed connections, at most " + profile.maxFailures + " allowed");
+                passed = false;
+            }
+            if(statistics.unexpectedVerdicts.sum() > 0 && profile.maxFailures >= 0){
+                System.out.println("FAILED: the server judged " + statistics.unexpectedVerdicts.sum() + " moves wrong");
+                passed = false;
+            }
+            if(passed)
+                System.out.println("PASSED");
+            return passed;
+        }
+}
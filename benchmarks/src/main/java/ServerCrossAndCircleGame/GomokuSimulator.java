@@ -0,0 +1,143 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.EventLogLevel;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameRules;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameSimulation;
+import ServerCrossAndCircleGame.ServerGomokuGame.GomokuEngine;
+import ServerCrossAndCircleGame.ServerGomokuGame.MoveStrategy;
+import ServerCrossAndCircleGame.ServerGomokuGame.SimulationResults;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/*
+ * Plays a batch of games between two move strategies inside this JVM, with no
+ * sockets, through the same game logic the server runs, and prints one progress
+ * line per interval and the outcome of the batch. Strategies are random, greedy
+ * or engine:MS, the server's bot searching MS milliseconds per move.
+ * Usage: java -cp benchmarks/target/benchmarks.jar ServerCrossAndCircleGame.GomokuSimulator [--name=value ...]
+ */
+public final class GomokuSimulator {
+    private static final String USAGE =
+          "Options (--name=value):\n"
+        + "  rules=CLASSIC              CLASSIC, FREESTYLE_GOMOKU or STANDARD_GOMOKU\n"
+        + "  crosses=greedy             strategy of X, who moves first: random, greedy or engine:MS\n"
+        + "  circles=random             strategy of O: random, greedy or engine:MS\n"
+        + "  games=100000               games to play\n"
+        + "  threads=CPUS               simulation worker threads\n"
+        + "  interval=5                 seconds between progress lines";
+    private String rulesName = "CLASSIC";
+    private GameRules rules = GameRules.CLASSIC;
+    private String crossesName = "greedy";
+    private String circlesName = "random";
+    private long games = 100000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+    private final List<GomokuEngine> engines = new ArrayList<>();
+
+    private GomokuSimulator(){}
+
+    public static void main(String[] args) throws Exception {
+        GomokuSimulator simulator = new GomokuSimulator();
+        MoveStrategy crosses;
+        MoveStrategy circles;
+        try {
+            for(String arg : args){
+                int separator = arg.indexOf('=');
+                checkArgument(arg.startsWith("--") && separator > 2, "Expected --name=value but got %s", arg);
+                simulator.set(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+            crosses = simulator.createStrategy(simulator.crossesName);
+            circles = simulator.createStrategy(simulator.circlesName);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        System.exit(simulator.run(crosses, circles) ? 0 : 1);
+    }
+
+        private void set(String name, String value){
+            switch(name){
+                case "rules":
+                    rules = BenchmarkGames.getRules(value);
+                    rulesName = value;
+                    break;
+                case "crosses": crossesName = value; break;
+                case "circles": circlesName = value; break;
+                case "games":
+                    games = Long.parseLong(value);
+                    checkArgument(games > 0, "games must be positive");
+                    break;
+                case "threads": threads = parsePositive(name, value); break;
+                case "interval": intervalNanos = TimeUnit.SECONDS.toNanos(parsePositive(name, value)); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        private static int parsePositive(String name, String value){
+            int number = Integer.parseInt(value);
+            checkArgument(number > 0, "%s must be positive", name);
+            return number;
+        }
+
+        private MoveStrategy createStrategy(String name){
+            if(name.equals("random"))
+                return MoveStrategy.random();
+            if(name.equals("greedy"))
+                return MoveStrategy.greedy();
+            checkArgument(name.startsWith("engine:"), "Unknown strategy %s", name);
+            GomokuEngine engine = new GomokuEngine(rules, 1, TimeUnit.MILLISECONDS.toNanos(parsePositive("engine move time", name.substring(7))), 1 << 20);
+            engines.add(engine);
+            return MoveStrategy.engine(engine);
+        }
+
+    private boolean run(MoveStrategy crosses, MoveStrategy circles) throws InterruptedException{
+        System.out.println(String.format("Simulating %d %s games of %s against %s on %d threads",
+                games, rulesName, crossesName, circlesName, threads));
+        GameSimulation simulation = ServerGomokuGame.simulate(ServerGomokuGame.Configuration.builder()
+                .gameRules(rules)
+                .moveTimeout(0, TimeUnit.SECONDS)
+                .handshakeTimeout(0, TimeUnit.SECONDS)
+                .eventLog(Paths.get("gomoku-simulation-events.log"), EventLogLevel.ERRORS)
+                .build(), crosses, circles, games, threads);
+        System.out.println(String.format("%6s %10s %10s %12s %7s", "time s", "games", "games/s", "moves/s", "fails"));
+        SimulationResults results = simulation.getResults();
+        long previousGames = 0;
+        long previousMoves = 0;
+        long previousNanos = 0;
+        while(!simulation.await(intervalNanos, TimeUnit.NANOSECONDS)){
+            long elapsedNanos = simulation.getElapsedNanos();
+            long finishedGames = results.getGames();
+            long moves = results.getMoves();
+            double seconds = (elapsedNanos - previousNanos) / 1e9;
+            System.out.println(String.format("%6d %10d %10.1f %12.1f %7d", TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+                    finishedGames, (finishedGames - previousGames) / seconds, (moves - previousMoves) / seconds, results.getFailures()));
+            previousGames = finishedGames;
+            previousMoves = moves;
+            previousNanos = elapsedNanos;
+        }
+        for(GomokuEngine engine : engines)
+            engine.shutdown();
+        return printSummary(simulation);
+    }
+
+        private boolean printSummary(GameSimulation simulation){
+            SimulationResults results = simulation.getResults();
+            double seconds = simulation.getElapsedNanos() / 1e9;
+            double finishedGames = results.getGames();
+            System.out.println(String.format("Outcome: X %s won %.2f%%, O %s won %.2f%%, %.2f%% drawn, %d failed",
+                    crossesName, 100 * results.getCrossWins() / finishedGames, circlesName,
+                    100 * results.getCircleWins() / finishedGames, 100 * results.getDraws() / finishedGames,
+                    results.getFailures()));
+            System.out.println(String.format("Game length in moves: p50 %d, p90 %d, mean %.1f",
+                    results.getGameLengthQuantile(0.5), results.getGameLengthQuantile(0.9), results.getMoves() / finishedGames));
+            System.out.println(String.format("Throughput: %d games in %.2f s, %.1f games/s, %.1f moves/s",
+                    results.getGames(), seconds, finishedGames / seconds, results.getMoves() / seconds));
+            return results.getFailures() == 0;
+        }
+}
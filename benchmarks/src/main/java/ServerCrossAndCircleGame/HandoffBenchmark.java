@@ -0,0 +1,194 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.GameActor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Latency of one turn from the server's point of view: the player on move sends its
+ * coordinates, the game hands the turn over and the opponent is asked for its move.
+ * Sockets are replaced by blocking queues that cost the same in both designs, so the
+ * difference between them is the handoff itself. The benchmark thread plays both
+ * clients of one game; run with -t N to have N games share the game workers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+    private static final String MOVE = "A0";
+    private static final String NEW_MOVE = "NEW_MOVE";
+    private static final String NEXT_PLAYER_TURN = "NEXT_PLAYER_TURN";
+    private static final ExecutorService GAME_WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread worker = new Thread(runnable, "handoff-game-worker");
+                worker.setDaemon(true);
+                return worker;
+            });
+    
+    /*
+     * Add a constant here to measure another turn handoff next to the current ones.
+     */
+    public enum Implementation{
+        /* Two player threads passing the turn through a fair Semaphore and a SynchronousQueue, as games did before GameActor. */
+        SEMAPHORE_AND_QUEUE {
+            @Override
+            Game start(Connection[] connections){
+                return new SemaphoreAndQueueGame(connections);
+            }
+        },
+        /* A reading thread per player posting moves to the game's actor on the shared workers. */
+        GAME_ACTOR {
+            @Override
+            Game start(Connection[] connections){
+                return new ActorGame(connections);
+            }
+        };
+        
+        abstract Game start(Connection[] connections);
+    }
+    
+    /*
+     * Both directions of a simulated socket.
+     */
+    static final class Connection{
+        final BlockingQueue<String> fromClient = new ArrayBlockingQueue<>(4);
+        final BlockingQueue<String> toClient = new ArrayBlockingQueue<>(4);
+    }
+    
+    interface Game{
+        void stop();
+    }
+    
+    @Param
+    public Implementation implementation;
+    
+    private final Connection[] connections = {new Connection(), new Connection()};
+    private Game game;
+    private int playerOnMove;
+    
+    @Setup
+    public void setUp() throws InterruptedException{
+        game = implementation.start(connections);
+        connections[0].toClient.take();
+    }
+    
+    @TearDown
+    public void tearDown(){
+        game.stop();
+    }
+    
+    /*
+     * The client on move answers, and waits for its verdict; the opponent then gets
+     * its NEW_MOVE.
+     */
+    @Benchmark
+    public String playTurn() throws InterruptedException{
+        connections[playerOnMove].fromClient.put(MOVE);
+        connections[playerOnMove].toClient.take();
+        playerOnMove = 1 - playerOnMove;
+        return connections[playerOnMove].toClient.take();
+    }
+    
+    private static final class SemaphoreAndQueueGame implements Game{
+        private final Semaphore onePlayerTurnAtATime = new Semaphore(1, true);
+        private final SynchronousQueue<String> newMoveCoordinates = new SynchronousQueue<>();
+        private final Thread[] players = new Thread[2];
+        private volatile boolean isItFirstTurn = true;
+        
+        SemaphoreAndQueueGame(Connection[] connections){
+            for(int i = 0; i < 2; i++){
+                Connection connection = connections[i];
+                players[i] = new Thread(() -> play(connection), "handoff-player-" + i);
+                players[i].setDaemon(true);
+                players[i].start();
+                if(i == 0)
+                    while(onePlayerTurnAtATime.availablePermits() > 0)
+                        Thread.yield();
+            }
+        }
+        
+            private void play(Connection connection){
+                try {
+                    while(true){
+                        onePlayerTurnAtATime.acquire();
+                        if(!isItFirstTurn)
+                            newMoveCoordinates.take();
+                        else
+                            isItFirstTurn = false;
+                        connection.toClient.put(NEW_MOVE);
+                        String move = connection.fromClient.take();
+                        connection.toClient.put(NEXT_PLAYER_TURN);
+                        onePlayerTurnAtATime.release();
+                        newMoveCoordinates.put(move);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        
+        @Override
+        public void stop(){
+            for(Thread player : players)
+                player.interrupt();
+        }
+    }
+    
+    private static final class ActorGame implements Game{
+        private final Connection[] connections;
+        private final GameActor actor = new GameActor(GAME_WORKERS, ex -> {});
+        private final Thread[] readers = new Thread[2];
+        
+        ActorGame(Connection[] connections){
+            this.connections = connections;
+            connections[0].toClient.add(NEW_MOVE);
+            for(int i = 0; i < 2; i++){
+                int player = i;
+                readers[i] = new Thread(() -> read(player), "handoff-reader-" + i);
+                readers[i].setDaemon(true);
+                readers[i].start();
+            }
+        }
+        
+            private void read(int player){
+                try {
+                    while(true){
+                        String move = connections[player].fromClient.take();
+                        actor.post(() -> onMoveReceived(player, move));
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            private void onMoveReceived(int player, String move){
+                connections[player].toClient.add(NEXT_PLAYER_TURN);
+                connections[1 - player].toClient.add(NEW_MOVE);
+            }
+        
+        @Override
+        public void stop(){
+            for(Thread reader : readers)
+                reader.interrupt();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.GameJournal;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameOutcome;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameRules;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The cost a game pays to journal one accepted move, with the committer forcing the
+ * segment every commitIntervalMillis in the background. appendMoveContended has four
+ * games appending at once, as the shared worker pool would. A game that filled its
+ * board finishes and the next one starts, as the journal keeps the segment of an open
+ * game's start. Segments are small and few, so rolling them is part of the score and
+ * the temporary directory stays small.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+    private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    @Param({"1", "10"})
+    public int commitIntervalMillis;
+
+    private final AtomicInteger gameIds = new AtomicInteger();
+    private Path directory;
+    private GameJournal journal;
+
+    @State(Scope.Thread)
+    public static class Game{
+        private int gameId;
+        private int sequence;
+        private int boardCells;
+
+        @Setup
+        public void setUp(JournalBenchmark benchmark){
+            boardCells = GameRules.FREESTYLE_GOMOKU.getBoardSize() * GameRules.FREESTYLE_GOMOKU.getBoardSize();
+            start(benchmark);
+        }
+
+        private void start(JournalBenchmark benchmark){
+            gameId = benchmark.gameIds.incrementAndGet();
+            sequence = 0;
+            benchmark.journal.gameStarted(gameId, GameRules.FREESTYLE_GOMOKU);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException{
+        directory = Files.createTempDirectory("gomoku-journal-benchmark");
+        journal = new GameJournal(directory, SEGMENT_BYTES, 2, TimeUnit.MILLISECONDS.toNanos(commitIntervalMillis));
+        journal.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException{
+        journal.stop();
+        try (Stream<Path> files = Files.list(directory)) {
+            for(Path file : (Iterable<Path>) files::iterator)
+                Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void appendMove(Game game){
+        appendNextMove(game);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void appendMoveContended(Game game){
+        appendNextMove(game);
+    }
+
+        private void appendNextMove(Game game){
+            int sequence = ++game.sequence;
+            journal.moveAccepted(game.gameId, sequence, sequence % game.boardCells, BenchmarkGames.getSymbol(sequence));
+            if(sequence == game.boardCells){
+                journal.gameFinished(game.gameId, GameOutcome.WON, BenchmarkGames.getSymbol(sequence));
+                game.start(this);
+            }
+        }
+}
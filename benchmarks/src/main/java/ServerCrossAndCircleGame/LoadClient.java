@@ -0,0 +1,696 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.GameBoard;
+import ServerCrossAndCircleGame.ServerGomokuGame.InboundFrame;
+import ServerCrossAndCircleGame.ServerGomokuGame.JsonCodec;
+import ServerCrossAndCircleGame.ServerGomokuGame.Protocol;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * One selector thread driving many simulated players over non-blocking sockets, so
+ * thousands of clients cost a handful of threads and don't crowd out the server. A
+ * player connects, plays a single game in the JSON wire format and disconnects; the
+ * client keeps opening new players until it holds its share of the target. With
+ * sessions the players don't connect themselves but ask for a game over one of
+ * the client's multiplexed sessions.
+ */
+final class LoadClient implements Runnable {
+    private static final String[] MALFORMED_COORDINATES = {"Z0", "A99", "0A", "", "A-1", "??"};
+    private static final long HOUSEKEEPING_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final LoadProfile profile;
+    private final LoadStatistics statistics;
+    private final InetSocketAddress serverAddress;
+    private final Selector selector;
+    private final Set<Player> players = new HashSet<>();
+    private final PriorityQueue<Player> thinkingPlayers = new PriorityQueue<>(
+            (first, second) -> Long.compare(first.moveDueNanos, second.moveDueNanos));
+    private final SessionConnection[] sessions;
+    private int nextSession;
+    private final Random random = new Random();
+    private final GameBoard boardGeometry;
+    private final double connectsPerNano;
+    private volatile int targetPlayers;
+    private volatile boolean keepRunning = true;
+    private double connectBudget;
+    private long lastConnectNanos = System.nanoTime();
+    private long lastStallCheckNanos = System.nanoTime();
+    private long busyUntilNanos = System.nanoTime();
+    
+    LoadClient(LoadProfile profile, LoadStatistics statistics) throws IOException{
+        this.profile = profile;
+        this.statistics = statistics;
+        this.serverAddress = profile.getServerAddress();
+        this.selector = Selector.open();
+        this.sessions = new SessionConnection[profile.sessions];
+        this.boardGeometry = new GameBoard(profile.rules);
+        this.connectsPerNano = (double) profile.connectRate / profile.clientThreads / TimeUnit.SECONDS.toNanos(1);
+    }
+    
+    void setTargetPlayers(int targetPlayers){
+        this.targetPlayers = targetPlayers;
+    }
+    
+    void stop(){
+        keepRunning = false;
+        selector.wakeup();
+    }
+    
+    @Override
+    public void run(){
+        try {
+            while(keepRunning){
+                long now = System.nanoTime();
+                openConnections(now);
+                selector.select(getSelectTimeoutMillis(now));
+                handleSelectedKeys();
+                sendDueMoves(System.nanoTime());
+                closeStalledPlayers(System.nanoTime());
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            Logger.getLogger(LoadClient.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            for(Player player : new ArrayList<>(players))
+                player.close();
+            for(SessionConnection session : sessions)
+                if(session != null)
+                    session.close();
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(LoadClient.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+        private void openConnections(long now){
+            connectBudget = Math.min(connectBudget + (now - lastConnectNanos) * connectsPerNano, 
+                                     Math.max(1, connectsPerNano * HOUSEKEEPING_NANOS * 10));
+            lastConnectNanos = now;
+            while(players.size() < targetPlayers && connectBudget >= 1 && now - busyUntilNanos >= 0){
+                connectBudget--;
+                try {
+                    if(sessions.length > 0)
+                        players.add(getNextSession().askForGame(now));
+                    else {
+                        players.add(new PlayerConnection(now).player);
+                        statistics.connectionsOpened.increment();
+                    }
+                } catch (IOException ex) {
+                    statistics.connectFailures.increment();
+                }
+            }
+            for(SessionConnection session : sessions)
+                if(session != null && !session.isClosed)
+                    try {
+                        session.write();
+                    } catch (IOException ex) {
+                        session.fail();
+                    }
+        }
+        
+            /*
+             * New players are dealt round robin over the sessions, reopening a session
+             * that the server closed.
+             */
+            private SessionConnection getNextSession() throws IOException{
+                int index = nextSession;
+                nextSession = (nextSession + 1) % sessions.length;
+                if(sessions[index] == null || sessions[index].isClosed){
+                    sessions[index] = new SessionConnection();
+                    statistics.connectionsOpened.increment();
+                }
+                return sessions[index];
+            }
+        
+        private long getSelectTimeoutMillis(long now){
+            long timeoutNanos = HOUSEKEEPING_NANOS;
+            Player nextMove = thinkingPlayers.peek();
+            if(nextMove != null)
+                timeoutNanos = Math.min(timeoutNanos, nextMove.moveDueNanos - now);
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        }
+        
+        private void handleSelectedKeys(){
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if(key.isConnectable())
+                        connection.finishConnect();
+                    else {
+                        if(key.isWritable())
+                            connection.write();
+                        if(key.isValid() && key.isReadable())
+                            connection.read();
+                    }
+                } catch (IOException ex) {
+                    connection.fail();
+                }
+            }
+        }
+        
+        private void sendDueMoves(long now){
+            while(!thinkingPlayers.isEmpty() && thinkingPlayers.peek().moveDueNanos <= now){
+                Player player = thinkingPlayers.poll();
+                try {
+                    player.sendMove();
+                } catch (IOException ex) {
+                    player.connection.fail();
+                }
+            }
+        }
+        
+        /*
+         * A player waiting on the server for longer than the stall timeout is assumed
+         * to be stuck in a game the server lost track of.
+         */
+        private void closeStalledPlayers(long now){
+            if(now - lastStallCheckNanos < TimeUnit.SECONDS.toNanos(1))
+                return;
+            lastStallCheckNanos = now;
+            for(Player player : new ArrayList<>(players))
+                if(!player.isThinking && now - player.lastFrameNanos > profile.stallTimeoutNanos){
+                    statistics.stalledPlayers.increment();
+                    player.close();
+                }
+        }
+    
+    /*
+     * Socket of one plain player or of a whole session, always used by the selector
+     * thread. Frames are JSON lines.
+     */
+    private abstract class Connection{
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        final ByteBuffer writeBuffer;
+        boolean isClosed;
+        
+        Connection(int writeBufferSize) throws IOException{
+            writeBuffer = ByteBuffer.allocate(writeBufferSize);
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if(channel.connect(serverAddress))
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                else
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+        
+        void finishConnect(){
+            try {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                onConnected(System.nanoTime());
+                write();
+            } catch (IOException ex) {
+                statistics.connectFailures.increment();
+                closeOnConnectFailure();
+            }
+        }
+        
+        void read() throws IOException{
+            if(channel.read(readBuffer) < 0){
+                onEndOfStream();
+                return;
+            }
+            readBuffer.flip();
+            int start = readBuffer.position();
+            for(int i = start; i < readBuffer.limit() && !isClosed; i++)
+                if(readBuffer.get(i) == '\n'){
+                    handleFrame(new String(readBuffer.array(), start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            if(isClosed)
+                return;
+            readBuffer.position(start);
+            readBuffer.compact();
+            if(!readBuffer.hasRemaining())
+                throw new IOException("Server frame longer than " + readBuffer.capacity() + " bytes");
+        }
+        
+        /*
+         * Frames written before the connection is established wait in the buffer.
+         */
+        void write() throws IOException{
+            if(!channel.isConnected())
+                return;
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+            key.interestOps(writeBuffer.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+        
+        void close(){
+            if(isClosed)
+                return;
+            isClosed = true;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(LoadClient.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        abstract void onConnected(long now);
+        
+        abstract void handleFrame(String frame) throws IOException;
+        
+        abstract void onEndOfStream();
+        
+        abstract void closeOnConnectFailure();
+        
+        abstract void fail();
+        
+        abstract void sendMove(Player player, String coordinates) throws IOException;
+        
+        abstract void playerClosed(Player player);
+    }
+    
+    /*
+     * Connection of a single player, closed together with its game.
+     */
+    private final class PlayerConnection extends Connection{
+        private final Player player;
+        
+        PlayerConnection(long now) throws IOException{
+            super(256);
+            player = new Player(now, this);
+        }
+        
+        @Override
+        void onConnected(long now){
+            player.lastFrameNanos = now;
+        }
+        
+        @Override
+        void handleFrame(String frame) throws IOException{
+            player.handleFrame(frame);
+        }
+        
+        @Override
+        void onEndOfStream(){
+            player.onGameClosed();
+        }
+        
+        @Override
+        void closeOnConnectFailure(){
+            player.close();
+        }
+        
+        @Override
+        void fail(){
+            player.fail();
+        }
+        
+        @Override
+        void sendMove(Player player, String coordinates) throws IOException{
+            JsonCodec.INSTANCE.encode(Protocol.Input.MY_MOVE, coordinates, writeBuffer);
+            write();
+        }
+        
+        @Override
+        void playerClosed(Player player){
+            close();
+        }
+    }
+    
+    /*
+     * Multiplexed session carrying many players of the client. Every player asks for
+     * its game with its own PLAY 1, so a SERVER_BUSY turns away exactly one of the
+     * players still waiting for a game id; which one doesn't matter, as they are all
+     * alike until their game starts.
+     */
+    private final class SessionConnection extends Connection{
+        private final Map<Integer, Player> games = new HashMap<>();
+        private final Set<Integer> leftGames = new HashSet<>();
+        private final Deque<Player> unseatedPlayers = new ArrayDeque<>();
+        private int abandonedSeats;
+        
+        SessionConnection() throws IOException{
+            super(64 * 1024);
+        }
+        
+        Player askForGame(long now) throws IOException{
+            ensureWriteCapacity();
+            Player player = new Player(now, this);
+            unseatedPlayers.add(player);
+            JsonCodec.INSTANCE.encode(Protocol.Input.PLAY, "1", writeBuffer);
+            return player;
+        }
+        
+            private void ensureWriteCapacity() throws IOException{
+                if(writeBuffer.remaining() < 256)
+                    throw new IOException("Session write buffer is full");
+            }
+        
+        @Override
+        void onConnected(long now){
+        }
+        
+        /*
+         * The first tagged frame of an unknown game seats the oldest waiting player,
+         * or is left at once when the players asking for it gave up waiting. Frames
+         * of a game its player already closed are ignored up to its GAME_OVER.
+         */
+        @Override
+        void handleFrame(String frame) throws IOException{
+            int game = getGame(frame);
+            if(game == InboundFrame.NO_GAME){
+                handleSessionFrame(frame);
+                return;
+            }
+            boolean isGameOver = frame.contains("\"command\":\"" + Protocol.Output.GAME_OVER + "\"");
+            if(leftGames.contains(game)){
+                if(isGameOver)
+                    leftGames.remove(game);
+                return;
+            }
+            Player player = games.get(game);
+            if(player == null){
+                player = unseatedPlayers.poll();
+                if(player == null){
+                    if(abandonedSeats == 0)
+                        throw new IOException("Unrequested game " + game);
+                    abandonedSeats--;
+                    leaveGame(game);
+                    return;
+                }
+                player.game = game;
+                games.put(game, player);
+            }
+            if(isGameOver){
+                player.isGameOver = true;
+                player.onGameClosed();
+                leftGames.remove(game);
+            }
+            else
+                player.handleFrame(frame);
+        }
+        
+            private void handleSessionFrame(String frame) throws IOException{
+                if(!frame.contains("\"command\":\"" + Protocol.Output.SERVER_BUSY + "\""))
+                    return;
+                statistics.busyAnswers.increment();
+                backOff(System.nanoTime(), Long.parseLong(getField(frame, "\"additionalValues\":[\"")));
+                Player player = unseatedPlayers.pollLast();
+                if(player != null)
+                    player.close();
+                else if(abandonedSeats > 0)
+                    abandonedSeats--;
+            }
+            
+            private int getGame(String frame){
+                String prefix = "\"game\":";
+                int start = frame.indexOf(prefix);
+                if(start < 0)
+                    return InboundFrame.NO_GAME;
+                int end = frame.indexOf(',', start);
+                return Integer.parseInt(frame.substring(start + prefix.length(), end));
+            }
+        
+        @Override
+        void onEndOfStream(){
+            fail();
+        }
+        
+        @Override
+        void closeOnConnectFailure(){
+            closeAll(false);
+        }
+        
+        @Override
+        void fail(){
+            closeAll(true);
+        }
+        
+            private void closeAll(boolean isFailure){
+                close();
+                for(Player player : new ArrayList<>(games.values()))
+                    if(isFailure)
+                        player.fail();
+                    else
+                        player.close();
+                for(Player player : new ArrayList<>(unseatedPlayers))
+                    player.close();
+            }
+        
+        @Override
+        void sendMove(Player player, String coordinates) throws IOException{
+            ensureWriteCapacity();
+            JsonCodec.INSTANCE.encode(player.game, Protocol.Input.MY_MOVE, coordinates, writeBuffer);
+            write();
+        }
+        
+        /*
+         * A player closing a game that isn't over, because of a draw or a stall,
+         * leaves it so its opponent isn't kept waiting.
+         */
+        @Override
+        void playerClosed(Player player){
+            if(isClosed)
+                return;
+            if(player.game == InboundFrame.NO_GAME){
+                if(unseatedPlayers.remove(player))
+                    abandonedSeats++;
+                return;
+            }
+            games.remove(player.game);
+            if(!player.isGameOver)
+                leaveGame(player.game);
+            else
+                leftGames.add(player.game);
+        }
+        
+            private void leaveGame(int game){
+                leftGames.add(game);
+                try {
+                    ensureWriteCapacity();
+                    JsonCodec.INSTANCE.encode(game, Protocol.Input.LEAVE, null, writeBuffer);
+                    write();
+                } catch (IOException ex) {
+                    fail();
+                }
+            }
+    }
+    
+    /*
+     * The whole client holds back, as the server turns away every new player while
+     * it is busy.
+     */
+    private void backOff(long now, long retryAfterMillis){
+        long retryNanos = now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+        if(retryNanos - busyUntilNanos > 0)
+            busyUntilNanos = retryNanos;
+    }
+    
+    private static String getField(String frame, String prefix) throws IOException{
+        int start = frame.indexOf(prefix);
+        int end = start < 0 ? -1 : frame.indexOf('"', start + prefix.length());
+        if(end < 0)
+            throw new IOException("Unexpected server frame " + frame);
+        return frame.substring(start + prefix.length(), end);
+    }
+    
+    /*
+     * Tracks the board as seen by one player: free cells are kept in an array with a
+     * reverse index, so a random legal move and marking a move are both O(1).
+     */
+    private final class Player{
+        private final Connection connection;
+        private final int[] freeCells;
+        private final int[] freeCellPositions;
+        private int freeCellsAmount;
+        private final long connectedNanos;
+        private int game = InboundFrame.NO_GAME;
+        private long lastFrameNanos;
+        private long moveDueNanos;
+        private long moveSentNanos;
+        private int pendingCell = -1;
+        private boolean isPendingMoveIllegal;
+        private boolean isThinking;
+        private boolean isGameStarted;
+        private boolean isGameOver;
+        private boolean isClosed;
+        
+        Player(long now, Connection connection){
+            this.connection = connection;
+            int cells = profile.rules.getBoardSize() * profile.rules.getBoardSize();
+            freeCells = new int[cells];
+            freeCellPositions = new int[cells];
+            for(int cell = 0; cell < cells; cell++){
+                freeCells[cell] = cell;
+                freeCellPositions[cell] = cell;
+            }
+            freeCellsAmount = cells;
+            connectedNanos = now;
+            lastFrameNanos = now;
+        }
+        
+        void handleFrame(String frame) throws IOException{
+            long now = System.nanoTime();
+            lastFrameNanos = now;
+            Protocol.Output command = Protocol.Output.valueOf(getField(frame, "\"command\":\""));
+            switch(command){
+                case START_THE_GAME:
+                    if(!isGameStarted)
+                        statistics.gameStartLatency.record(now - connectedNanos);
+                    isGameStarted = true;
+                    break;
+                case NEW_MOVE:
+                    startThinking(now);
+                    break;
+                case INCORRECT_MOVE:
+                    finishTurn(now, false);
+                    statistics.incorrectMovesReceived.increment();
+                    startThinking(now);
+                    break;
+                case NEXT_PLAYER_TURN:
+                    finishTurn(now, true);
+                    break;
+                case ANOTHER_PLAYER_COORDINATES:
+                    markOccupied(boardGeometry.decodeCell(getField(frame, "\"additionalValues\":[\"")));
+                    break;
+                case YOU_WON:
+                    finishTurn(now, true);
+                    statistics.gamesWon.increment();
+                    isGameOver = true;
+                    close();
+                    break;
+                case YOU_LOST:
+                    statistics.gamesLost.increment();
+                    isGameOver = true;
+                    close();
+                    break;
+                case SERVER_BUSY:
+                    statistics.busyAnswers.increment();
+                    backOff(now, Long.parseLong(getField(frame, "\"additionalValues\":[\"")));
+                    close();
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+            /*
+             * A full board without a winner is a draw the protocol has no command
+             * for, so the player on move just leaves.
+             */
+            private void startThinking(long now){
+                if(freeCellsAmount == 0){
+                    statistics.gamesDrawn.increment();
+                    close();
+                    return;
+                }
+                isThinking = true;
+                moveDueNanos = now + profile.thinkTime.nextNanos(random);
+                thinkingPlayers.add(this);
+            }
+            
+            private void finishTurn(long now, boolean isMoveAccepted){
+                statistics.turnFinished(now - moveSentNanos);
+                if(isMoveAccepted == isPendingMoveIllegal)
+                    statistics.unexpectedVerdicts.increment();
+                if(isMoveAccepted && !isPendingMoveIllegal)
+                    markOccupied(pendingCell);
+            }
+            
+            private void markOccupied(int cell){
+                if(cell < 0 || freeCellPositions[cell] >= freeCellsAmount)
+                    return;
+                int position = freeCellPositions[cell];
+                int lastCell = freeCells[--freeCellsAmount];
+                freeCells[position] = lastCell;
+                freeCellPositions[lastCell] = position;
+                freeCells[freeCellsAmount] = cell;
+                freeCellPositions[cell] = freeCellsAmount;
+            }
+        
+        /*
+         * The server ended the game without a verdict, which is only expected once
+         * the board is full.
+         */
+        void onGameClosed(){
+            if(freeCellsAmount == 0)
+                close();
+            else
+                fail();
+        }
+        
+        void sendMove() throws IOException{
+            if(isClosed)
+                return;
+            isThinking = false;
+            String coordinates;
+            isPendingMoveIllegal = random.nextDouble() < profile.illegalMoveProbability;
+            if(isPendingMoveIllegal){
+                coordinates = chooseIllegalMove();
+                statistics.illegalMovesSent.increment();
+            }
+            else {
+                pendingCell = freeCells[random.nextInt(freeCellsAmount)];
+                coordinates = getCoordinates(pendingCell);
+            }
+            statistics.movesSent.increment();
+            moveSentNanos = System.nanoTime();
+            lastFrameNanos = moveSentNanos;
+            connection.sendMove(this, coordinates);
+        }
+        
+            private String chooseIllegalMove(){
+                int cells = freeCells.length;
+                if(freeCellsAmount < cells && random.nextBoolean())
+                    return getCoordinates(freeCells[freeCellsAmount + random.nextInt(cells - freeCellsAmount)]);
+                return MALFORMED_COORDINATES[random.nextInt(MALFORMED_COORDINATES.length)];
+            }
+            
+            private String getCoordinates(int cell){
+                int size = profile.rules.getBoardSize();
+                return GameBoard.getCoordinates(cell / size, cell % size);
+            }
+        
+        void fail(){
+            if(!isClosed)
+                statistics.droppedConnections.increment();
+            close();
+        }
+        
+        void close(){
+            if(isClosed)
+                return;
+            isClosed = true;
+            if(isThinking)
+                thinkingPlayers.remove(this);
+            players.remove(this);
+            connection.playerClosed(this);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.ExecutionMode;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameRules;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/*
+ * Options of one GomokuLoadGenerator run, parsed from --name=value arguments.
+ */
+final class LoadProfile {
+    static final String USAGE = 
+          "Options (--name=value):\n"
+        + "  mode=NIO_REACTOR           execution mode of the in-process server\n"
+        + "  target=host:port           play against an already running server instead\n"
+        + "  port=2100                  port of the in-process server\n"
+        + "  reactors=CPUS              reactor shards of the in-process NIO_REACTOR server\n"
+        + "  sessions=0                 sessions per client thread multiplexing its players, 0 connects each\n"
+        + "                             player; the in-process server takes sessions on port+1, a target\n"
+        + "                             must then be its session port\n"
+        + "  maxGames=-1                games the in-process server admits at most, -1 is unlimited\n"
+        + "  turnTargetMillis=100       p99 server turn latency the in-process server admits games for, 0 is off\n"
+        + "  rules=CLASSIC              CLASSIC, FREESTYLE_GOMOKU or STANDARD_GOMOKU, as the server plays\n"
+        + "  pairs=1000                 concurrent client pairs to reach\n"
+        + "  ramp=linear:30             instant, linear:SECONDS or step:STEPS:SECONDS_PER_STEP\n"
+        + "  duration=120               seconds to run, ramp included\n"
+        + "  think=none                 none, fixed:MS, uniform:MIN_MS:MAX_MS or exponential:MEAN_MS\n"
+        + "  illegal=0.02               probability that a move is occupied, off the board or malformed\n"
+        + "  clientThreads=2            selector threads driving the simulated players\n"
+        + "  connectRate=2000           new connections per second at most\n"
+        + "  interval=5                 seconds between report lines\n"
+        + "  stallTimeout=30            seconds a player waits for the server before giving up\n"
+        + "  maxP99Millis=-1            fail when the overall p99 turn latency is higher, -1 is off\n"
+        + "  maxFailures=-1             fail when more connections fail or stall, -1 is off";
+    
+    ExecutionMode executionMode = ExecutionMode.NIO_REACTOR;
+    InetSocketAddress target;
+    int port = 2100;
+    int reactors = Runtime.getRuntime().availableProcessors();
+    int sessions = 0;
+    int maxGames = -1;
+    long turnTargetNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    String rulesName = "CLASSIC";
+    GameRules rules = GameRules.CLASSIC;
+    int pairs = 1000;
+    Ramp ramp = Ramp.parse("linear:30");
+    long durationNanos = TimeUnit.SECONDS.toNanos(120);
+    ThinkTime thinkTime = ThinkTime.parse("none");
+    double illegalMoveProbability = 0.02;
+    int clientThreads = 2;
+    int connectRate = 2000;
+    long intervalNanos = TimeUnit.SECONDS.toNanos(5);
+    long stallTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    long maxP99Nanos = -1;
+    long maxFailures = -1;
+    
+    private LoadProfile(){}
+    
+    static LoadProfile parse(String[] args){
+        LoadProfile profile = new LoadProfile();
+        for(String arg : args){
+            int separator = arg.indexOf('=');
+            checkArgument(arg.startsWith("--") && separator > 2, "Expected --name=value but got %s", arg);
+            profile.set(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return profile;
+    }
+    
+        private void set(String name, String value){
+            switch(name){
+                case "mode": executionMode = ExecutionMode.valueOf(value); break;
+                case "target": target = parseAddress(value); break;
+                case "port": port = Integer.parseInt(value); break;
+                case "reactors": reactors = parsePositive(name, value); break;
+                case "sessions": sessions = Math.max(0, Integer.parseInt(value)); break;
+                case "maxGames": maxGames = Integer.parseInt(value) < 0 ? -1 : parsePositive(name, value); break;
+                case "turnTargetMillis": turnTargetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Long.parseLong(value))); break;
+                case "rules": 
+                    rules = BenchmarkGames.getRules(value);
+                    rulesName = value;
+                    break;
+                case "pairs": pairs = parsePositive(name, value); break;
+                case "ramp": ramp = Ramp.parse(value); break;
+                case "duration": durationNanos = TimeUnit.SECONDS.toNanos(parsePositive(name, value)); break;
+                case "think": thinkTime = ThinkTime.parse(value); break;
+                case "illegal": 
+                    illegalMoveProbability = Double.parseDouble(value);
+                    checkArgument(illegalMoveProbability >= 0 && illegalMoveProbability < 1, "illegal must be in [0, 1)");
+                    break;
+                case "clientThreads": clientThreads = parsePositive(name, value); break;
+                case "connectRate": connectRate = parsePositive(name, value); break;
+                case "interval": intervalNanos = TimeUnit.SECONDS.toNanos(parsePositive(name, value)); break;
+                case "stallTimeout": stallTimeoutNanos = TimeUnit.SECONDS.toNanos(parsePositive(name, value)); break;
+                case "maxP99Millis": maxP99Nanos = Long.parseLong(value) < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value)); break;
+                case "maxFailures": maxFailures = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        
+        private static int parsePositive(String name, String value){
+            int number = Integer.parseInt(value);
+            checkArgument(number > 0, "%s must be positive", name);
+            return number;
+        }
+        
+        private static InetSocketAddress parseAddress(String value){
+            int separator = value.lastIndexOf(':');
+            checkArgument(separator > 0, "Expected host:port but got %s", value);
+            return new InetSocketAddress(value.substring(0, separator), Integer.parseInt(value.substring(separator + 1)));
+        }
+    
+    InetSocketAddress getServerAddress(){
+        if(target != null)
+            return target;
+        return new InetSocketAddress("127.0.0.1", sessions > 0 ? port + 1 : port);
+    }
+    
+    @Override
+    public String toString(){
+        return (target != null ? "target " + target : executionMode + " server on port " + port)
+               + (sessions > 0 ? ", " + sessions + " sessions per client thread" : "")
+               + ", " + rulesName + " rules, " + pairs + " pairs, ramp " + ramp + ", think " + thinkTime
+               + ", illegal " + illegalMoveProbability + ", " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s";
+    }
+    
+    /*
+     * How many of the pairs should be connected at a given moment of the run.
+     */
+    static final class Ramp{
+        private final String description;
+        private final int steps;
+        private final long stepNanos;
+        private final boolean linear;
+        
+        private Ramp(String description, int steps, long stepNanos, boolean linear){
+            this.description = description;
+            this.steps = steps;
+            this.stepNanos = stepNanos;
+            this.linear = linear;
+        }
+        
+        static Ramp parse(String value){
+            String[] parts = value.split(":");
+            switch(parts[0]){
+                case "instant": 
+                    return new Ramp(value, 1, 0, false);
+                case "linear": 
+                    checkArgument(parts.length == 2, "Expected linear:SECONDS but got %s", value);
+                    return new Ramp(value, 1, TimeUnit.SECONDS.toNanos(Long.parseLong(parts[1])), true);
+                case "step":
+                    checkArgument(parts.length == 3, "Expected step:STEPS:SECONDS_PER_STEP but got %s", value);
+                    return new Ramp(value, Integer.parseInt(parts[1]), TimeUnit.SECONDS.toNanos(Long.parseLong(parts[2])), false);
+                default: 
+                    throw new IllegalArgumentException("Unknown ramp " + value);
+            }
+        }
+        
+        int getTargetPairs(int pairs, long elapsedNanos){
+            if(linear)
+                return elapsedNanos >= stepNanos ? pairs : (int) (pairs * elapsedNanos / stepNanos);
+            long step = stepNanos == 0 ? steps : Math.min(steps, elapsedNanos / stepNanos + 1);
+            return (int) (pairs * step / steps);
+        }
+        
+        @Override
+        public String toString(){
+            return description;
+        }
+    }
+    
+    /*
+     * Delay between a NEW_MOVE and the simulated player's answer.
+     */
+    static final class ThinkTime{
+        private final String description;
+        private final char distribution;
+        private final long firstNanos;
+        private final long secondNanos;
+        
+        private ThinkTime(String description, char distribution, long firstNanos, long secondNanos){
+            this.description = description;
+            this.distribution = distribution;
+            this.firstNanos = firstNanos;
+            this.secondNanos = secondNanos;
+        }
+        
+        static ThinkTime parse(String value){
+            String[] parts = value.split(":");
+            switch(parts[0]){
+                case "none":
+                    return new ThinkTime(value, 'n', 0, 0);
+                case "fixed":
+                    checkArgument(parts.length == 2, "Expected fixed:MS but got %s", value);
+                    return new ThinkTime(value, 'f', millis(parts[1]), 0);
+                case "uniform":
+                    checkArgument(parts.length == 3, "Expected uniform:MIN_MS:MAX_MS but got %s", value);
+                    checkArgument(millis(parts[1]) <= millis(parts[2]), "Minimal think time is above the maximal one");
+                    return new ThinkTime(value, 'u', millis(parts[1]), millis(parts[2]));
+                case "exponential":
+                    checkArgument(parts.length == 2, "Expected exponential:MEAN_MS but got %s", value);
+                    return new ThinkTime(value, 'e', millis(parts[1]), 0);
+                default:
+                    throw new IllegalArgumentException("Unknown think time " + value);
+            }
+        }
+        
+            private static long millis(String value){
+                long millis = Long.parseLong(value);
+                checkArgument(millis >= 0, "Think time can't be negative");
+                return TimeUnit.MILLISECONDS.toNanos(millis);
+            }
+        
+        long nextNanos(Random random){
+            switch(distribution){
+                case 'f': return firstNanos;
+                case 'u': return firstNanos + (long) (random.nextDouble() * (secondNanos - firstNanos));
+                case 'e': return (long) (-Math.log(1 - random.nextDouble()) * firstNanos);
+                default: return 0;
+            }
+        }
+        
+        @Override
+        public String toString(){
+            return description;
+        }
+    }
+}
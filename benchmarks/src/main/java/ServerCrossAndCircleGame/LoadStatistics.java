@@ -0,0 +1,48 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Client side view of a load run, shared by all LoadClient threads. Latencies go to
+ * a histogram for the whole run and to one that the reporter swaps every interval.
+ */
+final class LoadStatistics {
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder droppedConnections = new LongAdder();
+    final LongAdder stalledPlayers = new LongAdder();
+    final LongAdder busyAnswers = new LongAdder();
+    final LongAdder gamesWon = new LongAdder();
+    final LongAdder gamesLost = new LongAdder();
+    final LongAdder gamesDrawn = new LongAdder();
+    final LongAdder movesSent = new LongAdder();
+    final LongAdder illegalMovesSent = new LongAdder();
+    final LongAdder incorrectMovesReceived = new LongAdder();
+    final LongAdder unexpectedVerdicts = new LongAdder();
+    final LatencyHistogram turnLatency = new LatencyHistogram();
+    final LatencyHistogram gameStartLatency = new LatencyHistogram();
+    private volatile LatencyHistogram intervalTurnLatency = new LatencyHistogram();
+    
+    void turnFinished(long nanos){
+        turnLatency.record(nanos);
+        intervalTurnLatency.record(nanos);
+    }
+    
+    /*
+     * Returns the turn latencies recorded since the previous call.
+     */
+    LatencyHistogram swapIntervalTurnLatency(){
+        LatencyHistogram finished = intervalTurnLatency;
+        intervalTurnLatency = new LatencyHistogram();
+        return finished;
+    }
+    
+    long getFailures(){
+        return connectFailures.sum() + droppedConnections.sum() + stalledPlayers.sum();
+    }
+    
+    long getGamesFinished(){
+        return gamesWon.sum() + gamesDrawn.sum();
+    }
+}
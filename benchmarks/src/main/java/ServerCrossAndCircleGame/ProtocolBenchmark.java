@@ -0,0 +1,94 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.Protocol;
+import ServerCrossAndCircleGame.ServerGomokuGame.ProtocolAutomaton;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/*
+ * Every thread keeps sending NEW_MOVE and NEXT_PLAYER_TURN to the games in turn. With
+ * one game all threads fight over the same automaton; with many they mostly don't.
+ * A send that loses the race to another thread is rejected, just as it would be for
+ * a real player, and still counts as an operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ProtocolBenchmark {
+    
+    /*
+     * Add a constant here to measure another protocol state machine next to the current one.
+     */
+    public enum Implementation{
+        LOCK_FREE_AUTOMATON {
+            @Override
+            Object createGame(int gameId){
+                ProtocolAutomaton automaton = Protocol.INSTANCE.createProtocolFiniteStateAutoma(gameId);
+                send(automaton, Protocol.Output.START_THE_GAME);
+                send(automaton, Protocol.Output.START_THE_GAME);
+                return automaton;
+            }
+            
+            @Override
+            boolean send(Object game, Protocol.Output output){
+                return Protocol.INSTANCE.processOutput((ProtocolAutomaton) game, output);
+            }
+        };
+        
+        /*
+         * Returns a game ready for its first turn.
+         */
+        abstract Object createGame(int gameId);
+        abstract boolean send(Object game, Protocol.Output output);
+    }
+    
+    @State(Scope.Thread)
+    public static class Player{
+        private int nextGame;
+        
+        @Setup
+        public void setUp(ThreadParams threadParams){
+            nextGame = threadParams.getThreadIndex();
+        }
+    }
+    
+    @Param
+    public Implementation implementation;
+    
+    @Param({"1", "4", "64"})
+    public int gamesAmount;
+    
+    private Object[] games;
+    
+    @Setup
+    public void setUp(){
+        games = new Object[gamesAmount];
+        for(int i = 0; i < gamesAmount; i++)
+            games[i] = implementation.createGame(i + 1);
+    }
+    
+    @Benchmark
+    public boolean playTurn(Player player){
+        Object game = games[player.nextGame % gamesAmount];
+        player.nextGame = (player.nextGame + 1) % gamesAmount;
+        boolean moveRequested = implementation.send(game, Protocol.Output.NEW_MOVE);
+        boolean turnPassed = implementation.send(game, Protocol.Output.NEXT_PLAYER_TURN);
+        return moveRequested & turnPassed;
+    }
+}
@@ -0,0 +1,97 @@
+package ServerCrossAndCircleGame;
+
+import ServerCrossAndCircleGame.ServerGomokuGame.GameBoard;
+import ServerCrossAndCircleGame.ServerGomokuGame.GameRules;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Plays fillPercent of the board and judges every move the way the server does.
+ * Placing the stones costs the same for every implementation, so the difference
+ * between scores is the cost of the victory checks; see BoardBenchmark.playMoves
+ * for placement alone. Scores are per game.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VictoryBenchmark {
+    
+    /*
+     * Add a constant here to measure another victory check next to the current ones.
+     */
+    public enum Implementation{
+        /* Result recorded by RunLengths while the move was added, as GameBoard.checkVictory returns it. */
+        INCREMENTAL {
+            @Override
+            boolean judge(GameBoard board, String coordinates, int row, int col){
+                return board.checkVictory(coordinates);
+            }
+        },
+        /* Scan in four directions from the move. */
+        SCAN {
+            @Override
+            boolean judge(GameBoard board, String coordinates, int row, int col){
+                return ServerGomokuGame.Victory.INSTANCE.isVictory(board, row, col);
+            }
+        };
+        
+        abstract boolean judge(GameBoard board, String coordinates, int row, int col);
+    }
+    
+    @Param
+    public Implementation implementation;
+    
+    @Param({"CLASSIC", "FREESTYLE_GOMOKU"})
+    public String rules;
+    
+    @Param({"10", "50", "90"})
+    public int fillPercent;
+    
+    private GameRules gameRules;
+    private String[] moves;
+    private int[] rows;
+    private int[] cols;
+    
+    @Setup
+    public void setUp(){
+        gameRules = BenchmarkGames.getRules(rules);
+        String[] cells = BenchmarkGames.getShuffledCells(gameRules, BenchmarkGames.SEED);
+        int movesAmount = BenchmarkGames.getMovesAmount(gameRules, fillPercent);
+        moves = new String[movesAmount];
+        rows = new int[movesAmount];
+        cols = new int[movesAmount];
+        GameBoard decoder = new GameBoard(gameRules);
+        for(int move = 0; move < movesAmount; move++){
+            moves[move] = cells[move];
+            int cell = decoder.decodeCell(cells[move]);
+            rows[move] = cell / gameRules.getBoardSize();
+            cols[move] = cell % gameRules.getBoardSize();
+        }
+    }
+    
+    @Benchmark
+    public int judgeEveryMove() throws IOException{
+        GameBoard board = new GameBoard(gameRules);
+        int victories = 0;
+        for(int move = 0; move < moves.length; move++){
+            board.addNewMove(moves[move], BenchmarkGames.getSymbol(move));
+            if(implementation.judge(board, moves[move], rows[move], cols[move]))
+                victories++;
+        }
+        return victories;
+    }
+}